@@ -23,6 +23,7 @@ import com.matthewmitchell.peercoinj.store.ValidHashStore;
 import com.matthewmitchell.peercoinj.utils.ListenerRegistration;
 import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -33,6 +34,7 @@ import javax.annotation.Nullable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
@@ -84,6 +86,10 @@ import static com.google.common.base.Preconditions.*;
  */
 public abstract class AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(AbstractBlockChain.class);
+
+    // Serialises everything that modifies the chain: adding blocks, re-organizing, rolling back and orphan handling.
+    // Readers never take it. The chain head is published through a volatile field and the orphan map is concurrent,
+    // so queries stay low latency even whilst the chain is downloading and this lock is held most of the time.
     protected final ReentrantLock lock = Threading.lock("blockchain");
 
     /** Keeps a map of block hashes to StoredBlocks. */
@@ -96,16 +102,14 @@ public abstract class AbstractBlockChain {
      * Following this one down to the genesis block produces the story of the economy from the creation of Peercoin
      * until the present day. The chain head can change if a new set of blocks is received that results in a chain of
      * greater work than the one obtained by following this one down. In that case a reorganize is triggered,
-     * potentially invalidating transactions in our wallet.
+     * potentially invalidating transactions in our wallet.<p>
+     *
+     * Only written whilst holding the lock (see setChainHead). {@link StoredBlock}s are immutable so readers can use
+     * whatever value they see without locking.
      */
-    protected StoredBlock chainHead;
-
-    // TODO: Scrap this and use a proper read/write for all of the block chain objects.
-    // The chainHead field is read/written synchronized with this object rather than BlockChain. However writing is
-    // also guaranteed to happen whilst BlockChain is synchronized (see setChainHead). The goal of this is to let
-    // clients quickly access the chain head even whilst the block chain is downloading and thus the BlockChain is
-    // locked most of the time.
-    private final Object chainHeadLock = new Object();
+    protected volatile StoredBlock chainHead;
+    // The hashes of the blocks on the best chain by height, for building block locators.
+    final ChainHeightIndex heightIndex;
 
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
@@ -115,6 +119,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Approximate number of bytes held, counted against the orphan budget.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -122,11 +128,37 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+            }
+            this.size = size;
         }
     }
+
+    /** The default limit on the bytes held by orphan blocks, see {@link #setMaxOrphanBytes(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 32 * 1024 * 1024;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // were downloading the block chain. Only modified whilst holding the lock, but read without it.
+    private final ConcurrentHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new ConcurrentHashMap<Sha256Hash, OrphanBlock>();
+    // The orphans indexed by the hash of the block they are waiting for, so that connecting a block can pull its
+    // descendants straight out in topological order. Guarded by the lock.
+    private final ArrayListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrev = ArrayListMultimap.create();
+    // Orphan hashes in arrival order, oldest first, for eviction. Guarded by the lock.
+    private final LinkedHashSet<Sha256Hash> orphanArrivalOrder = new LinkedHashSet<Sha256Hash>();
+    // Written whilst holding the lock.
+    private volatile long orphanBytes;
+    private volatile long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
+
+    // Holds blocks that connect to the chain (directly or through another pending block), but whose hashes have not
+    // been confirmed by the trusted servers yet. They are connected in arrival order once the hashes are fetched in
+    // the background, so nothing waits on the network whilst holding the lock.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> pendingValidationBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // Whether a background synchronisation with the trusted servers is scheduled or running.
+    private boolean validationScheduled;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -146,6 +178,7 @@ public abstract class AbstractBlockChain {
         this.blockStore = blockStore;
         this.validHashStore = validHashStore;
         chainHead = blockStore.getChainHead();
+        heightIndex = new ChainHeightIndex(blockStore, chainHead);
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
         this.listeners = new CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>>();
@@ -268,7 +301,8 @@ public abstract class AbstractBlockChain {
     /**
      * Processes a received block and tries to add it to the chain. If there's something wrong with the block an
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
-     * If the block can be connected to the chain, returns true.
+     * If the block can be connected to the chain, returns true. A block whose hash hasn't been confirmed by the
+     * trusted servers yet is connected in the background once it has been, see {@link #getPendingValidationCount()}.
      * Accessing block's transactions in another thread while this method runs may result in undefined behavior.
      */
     public boolean add(Block block) throws VerificationException, PrunedException {
@@ -345,6 +379,17 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
+    /**
+     * Checks that the block is internally valid: its hash is lower than its target, its timestamp is sane and, if
+     * contentsImportant is set, that its transactions are well formed and hash to the merkle root. Subclasses that
+     * have already checked a block ahead of time may use the earlier result instead.
+     */
+    protected void verifyBlock(Block block, boolean contentsImportant) throws VerificationException {
+        block.verifyHeader();
+        if (contentsImportant)
+            block.verifyTransactions();
+    }
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
@@ -355,7 +400,8 @@ public abstract class AbstractBlockChain {
             throws BlockStoreException, VerificationException, PrunedException {
         lock.lock();
         try {
-            // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
+            // Only writers take the lock: readers of the chain head and the orphans don't, so they stay fast whilst
+            // blocks are being added during chain download.
             if (System.currentTimeMillis() - statsLastTime > 1000) {
                 // More than a second passed since last stats logging.
                 if (statsBlocksAdded > 1)
@@ -363,14 +409,16 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
             if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
                 return false;
             }
+            if (pendingValidationBlocks.containsKey(block.getHash())) {
+                return true;
+            }
 
             // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
             if (shouldVerifyTransactions() && block.transactions == null)
@@ -395,9 +443,7 @@ public abstract class AbstractBlockChain {
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
             try {
-                block.verifyHeader();
-                if (contentsImportant)
-                    block.verifyTransactions();
+                verifyBlock(block, contentsImportant);
             } catch (VerificationException e) {
                 log.error("Failed to verify block: ", e);
                 log.error(block.getHashAsString());
@@ -408,33 +454,36 @@ public abstract class AbstractBlockChain {
             StoredBlock storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
 
             if (storedPrev == null) {
+                if (pendingValidationBlocks.containsKey(block.getPrevBlockHash())) {
+                    // It builds on a block that is still waiting for its hash to be validated, so it waits too.
+                    pendingValidationBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                    scheduleHashValidation();
+                    return true;
+                }
                 // We can't find the previous block. Probably we are still in the process of downloading the chain and a
                 // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-            	
-            	// Determine if centrally trusted hash
-                // Wait a while for the server if the block is less than three hours old
-    		    try {
-			    if (validHashStore != null && !validHashStore.isValidHash(block.getHash(), this, block.getTimeSeconds() > Utils.currentTimeSeconds() - 60*60*3)) {
-			       throw new VerificationException("Invalid hash received");
-			    }
-		    } catch (IOException e) {
-			    log.error("IO Error when determining valid hashes: ", e);
-			    return false;
-		    }
-            	
+
+                // Determine if centrally trusted hash. If it isn't known yet, park the block and fetch the hashes in
+                // the background rather than blocking everybody else on the network.
+                if (validHashStore != null && !validHashStore.isKnownValidHash(block.getHash())) {
+                    pendingValidationBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                    scheduleHashValidation();
+                    return true;
+                }
+
                 checkDifficultyTransitions(storedPrev, block);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -443,6 +492,125 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Starts a background synchronisation with the trusted servers, unless one is already scheduled. The pending blocks
+     * are connected, or rejected, once it completes.
+     */
+    private void scheduleHashValidation() {
+        checkState(lock.isHeldByCurrentThread());
+        if (validationScheduled)
+            return;
+        validationScheduled = true;
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Only blocks parked before the synchronisation starts can be rejected if the server doesn't know them.
+                Set<Sha256Hash> round;
+                boolean waitForServer = false;
+                lock.lock();
+                try {
+                    round = new HashSet<Sha256Hash>(pendingValidationBlocks.keySet());
+                    // Wait a while for the server if a block is less than three hours old
+                    for (OrphanBlock pending : pendingValidationBlocks.values())
+                        waitForServer |= pending.block.getTimeSeconds() > Utils.currentTimeSeconds() - 60*60*3;
+                } finally {
+                    lock.unlock();
+                }
+                boolean failed = true;
+                try {
+                    boolean synced = true;
+                    try {
+                        validHashStore.synchronise(AbstractBlockChain.this, waitForServer);
+                    } catch (IOException e) {
+                        log.error("IO Error when determining valid hashes: ", e);
+                        synced = false;
+                    }
+                    lock.lock();
+                    try {
+                        connectPendingValidationBlocks(round, synced);
+                    } finally {
+                        lock.unlock();
+                    }
+                    failed = false;
+                } catch (RuntimeException e) {
+                    // The blocks not yet dealt with stay parked, for the round the next block schedules.
+                    log.error("Failed to validate pending blocks", e);
+                } finally {
+                    lock.lock();
+                    try {
+                        validationScheduled = false;
+                        // Blocks parked whilst this round was running get one of their own.
+                        if (!failed && !pendingValidationBlocks.isEmpty())
+                            scheduleHashValidation();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Connects the blocks that were waiting for their hashes to be validated. Blocks in round that are still unknown
+     * after synchronising are rejected along with any blocks building on them; blocks parked after the
+     * synchronisation started are given another round. Each block is only unparked as it is dealt with, so if this
+     * throws the rest are still waiting.
+     */
+    private void connectPendingValidationBlocks(Set<Sha256Hash> round, boolean synced) {
+        checkState(lock.isHeldByCurrentThread());
+        List<OrphanBlock> blocks = new ArrayList<OrphanBlock>(pendingValidationBlocks.values());
+        Set<Sha256Hash> rejected = new HashSet<Sha256Hash>();
+        for (OrphanBlock pending : blocks) {
+            Block block = pending.block;
+            Sha256Hash hash = block.getHash();
+            pendingValidationBlocks.remove(hash);
+            if (rejected.contains(block.getPrevBlockHash())) {
+                rejected.add(hash);
+                continue;
+            }
+            if (round.contains(hash) && !validHashStore.isKnownValidHash(hash)) {
+                if (synced)
+                    log.error("Invalid hash received: {}", hash);
+                else
+                    log.warn("Could not validate block {}, discarding it", hash);
+                rejected.add(hash);
+                continue;
+            }
+            // Either the hash is now known, or the block arrived too late for this round and is parked again.
+            try {
+                add(block, true, pending.filteredTxHashes, pending.filteredTxn);
+            } catch (VerificationException e) {
+                try {
+                    notSettingChainHead();
+                } catch (BlockStoreException e1) {
+                    throw new RuntimeException(e1);
+                }
+                log.warn("Block verification failed for validated block {}", hash, e);
+                rejected.add(hash);
+            } catch (BlockStoreException e) {
+                // There is no caller to propagate this to on the background thread.
+                log.error("Block store failure whilst connecting validated block {}", hash, e);
+                rejected.add(hash);
+            } catch (PrunedException e) {
+                log.error("Could not connect validated block {}", hash, e);
+                rejected.add(hash);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blocks that are waiting for the trusted servers to confirm their hashes before they are
+     * connected.
+     */
+    public int getPendingValidationCount() {
+        lock.lock();
+        try {
+            return pendingValidationBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -453,6 +621,9 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrev.clear();
+            orphanArrivalOrder.clear();
+            orphanBytes = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -803,48 +974,107 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
+        heightIndex.setHead(chainHead);
+        this.chainHead = chainHead;
+    }
+
+    private void addOrphan(OrphanBlock orphan) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = orphan.block.getHash();
+        orphanBlocks.put(hash, orphan);
+        orphanBlocksByPrev.put(orphan.block.getPrevBlockHash(), orphan);
+        orphanArrivalOrder.add(hash);
+        orphanBytes += orphan.size;
+        // Keep within the budget by throwing away the oldest orphans, but always keep the one that just arrived as it's
+        // the one the peer will build on. Evicted blocks are simply downloaded again if they turn out to be needed.
+        Iterator<Sha256Hash> oldest = orphanArrivalOrder.iterator();
+        while (orphanBytes > maxOrphanBytes && orphanBlocks.size() > 1) {
+            Sha256Hash evict = oldest.next();
+            if (evict.equals(hash))
+                break;
+            oldest.remove();
+            OrphanBlock evicted = orphanBlocks.remove(evict);
+            orphanBlocksByPrev.remove(evicted.block.getPrevBlockHash(), evicted);
+            orphanBytes -= evicted.size;
+            log.info("Evicted orphan block {} to stay within the orphan memory budget", evict);
         }
     }
 
+    private void removeOrphan(OrphanBlock orphan) {
+        Sha256Hash hash = orphan.block.getHash();
+        orphanBlocks.remove(hash);
+        orphanBlocksByPrev.remove(orphan.block.getPrevBlockHash(), orphan);
+        orphanArrivalOrder.remove(hash);
+        orphanBytes -= orphan.size;
+    }
+
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphans that descend from the given newly connected block. The orphans are indexed by the block
+     * they are waiting for, so each one is visited exactly once and parents are always connected before children.
+     * An orphan that fails to verify doesn't stop its siblings connecting; the first such failure is thrown once
+     * the others have been tried.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
+        if (orphanBlocks.isEmpty())
+            return;
+        int blocksConnected = 0;
+        VerificationException failure = null;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            // Each child is only taken out of the index as it is tried, so that if something goes wrong the ones not
+            // yet tried can still connect later.
+            for (OrphanBlock orphanBlock : new ArrayList<OrphanBlock>(orphanBlocksByPrev.get(parents.poll()))) {
+                if (orphanBlocks.get(orphanBlock.block.getHash()) != orphanBlock)
+                    continue;  // Evicted whilst we were connecting its siblings.
+                removeOrphan(orphanBlock);
+                Sha256Hash prevHash = orphanBlock.block.getPrevBlockHash();
+                if (getStoredBlockInCurrentScope(prevHash) == null && !pendingValidationBlocks.containsKey(prevHash)) {
+                    // The parent didn't end up in the chain after all, so this is still an unconnected/orphan block.
+                    log.debug("Orphan {} is not connectable right now", orphanBlock.block.getHash());
+                    addOrphan(orphanBlock);
                     continue;
                 }
-
-                // Otherwise we can connect it now.
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                try {
+                    add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                } catch (VerificationException e) {
+                    // Its descendants are left as orphans, to be evicted in time.
+                    log.warn("Orphan {} failed to connect", orphanBlock.block.getHash());
+                    if (failure == null)
+                        failure = e;
+                    continue;
+                }
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /** Returns the number of orphan blocks currently held. */
+    public int getOrphanCount() {
+        return orphanBlocks.size();
+    }
+
+    /** Returns the approximate number of bytes held by orphan blocks. */
+    public long getOrphanBytes() {
+        return orphanBytes;
+    }
+
+    /**
+     * Sets the approximate number of bytes orphan blocks may hold before the oldest ones are thrown away. Defaults to
+     * {@link #DEFAULT_MAX_ORPHAN_BYTES}.
+     */
+    public void setMaxOrphanBytes(long maxOrphanBytes) {
+        checkArgument(maxOrphanBytes > 0);
+        this.maxOrphanBytes = maxOrphanBytes;
     }
 
     // February 16th 2012
@@ -882,8 +1112,21 @@ public abstract class AbstractBlockChain {
      * amount of cumulative work done.
      */
     public StoredBlock getChainHead() {
-        synchronized (chainHeadLock) {
-            return chainHead;
+        return chainHead;
+    }
+
+    /**
+     * Returns a block locator for the best chain, as sent in getblocks and getheaders messages: the hashes of the top
+     * ten blocks, then of blocks exponentially further apart, down to the genesis block. This lets a peer find where
+     * our chain forked from its own however deep the fork, within the blocks the store still has. Doesn't take the
+     * chain's lock.
+     */
+    public List<Sha256Hash> getBlockLocator() {
+        try {
+            return heightIndex.getLocator(params.getGenesisBlock().getHash());
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
     }
 
@@ -897,29 +1140,21 @@ public abstract class AbstractBlockChain {
      */
     @Nullable
     public Block getOrphanRoot(Sha256Hash from) {
-        lock.lock();
-        try {
-            OrphanBlock cursor = orphanBlocks.get(from);
-            if (cursor == null)
-                return null;
-            OrphanBlock tmp;
-            while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
-                cursor = tmp;
-            }
-            return cursor.block;
-        } finally {
-            lock.unlock();
+        // Doesn't lock. If orphans are connected concurrently we may return one that was just connected, which is
+        // no different to the orphan being connected right after we returned.
+        OrphanBlock cursor = orphanBlocks.get(from);
+        if (cursor == null)
+            return null;
+        OrphanBlock tmp;
+        while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
+            cursor = tmp;
         }
+        return cursor.block;
     }
 
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
-        lock.lock();
-        try {
-            return orphanBlocks.containsKey(block);
-        } finally {
-            lock.unlock();
-        }
+        return orphanBlocks.containsKey(block);
     }
 
     /**
@@ -929,12 +1164,11 @@ public abstract class AbstractBlockChain {
      * through the chain to obtain the right answer).
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
-        }
+        StoredBlock head = chainHead;
+        long offset = height - head.getHeight();
+        long headTime = head.getHeader().getTimeSeconds();
+        long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
@@ -943,7 +1177,12 @@ public abstract class AbstractBlockChain {
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
         final SettableFuture<StoredBlock> result = SettableFuture.create();
-        addListener(new AbstractBlockChainListener() {
+        StoredBlock head = chainHead;
+        if (head.getHeight() >= height) {
+            result.set(head);
+            return result;
+        }
+        BlockChainListener listener = new AbstractBlockChainListener() {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
                 if (block.getHeight() >= height) {
@@ -951,7 +1190,14 @@ public abstract class AbstractBlockChain {
                     result.set(block);
                 }
             }
-        }, Threading.SAME_THREAD);
+        };
+        addListener(listener, Threading.SAME_THREAD);
+        // The chain may have reached the height between checking and registering the listener.
+        head = chainHead;
+        if (head.getHeight() >= height) {
+            removeListener(listener);
+            result.set(head);
+        }
         return result;
     }
 
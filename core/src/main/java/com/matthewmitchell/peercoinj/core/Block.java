@@ -18,6 +18,7 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.script.Script;
 import com.matthewmitchell.peercoinj.script.ScriptBuilder;
+import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -36,9 +37,11 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.matthewmitchell.peercoinj.core.Utils.doubleDigest;
-import static com.matthewmitchell.peercoinj.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Peercoin system.
@@ -75,6 +78,12 @@ public class Block extends Message {
     /** A value for difficultyTarget (nBits) that allows half of all possible hash solutions. Used in unit testing. */
     public static final long EASIEST_DIFFICULTY_TARGET = 0x207fFFFFL;
 
+    /** Number of transactions above which the merkle root is calculated on several threads, by default. */
+    public static final int DEFAULT_PARALLEL_MERKLE_THRESHOLD = 2048;
+    // Leaves per subtree when hashing in parallel. Must be a power of two.
+    private static final int MERKLE_SUBTREE_SIZE = 512;
+    private static volatile int parallelMerkleThreshold = DEFAULT_PARALLEL_MERKLE_THRESHOLD;
+
     // Fields defined as part of the protocol format.
     private long version;
     private Sha256Hash prevBlockHash;
@@ -681,12 +690,15 @@ public class Block extends Message {
         }
     }
 
-    private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+    /**
+     * Sets the number of transactions from which blocks calculate their merkle root on {@link Threading#THREAD_POOL}
+     * rather than on the calling thread. Zero or less disables parallel hashing.
+     */
+    public static void setParallelMerkleThreshold(int transactionCount) {
+        parallelMerkleThreshold = transactionCount;
     }
 
-    private List<byte[]> buildMerkleTree() {
+    private Sha256Hash calculateMerkleRoot() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -695,11 +707,8 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concenation of the two child hashes.
+        // The interior nodes are hashes of the concatenation of the two child hashes.
         //
         // This structure allows the creation of proof that a transaction was included into a block without having to
         // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
@@ -717,28 +726,64 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // The leaves are written into one buffer and each level is hashed over the start of the level below it, see
+        // MerkleHasher. Large blocks are split into subtrees that are hashed on the thread pool.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
+        final int count = transactions.size();
+        final byte[] nodes = new byte[count * MerkleHasher.HASH_SIZE];
+        int threshold = parallelMerkleThreshold;
+        if (threshold <= 0 || count < threshold || count <= MERKLE_SUBTREE_SIZE) {
+            int i = 0;
+            for (Transaction t : transactions)
+                MerkleHasher.putHash(nodes, i++, t.getHash());
+            return MerkleHasher.root(nodes, count);
         }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+        final Transaction[] txs = transactions.toArray(new Transaction[count]);
+        final int subtreeHeight = MerkleHasher.height(MERKLE_SUBTREE_SIZE);
+        final int subtrees = (count + MERKLE_SUBTREE_SIZE - 1) / MERKLE_SUBTREE_SIZE;
+        // Subtrees are claimed one at a time by the pool workers and by this thread, which keeps hashing until there
+        // are none left to claim. So this thread only ever waits for subtrees that are already being hashed, never for
+        // a task still sitting in the pool's queue, and a busy or bounded pool just means this thread does more of the
+        // work itself.
+        final AtomicInteger nextSubtree = new AtomicInteger();
+        final CountDownLatch hashed = new CountDownLatch(subtrees);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int subtree;
+                while ((subtree = nextSubtree.getAndIncrement()) < subtrees) {
+                    int first = subtree * MERKLE_SUBTREE_SIZE;
+                    int last = Math.min(first + MERKLE_SUBTREE_SIZE, count);
+                    try {
+                        for (int i = first; i < last; i++)
+                            MerkleHasher.putHash(nodes, i, txs[i].getHash());
+                        MerkleHasher.reduce(nodes, first, last - first, subtreeHeight);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        hashed.countDown();
+                    }
+                }
             }
-            // Move to the next level.
-            levelOffset += levelSize;
+        };
+        int helpers = Math.min(subtrees, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int i = 0; i < helpers; i++)
+            Threading.THREAD_POOL.execute(worker);
+        worker.run();
+        try {
+            hashed.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
-        return tree;
+        if (failure.get() != null)
+            throw failure.get();
+        // Gather the subtree roots at the start of the buffer and finish the top of the tree.
+        for (int subtree = 1; subtree < subtrees; subtree++)
+            System.arraycopy(nodes, subtree * MERKLE_SUBTREE_SIZE * MerkleHasher.HASH_SIZE,
+                    nodes, subtree * MerkleHasher.HASH_SIZE, MerkleHasher.HASH_SIZE);
+        return MerkleHasher.root(nodes, subtrees);
     }
 
     private void checkTransactions() throws VerificationException {
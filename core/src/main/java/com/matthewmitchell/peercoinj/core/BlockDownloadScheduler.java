@@ -0,0 +1,665 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.store.BlockStoreException;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Fetches the bodies of blocks from several peers at once during chain download, rather than from the download
+ * peer alone, and adds them to the chain in order.</p>
+ *
+ * <p>The download peer still finds out which blocks there are: each batch of hashes it announces in answer to a
+ * getblocks is handed to {@link #addBlockHashes(Peer, List)}, which splits it into windows of consecutive blocks and
+ * asks the next batch of hashes straight away, while the bodies are in flight. In headers-first mode the download
+ * peer is sent getheaders instead, and the headers it answers with are handed to
+ * {@link #addBlockHeaders(Peer, List, boolean)}, which saves the round trip of the inv and carries on in batches of
+ * 2000 rather than 500. Each window is requested from whichever
+ * peer has the fewest outstanding, full or filtered depending on whether the peer was given a Bloom filter. Blocks
+ * arriving out of order wait until the ones before them are in. A window a peer makes no progress on for a while, or
+ * says it doesn't have, is given to another peer.</p>
+ *
+ * <p>{@link PeerGroup} creates one of these when asked to download from more than one peer at a time, see
+ * {@link PeerGroup#setMaxBlockDownloadPeers(int)}.</p>
+ */
+public abstract class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The number of consecutive blocks asked of a peer in one getdata. */
+    public static final int WINDOW_SIZE = 16;
+    // How many windows a peer may be working on at once.
+    private static final int WINDOWS_PER_PEER = 2;
+    // The most block hashes a peer sends in answer to a getblocks.
+    private static final int MAX_INV_BLOCKS = 500;
+    // How many blocks may be queued ahead of the chain head before more hashes are asked for.
+    private static final int MAX_QUEUED_BLOCKS = 2 * HeadersMessage.MAX_HEADERS;
+    // How many times a block may fail to verify before the download is abandoned.
+    private static final int MAX_FAILURES = 3;
+    // How long a peer may go without delivering any block of a window it was given before it counts as stalled.
+    static long stallTimeoutMillis = 20 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("blockDownloadScheduler");
+    private final AbstractBlockChain chain;
+    private final List<Wallet> wallets;
+    private final int maxPeers;
+    private final boolean headersFirst;
+
+    // Consecutive blocks which are requested from a single peer together.
+    private static class Window {
+        final List<Sha256Hash> hashes;
+        final Message[] blocks;
+        final Peer[] sources;
+        // How many of the blocks have arrived, and how many of those have been added to the chain.
+        int arrived, added;
+        // The peer the missing blocks were last asked of, or null if they still need asking.
+        @Nullable Peer peer;
+        long deadline;
+        int failures;
+        boolean discarded;
+
+        Window(List<Sha256Hash> hashes) {
+            this.hashes = hashes;
+            blocks = new Message[hashes.size()];
+            sources = new Peer[hashes.size()];
+        }
+
+        List<Sha256Hash> missing() {
+            List<Sha256Hash> missing = new ArrayList<Sha256Hash>();
+            for (int i = added; i < blocks.length; i++) {
+                if (blocks[i] == null)
+                    missing.add(hashes.get(i));
+            }
+            return missing;
+        }
+    }
+
+    @GuardedBy("lock") private final LinkedList<Window> windows = new LinkedList<Window>();
+    @GuardedBy("lock") private final Set<Sha256Hash> queued = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private final Map<Peer, Integer> outstanding = new HashMap<Peer, Integer>();
+    @GuardedBy("lock") private final Set<Peer> stalled = new HashSet<Peer>();
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    // The hash the next getblocks carries on from, whether there are likely more blocks after it, and how many the
+    // last batch had.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHash;
+    @GuardedBy("lock") private int batchSize;
+    @GuardedBy("lock") private boolean moreHashes, hashesRequested;
+    @GuardedBy("lock") private boolean awaitingFilter, draining;
+
+    /**
+     * @param wallets the wallets that check filtered blocks for Bloom filter exhaustion
+     * @param maxPeers how many peers blocks may be fetched from at once
+     */
+    public BlockDownloadScheduler(AbstractBlockChain chain, List<Wallet> wallets, int maxPeers) {
+        this(chain, wallets, maxPeers, false);
+    }
+
+    /**
+     * @param wallets the wallets that check filtered blocks for Bloom filter exhaustion
+     * @param maxPeers how many peers blocks may be fetched from at once
+     * @param headersFirst whether the download peer is asked for headers rather than inventories of blocks
+     */
+    public BlockDownloadScheduler(AbstractBlockChain chain, List<Wallet> wallets, int maxPeers, boolean headersFirst) {
+        checkArgument(maxPeers > 0);
+        this.chain = checkNotNull(chain);
+        this.wallets = checkNotNull(wallets);
+        this.maxPeers = maxPeers;
+        this.headersFirst = headersFirst;
+    }
+
+    /**
+     * Returns the connected peers that blocks may be fetched from. Called with the scheduler's lock held, so must not
+     * take any locks that are held while calling into the scheduler.
+     */
+    protected abstract List<Peer> getPeers();
+
+    /** Asks the peer for the given blocks, returning a future for each that completes when it arrives. */
+    protected List<ListenableFuture<Message>> requestBlocks(Peer peer, List<Sha256Hash> hashes) {
+        return peer.getBlocks(hashes);
+    }
+
+    /**
+     * Asks the download peer for the hashes of the blocks after the given one, or after the chain head if null. In
+     * headers-first mode the answer should be handed to {@link #addBlockHeaders(Peer, List, boolean)}.
+     */
+    protected void requestHashes(Peer peer, @Nullable Sha256Hash after) {
+        peer.getBlocksAfter(after);
+    }
+
+    /** Called once a block has been added to the chain, to report progress. */
+    protected void blockAdded(Peer downloadPeer, Block header) {
+        downloadPeer.invokeOnBlocksDownloaded(header);
+    }
+
+    /** Called when a peer sent a block that doesn't verify. */
+    protected void misbehaved(Peer peer) {
+        peer.close();
+    }
+
+    /** Sets the peer which announces the hashes of the blocks to fetch. */
+    public void setDownloadPeer(@Nullable Peer peer) {
+        lock.lock();
+        try {
+            downloadPeer = peer;
+            hashesRequested = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the download peer is asked for headers rather than inventories of blocks. */
+    public boolean isHeadersFirst() {
+        return headersFirst;
+    }
+
+    /** Returns true while blocks are queued for download. */
+    public boolean isDownloading() {
+        lock.lock();
+        try {
+            return !windows.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the given blocks, announced by the download peer in answer to a getblocks, for download. Hashes already
+     * queued or in the chain are skipped.
+     */
+    public void addBlockHashes(Peer from, List<Sha256Hash> hashes) {
+        addBlockHashes(from, hashes, hashes.size() >= MAX_INV_BLOCKS);
+    }
+
+    /**
+     * Queues the blocks of the given headers, sent by the download peer in answer to a getheaders, for download. The
+     * headers must follow on from one another. If more is true, the headers after the last are asked for once the
+     * queue has room for them.
+     *
+     * @throws VerificationException if the headers don't follow on from one another or are invalid
+     */
+    public void addBlockHeaders(Peer from, List<Block> headers, boolean more) throws VerificationException {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(headers.size());
+        Sha256Hash prev = null;
+        for (Block header : headers) {
+            if (prev != null && !prev.equals(header.getPrevBlockHash()))
+                throw new VerificationException("Headers do not follow on from one another at " + header.getHashAsString());
+            header.verifyHeader();
+            prev = header.getHash();
+            hashes.add(prev);
+        }
+        addBlockHashes(from, hashes, more);
+    }
+
+    private void addBlockHashes(Peer from, List<Sha256Hash> hashes, boolean more) {
+        if (hashes.isEmpty())
+            return;
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            if (from != downloadPeer)
+                return;
+            hashesRequested = false;
+            Sha256Hash last = hashes.get(hashes.size() - 1);
+            // Getting hashes we already queued means the peer was asked from further back, eg by a new download peer
+            // starting from the chain head, so carry on from where we were.
+            if (!queued.contains(last))
+                lastHash = last;
+            moreHashes = more;
+            batchSize = hashes.size();
+            List<Sha256Hash> fresh = new ArrayList<Sha256Hash>(hashes.size());
+            for (Sha256Hash hash : hashes) {
+                if (!queued.contains(hash) && chain.getBlockStore().get(hash) == null)
+                    fresh.add(hash);
+            }
+            for (int i = 0; i < fresh.size(); i += WINDOW_SIZE)
+                windows.add(new Window(fresh.subList(i, Math.min(i + WINDOW_SIZE, fresh.size()))));
+            queued.addAll(fresh);
+            if (!fresh.isEmpty())
+                log.info("Queued {} blocks for download, {} in total", fresh.size(), queued.size());
+            actions = scheduleLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+    }
+
+    /** Asks other peers for the blocks a peer stopped delivering. Called periodically. */
+    public void checkStalls() {
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Window window : windows) {
+                if (window.peer != null && window.deadline <= now) {
+                    log.info("{}: Stalled downloading blocks, asking another peer", window.peer);
+                    stalled.add(window.peer);
+                    releaseLocked(window);
+                }
+            }
+            actions = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+    }
+
+    /** Gives the blocks a disconnected peer was fetching to other peers. */
+    public void peerDisconnected(Peer peer) {
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            for (Window window : windows) {
+                if (window.peer == peer)
+                    releaseLocked(window);
+            }
+            outstanding.remove(peer);
+            stalled.remove(peer);
+            if (peer == downloadPeer) {
+                downloadPeer = null;
+                hashesRequested = false;
+            }
+            actions = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+    }
+
+    /**
+     * Carries on after a filtered block exhausted a wallet's Bloom filter, once peers have been sent the new one. The
+     * blocks after the exhausted one are asked for again.
+     */
+    public void filterUpdated() {
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            if (!awaitingFilter)
+                return;
+            awaitingFilter = false;
+            actions = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+    }
+
+    /** Forgets all queued blocks. */
+    public void reset() {
+        lock.lock();
+        try {
+            resetLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void resetLocked() {
+        for (Window window : windows)
+            window.discarded = true;
+        windows.clear();
+        queued.clear();
+        outstanding.clear();
+        stalled.clear();
+        lastHash = null;
+        batchSize = 0;
+        moreHashes = false;
+        hashesRequested = false;
+        awaitingFilter = false;
+    }
+
+    @GuardedBy("lock")
+    private void releaseLocked(Window window) {
+        Peer peer = checkNotNull(window.peer);
+        Integer count = outstanding.get(peer);
+        if (count != null) {
+            if (count <= 1)
+                outstanding.remove(peer);
+            else
+                outstanding.put(peer, count - 1);
+        }
+        window.peer = null;
+    }
+
+    // Returns the peers windows may be given to, those already busy first.
+    @GuardedBy("lock")
+    private List<Peer> candidatesLocked() {
+        List<Peer> peers = getPeers();
+        List<Peer> candidates = new ArrayList<Peer>(peers.size());
+        for (Peer peer : peers) {
+            if (outstanding.containsKey(peer))
+                candidates.add(peer);
+        }
+        for (Peer peer : peers) {
+            if (!outstanding.containsKey(peer) && !stalled.contains(peer))
+                candidates.add(peer);
+        }
+        if (candidates.isEmpty() && !stalled.isEmpty()) {
+            // Every peer stalled at some point. Give them another chance rather than giving up.
+            stalled.clear();
+            candidates.addAll(peers);
+        }
+        return candidates.size() > maxPeers ? candidates.subList(0, maxPeers) : candidates;
+    }
+
+    // Assigns windows that need asking for to peers, and asks for more hashes if the queue is running low. Returns the
+    // requests to make once the lock is released.
+    @GuardedBy("lock")
+    private List<Runnable> scheduleLocked() {
+        List<Runnable> actions = new ArrayList<Runnable>();
+        final Peer hashPeer = downloadPeer;
+        if (hashPeer != null && moreHashes && !hashesRequested && queued.size() + batchSize <= MAX_QUEUED_BLOCKS) {
+            hashesRequested = true;
+            final Sha256Hash after = lastHash;
+            actions.add(new Runnable() {
+                @Override
+                public void run() {
+                    requestHashes(hashPeer, after);
+                }
+            });
+        }
+        if (awaitingFilter || windows.isEmpty())
+            return actions;
+        List<Peer> candidates = candidatesLocked();
+        long deadline = Utils.currentTimeMillis() + stallTimeoutMillis;
+        for (final Window window : windows) {
+            if (window.peer != null || window.arrived == window.blocks.length)
+                continue;
+            Peer best = null;
+            int bestCount = WINDOWS_PER_PEER;
+            for (Peer peer : candidates) {
+                Integer count = outstanding.get(peer);
+                int c = count == null ? 0 : count;
+                if (c < bestCount) {
+                    best = peer;
+                    bestCount = c;
+                }
+            }
+            if (best == null)
+                break; // Everyone is busy
+            final Peer peer = best;
+            outstanding.put(peer, bestCount + 1);
+            window.peer = peer;
+            window.deadline = deadline;
+            final List<Sha256Hash> missing = window.missing();
+            actions.add(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(peer, window, missing);
+                }
+            });
+        }
+        return actions;
+    }
+
+    private void run(List<Runnable> actions) {
+        checkState(!lock.isHeldByCurrentThread());
+        for (Runnable action : actions)
+            action.run();
+    }
+
+    private void fetch(final Peer peer, final Window window, List<Sha256Hash> hashes) {
+        List<ListenableFuture<Message>> futures;
+        try {
+            futures = requestBlocks(peer, hashes);
+        } catch (Exception e) {
+            // Most likely the peer disconnected, which gives its windows to others. If not, it will time out.
+            log.warn("{}: Failed to request blocks: {}", peer, e.toString());
+            return;
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            final Sha256Hash hash = hashes.get(i);
+            Futures.addCallback(futures.get(i), new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message block) {
+                    arrived(peer, window, hash, block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    notFound(peer, window);
+                }
+            }, Threading.SAME_THREAD);
+        }
+    }
+
+    private void arrived(Peer peer, Window window, Sha256Hash hash, Message block) {
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            stalled.remove(peer);
+            int index = window.hashes.indexOf(hash);
+            if (window.discarded || index < window.added || window.blocks[index] != null)
+                return; // Already got it from another peer
+            window.blocks[index] = block;
+            window.sources[index] = peer;
+            window.arrived++;
+            if (window.peer == peer)
+                window.deadline = Utils.currentTimeMillis() + stallTimeoutMillis;
+            if (window.arrived == window.blocks.length && window.peer != null)
+                releaseLocked(window);
+            actions = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+        drain();
+    }
+
+    private void notFound(Peer peer, Window window) {
+        List<Runnable> actions;
+        lock.lock();
+        try {
+            if (window.discarded || window.peer != peer)
+                return;
+            log.info("{}: Does not have the blocks asked for, asking another peer", peer);
+            stalled.add(peer);
+            releaseLocked(window);
+            actions = scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+        run(actions);
+    }
+
+    // Adds the blocks which are next in line to the chain. Only one thread does this at a time, and never with the
+    // lock held as adding blocks calls out to wallets and listeners.
+    private void drain() {
+        lock.lock();
+        try {
+            if (draining)
+                return; // Whoever is draining will get to the blocks that just arrived too
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+        List<Runnable> actions = Collections.emptyList();
+        try {
+            while (true) {
+                Window window;
+                int index;
+                Message block;
+                Peer notify;
+                lock.lock();
+                try {
+                    window = windows.peekFirst();
+                    if (window == null || awaitingFilter || window.blocks[window.added] == null)
+                        break;
+                    index = window.added;
+                    block = window.blocks[index];
+                    notify = downloadPeer;
+                } finally {
+                    lock.unlock();
+                }
+
+                Block header;
+                boolean connected;
+                try {
+                    if (block instanceof FilteredBlock) {
+                        FilteredBlock filteredBlock = (FilteredBlock) block;
+                        header = filteredBlock.getBlockHeader();
+                        if (checkForFilterExhaustion(filteredBlock)) {
+                            log.info("Bloom filter exhausted whilst processing block {}, discarding", block.getHash());
+                            lock.lock();
+                            try {
+                                discardFromLocked(window, index);
+                            } finally {
+                                lock.unlock();
+                            }
+                            break;
+                        }
+                        connected = chain.add(filteredBlock);
+                    } else {
+                        header = (Block) block;
+                        connected = chain.add(header);
+                    }
+                } catch (VerificationException e) {
+                    log.warn("Block {} failed to verify", block.getHash(), e);
+                    Peer source;
+                    lock.lock();
+                    try {
+                        source = rejectLocked(window, index);
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (source != null)
+                        misbehaved(source);
+                    continue;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+
+                if (!connected) {
+                    // The hashes we were given don't lead on from the chain head, eg because of a re-org. Start over.
+                    log.info("Block {} does not connect to the chain, restarting block download", block.getHash());
+                    lock.lock();
+                    try {
+                        resetLocked();
+                        if (downloadPeer != null) {
+                            final Peer peer = downloadPeer;
+                            hashesRequested = true;
+                            actions = Collections.<Runnable>singletonList(new Runnable() {
+                                @Override
+                                public void run() {
+                                    requestHashes(peer, null);
+                                }
+                            });
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                }
+
+                lock.lock();
+                try {
+                    if (!window.discarded) {
+                        window.blocks[index] = null;
+                        window.sources[index] = null;
+                        window.added++;
+                        if (window.added == window.blocks.length) {
+                            windows.removeFirst();
+                            queued.removeAll(window.hashes);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (notify != null)
+                    blockAdded(notify, header);
+            }
+        } finally {
+            lock.lock();
+            try {
+                draining = false;
+                if (actions.isEmpty())
+                    actions = scheduleLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+        run(actions);
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    // Drops the block which didn't verify so that it is asked for again, most likely from another peer, and returns the
+    // peer that sent it.
+    @Nullable
+    @GuardedBy("lock")
+    private Peer rejectLocked(Window window, int index) {
+        if (window.discarded)
+            return null;
+        Peer source = window.sources[index];
+        window.blocks[index] = null;
+        window.sources[index] = null;
+        window.arrived--;
+        if (++window.failures > MAX_FAILURES) {
+            log.error("Giving up on downloading blocks from several peers after {} failed to verify", window.failures);
+            resetLocked();
+            return source;
+        }
+        if (source != null) {
+            stalled.add(source);
+            if (window.peer == source)
+                releaseLocked(window);
+        }
+        return source;
+    }
+
+    // Throws away the blocks from the given one on, which were filtered with an exhausted filter, until the new filter
+    // has been sent.
+    @GuardedBy("lock")
+    private void discardFromLocked(Window first, int index) {
+        if (first.discarded)
+            return;
+        awaitingFilter = true;
+        for (Window window : windows) {
+            int from = window == first ? index : 0;
+            for (int i = from; i < window.blocks.length; i++) {
+                if (window.blocks[i] != null) {
+                    window.blocks[i] = null;
+                    window.sources[i] = null;
+                    window.arrived--;
+                }
+            }
+            if (window.peer != null)
+                releaseLocked(window);
+        }
+    }
+}
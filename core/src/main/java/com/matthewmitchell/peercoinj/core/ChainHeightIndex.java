@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.store.BlockStore;
+import com.matthewmitchell.peercoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Maps heights to the hashes of the blocks at those heights on the best chain, so that block locators can be built
+ * without walking the chain back from the head every time.</p>
+ *
+ * <p>Every height near the head is kept, and below that only every {@link #SPARSE_INTERVAL}th, which is all a locator
+ * needs once its steps are that large. Heights are filled in lazily by walking back from the nearest indexed block
+ * above, so the first locator costs one walk down the stored chain and later ones a few lookups. Changes of the chain
+ * head only walk back as far as the index disagrees with the new chain, ie the depth of a re-org.</p>
+ *
+ * <p>Thread safe. Only takes its own lock, and reads from the block store whilst holding it.</p>
+ */
+class ChainHeightIndex {
+    // How far below the head every height is kept.
+    static final int DENSE_BLOCKS = 1024;
+    // Below that, the heights which are multiples of this are kept.
+    static final int SPARSE_INTERVAL = 256;
+    // How many of the locator's hashes are for consecutive blocks before the steps start doubling.
+    private static final int LOCATOR_DENSE_HASHES = 10;
+
+    private final BlockStore store;
+    private final TreeMap<Integer, Sha256Hash> hashes = new TreeMap<Integer, Sha256Hash>();
+    private int headHeight;
+
+    ChainHeightIndex(BlockStore store, StoredBlock head) throws BlockStoreException {
+        this.store = store;
+        setHead(head);
+    }
+
+    private boolean keep(int height) {
+        return height >= headHeight - DENSE_BLOCKS || height % SPARSE_INTERVAL == 0;
+    }
+
+    /** Updates the index for a new chain head. Called whenever the chain head changes, including by a re-org. */
+    synchronized void setHead(StoredBlock head) throws BlockStoreException {
+        int oldHeadHeight = headHeight;
+        headHeight = head.getHeight();
+        hashes.tailMap(headHeight, false).clear();
+        // Walk back until the new chain meets the indexed one, replacing whatever blocks it replaced.
+        StoredBlock cursor = head;
+        while (true) {
+            int height = cursor.getHeight();
+            hashes.put(height, cursor.getHeader().getHash());
+            Map.Entry<Integer, Sha256Hash> below = hashes.lowerEntry(height);
+            if (below == null)
+                break;
+            if (below.getKey() == height - 1 && below.getValue().equals(cursor.getHeader().getPrevBlockHash()))
+                break;
+            cursor = cursor.getPrev(store);
+            if (cursor == null) {
+                // The store doesn't go back that far, so nothing further down can be checked against the new chain.
+                hashes.headMap(height).clear();
+                break;
+            }
+        }
+        // Thin out the heights which just dropped out of the dense range.
+        if (headHeight > oldHeadHeight) {
+            int from = Math.max(0, oldHeadHeight - DENSE_BLOCKS);
+            int to = headHeight - DENSE_BLOCKS;
+            if (from < to) {
+                for (Integer height : new ArrayList<Integer>(hashes.subMap(from, to).keySet())) {
+                    if (height % SPARSE_INTERVAL != 0)
+                        hashes.remove(height);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of the block at the given height on the best chain, or null if it is above the head or the
+     * store no longer has the blocks that far back.
+     */
+    @Nullable
+    synchronized Sha256Hash get(int height) throws BlockStoreException {
+        if (height < 0 || height > headHeight)
+            return null;
+        Sha256Hash hash = hashes.get(height);
+        if (hash != null)
+            return hash;
+        StoredBlock cursor = store.get(hashes.higherEntry(height).getValue());
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = cursor.getPrev(store);
+            if (cursor != null && keep(cursor.getHeight()))
+                hashes.put(cursor.getHeight(), cursor.getHeader().getHash());
+        }
+        return cursor == null ? null : cursor.getHeader().getHash();
+    }
+
+    /**
+     * Returns a block locator for the best chain: the hashes of the top ten blocks, then of blocks at exponentially
+     * growing distances below, ending in the genesis block. See
+     * <a href="https://en.bitcoin.it/wiki/Protocol_specification#getblocks">the protocol specification</a>.
+     */
+    synchronized List<Sha256Hash> getLocator(Sha256Hash genesisHash) throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(32);
+        int height = headHeight;
+        int step = 1;
+        while (height > 0) {
+            Sha256Hash hash = get(height);
+            if (hash == null)
+                break;
+            locator.add(hash);
+            if (locator.size() >= LOCATOR_DENSE_HASHES)
+                step *= 2;
+            height -= step;
+            // Land on the heights kept below the dense range.
+            if (step >= SPARSE_INTERVAL && height > 0)
+                height -= height % SPARSE_INTERVAL;
+        }
+        locator.add(genesisHash);
+        return locator;
+    }
+}
@@ -22,6 +22,8 @@ import com.matthewmitchell.peercoinj.script.Script.VerifyFlag;
 import com.matthewmitchell.peercoinj.store.BlockStoreException;
 import com.matthewmitchell.peercoinj.store.FullPrunedBlockStore;
 import com.matthewmitchell.peercoinj.store.ValidHashStore;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.base.Throwables;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,12 +31,16 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -54,6 +60,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // How many blocks addAll works on ahead of the one being connected, and the blocks it is working on.
+    private volatile int pipelineDepth = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final Map<Sha256Hash, PrefetchedBlock> prefetchedBlocks = new ConcurrentHashMap<Sha256Hash, PrefetchedBlock>();
+
+    // Counts the batches committed to the store, so that prefetched outputs can be checked against the outputs
+    // spent since they were read. recentlySpent holds the outputs spent by the most recent batches, newest last,
+    // and pendingSpent those spent by the batch in progress. A batch that disconnected blocks may have removed any
+    // output, so everything read before it was committed is thrown away.
+    private static final int MAX_RECENTLY_SPENT = 64;
+    private volatile long committedSequence;
+    private long invalidatedSequence;
+    private final LinkedList<Set<StoredTransactionOutput>> recentlySpent = new LinkedList<Set<StoredTransactionOutput>>();
+    private Set<StoredTransactionOutput> pendingSpent = new HashSet<StoredTransactionOutput>();
+    private boolean pendingDisconnect;
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -81,6 +102,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        heightIndex.setHead(chainHead);
     }
 
     @Override
@@ -120,6 +142,156 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
+    /**
+     * Sets how many blocks {@link #addAll(Iterable)} checks and reads spent outputs for ahead of the block it is
+     * connecting. Defaults to the number of processors.
+     */
+    public void setPipelineDepth(int depth) {
+        checkArgument(depth > 0);
+        this.pipelineDepth = depth;
+    }
+
+    /**
+     * <p>Adds the given blocks to the chain in order, as if by calling {@link #add(Block)} for each of them, but
+     * prefetches for the blocks ahead. While one block is being connected, the blocks that follow it are checked on
+     * their own (proof of work, merkle root, transaction structure) and have the outputs they spend read from the
+     * block store on {@link Threading#THREAD_POOL}. Only that work is overlapped.</p>
+     *
+     * <p>Connecting a block, which includes checking its scripts and committing its batch to the store, is still done
+     * one block at a time on the calling thread. The scripts of a block's transactions are checked in parallel with
+     * each other, but not with the commit of the block before. The stores tie a batch to the thread that began it, and
+     * each block's batch reads what the block before it wrote. So a block that fails verification is rolled back
+     * exactly as it would be by {@link #add(Block)}. Work already started for the blocks after it is thrown away.</p>
+     *
+     * @throws VerificationException if a block fails verification. The blocks before it have been added.
+     */
+    public void addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        Iterator<Block> iterator = blocks.iterator();
+        LinkedList<PrefetchedBlock> pipeline = new LinkedList<PrefetchedBlock>();
+        try {
+            while (true) {
+                while (pipeline.size() < pipelineDepth && iterator.hasNext())
+                    pipeline.add(prefetch(iterator.next()));
+                if (pipeline.isEmpty())
+                    break;
+                PrefetchedBlock next = pipeline.removeFirst();
+                try {
+                    // Wait outside of the chain lock, so we don't hold up anybody else in the meantime.
+                    next.await();
+                    add(next.block);
+                } finally {
+                    prefetchedBlocks.remove(next.hash);
+                }
+            }
+        } finally {
+            for (PrefetchedBlock prefetched : pipeline) {
+                prefetched.task.cancel(false);
+                prefetchedBlocks.remove(prefetched.hash);
+            }
+        }
+    }
+
+    private PrefetchedBlock prefetch(Block block) {
+        PrefetchedBlock prefetched = new PrefetchedBlock(block);
+        prefetchedBlocks.put(prefetched.hash, prefetched);
+        Threading.THREAD_POOL.execute(prefetched.task);
+        return prefetched;
+    }
+
+    /**
+     * The work done for a block ahead of it being connected. The outputs its inputs spend are read from whatever
+     * was committed to the store at the time, so when the block gets connected we only trust those that no block
+     * committed since has spent.
+     */
+    private class PrefetchedBlock implements Callable<VerificationException> {
+        final Block block;
+        final Sha256Hash hash;
+        final FutureTask<VerificationException> task;
+        // Written by the task, and only read after waiting for it.
+        long sequence;
+        @Nullable StoredTransactionOutput[][] outputs;
+
+        PrefetchedBlock(Block block) {
+            this.block = block;
+            // Calculated here so the hash isn't raced for by the task and the chain.
+            this.hash = block.getHash();
+            this.task = new FutureTask<VerificationException>(this);
+        }
+
+        @Nullable
+        @Override
+        public VerificationException call() {
+            try {
+                block.verify();
+            } catch (VerificationException e) {
+                return e;
+            }
+            // Must be read before the store is.
+            sequence = committedSequence;
+            try {
+                List<Transaction> transactions = block.getTransactions();
+                StoredTransactionOutput[][] result = new StoredTransactionOutput[transactions.size()][];
+                for (int i = 0; i < result.length; i++) {
+                    Transaction tx = transactions.get(i);
+                    if (tx.isCoinBase())
+                        continue;
+                    List<TransactionInput> inputs = tx.getInputs();
+                    result[i] = new StoredTransactionOutput[inputs.size()];
+                    for (int index = 0; index < inputs.size(); index++) {
+                        TransactionOutPoint outpoint = inputs.get(index).getOutpoint();
+                        result[i][index] = blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                    }
+                }
+                outputs = result;
+            } catch (BlockStoreException e) {
+                // The outputs are read again when the block gets connected, which will report the problem if it lasts.
+                log.warn("Failed to prefetch outputs for block {}", hash, e);
+            }
+            return null;
+        }
+
+        /** Runs the task on this thread if no other thread has started it yet, then waits for it. */
+        @Nullable
+        VerificationException await() {
+            task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        /** Returns the prefetched output for the given input, or null if it has to be read from the store. */
+        @Nullable
+        StoredTransactionOutput getOutput(int txIndex, int inputIndex) {
+            if (outputs == null || outputs[txIndex] == null || sequence < invalidatedSequence
+                    || committedSequence - sequence > recentlySpent.size())
+                return null;
+            StoredTransactionOutput output = outputs[txIndex][inputIndex];
+            if (output == null || pendingSpent.contains(output))
+                return null;
+            Iterator<Set<StoredTransactionOutput>> it = recentlySpent.descendingIterator();
+            for (long i = sequence; i < committedSequence; i++)
+                if (it.next().contains(output))
+                    return null;
+            return output;
+        }
+    }
+
+    @Override
+    protected void verifyBlock(Block block, boolean contentsImportant) throws VerificationException {
+        PrefetchedBlock prefetched = prefetchedBlocks.get(block.getHash());
+        if (prefetched == null || prefetched.block != block) {
+            super.verifyBlock(block, contentsImportant);
+            return;
+        }
+        VerificationException e = prefetched.await();
+        if (e != null)
+            throw e;
+    }
+
     //TODO: Remove lots of duplicated code in the two connectTransactions
     
     // TODO: execute in order of largest transaction (by input count) first
@@ -187,6 +359,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            PrefetchedBlock prefetched = prefetchedBlocks.get(block.getHash());
+            if (prefetched != null && prefetched.block != block)
+                prefetched = null;
+            int txIndex = 0;
             for (final Transaction tx : block.transactions) {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
@@ -197,8 +373,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = prefetched == null ? null : prefetched.getOutput(txIndex, index);
+                        if (prevOut == null)
+                            prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                                                      in.getOutpoint().getIndex());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -221,8 +399,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
+                        pendingSpent.add(prevOut);
                     }
                 }
+                txIndex++;
                 Sha256Hash hash = tx.getHash();
                 for (TransactionOutput out : tx.getOutputs()) {
                     valueOut = valueOut.add(out.getValue());
@@ -403,6 +583,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        pendingDisconnect = true;
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -426,11 +607,28 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        recentlySpent.addLast(pendingSpent);
+        if (recentlySpent.size() > MAX_RECENTLY_SPENT)
+            recentlySpent.removeFirst();
+        pendingSpent = new HashSet<StoredTransactionOutput>();
+        // Only once the batch is visible to readers, see PrefetchedBlock.
+        committedSequence++;
+        if (pendingDisconnect)
+            invalidatedSequence = committedSequence;
+        pendingDisconnect = false;
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
         blockStore.abortDatabaseBatchWrite();
+        // Callers don't necessarily hold the lock here.
+        lock.lock();
+        try {
+            pendingSpent.clear();
+            pendingDisconnect = false;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import java.util.List;
+
+/**
+ * <p>Computes merkle tree nodes in place. Nodes are kept back to back in a single byte array, 32 bytes each, in the
+ * little endian order they are hashed in, and every level of the tree overwrites the front of the level below it.
+ * Apart from that one buffer nothing is allocated while hashing.</p>
+ *
+ * <p>Whenever a level has an odd number of nodes the last node is paired with itself, as in the reference
+ * client.</p>
+ */
+final class MerkleHasher {
+    static final int HASH_SIZE = 32;
+
+    private MerkleHasher() {
+    }
+
+    /** Writes the given hash into the node buffer at the given node index. */
+    static void putHash(byte[] nodes, int index, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = index * HASH_SIZE;
+        for (int i = 0; i < HASH_SIZE; i++)
+            nodes[offset + i] = bytes[HASH_SIZE - 1 - i];
+    }
+
+    /** Returns the node at the given node index as a hash. */
+    static Sha256Hash getHash(byte[] nodes, int index) {
+        byte[] bytes = new byte[HASH_SIZE];
+        int offset = index * HASH_SIZE;
+        for (int i = 0; i < HASH_SIZE; i++)
+            bytes[i] = nodes[offset + HASH_SIZE - 1 - i];
+        return new Sha256Hash(bytes);
+    }
+
+    /**
+     * Replaces the count nodes starting at node index first with the nodes the given number of levels above them.
+     * A lone node is paired with itself, so this also gives the right result for the last, partial subtree of a
+     * larger tree. The result starts at node index first.
+     *
+     * @return the number of nodes left
+     */
+    static int reduce(byte[] nodes, int first, int count, int levels) {
+        int base = first * HASH_SIZE;
+        for (int level = 0; level < levels; level++) {
+            int parents = (count + 1) / 2;
+            for (int i = 0; i < parents; i++) {
+                int left = base + 2 * i * HASH_SIZE;
+                int right = base + Math.min(2 * i + 1, count - 1) * HASH_SIZE;
+                Utils.doubleDigestTwoBuffers(nodes, left, HASH_SIZE, nodes, right, HASH_SIZE, nodes, base + i * HASH_SIZE);
+            }
+            count = parents;
+        }
+        return count;
+    }
+
+    /** Returns the number of levels above the leaves at which a tree of the given width has a single node. */
+    static int height(int count) {
+        int height = 0;
+        while (count > 1) {
+            count = (count + 1) / 2;
+            height++;
+        }
+        return height;
+    }
+
+    /** Reduces the count nodes at the start of the buffer to the root of their tree. */
+    static Sha256Hash root(byte[] nodes, int count) {
+        reduce(nodes, 0, count, height(count));
+        return getHash(nodes, 0);
+    }
+
+    /**
+     * Calculates the node at the given height and position of the tree whose leaves are the given hashes.
+     */
+    static Sha256Hash subtreeHash(List<Sha256Hash> leaves, int height, int pos) {
+        int from = pos << height;
+        int to = Math.min(from + (1 << height), leaves.size());
+        if (height == 0)
+            return leaves.get(from);
+        byte[] nodes = new byte[(to - from) * HASH_SIZE];
+        for (int i = from; i < to; i++)
+            putHash(nodes, i - from, leaves.get(i));
+        reduce(nodes, 0, to - from, height);
+        return getHash(nodes, 0);
+    }
+
+    /** Calculates the parent of two nodes. */
+    static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        byte[] nodes = new byte[2 * HASH_SIZE];
+        putHash(nodes, 0, left);
+        putHash(nodes, 1, right);
+        reduce(nodes, 0, 2, 1);
+        return getHash(nodes, 0);
+    }
+}
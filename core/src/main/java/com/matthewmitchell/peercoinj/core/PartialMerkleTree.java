@@ -150,21 +150,7 @@ public class PartialMerkleTree extends Message {
     }
 
     private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
-        }
-        return combineLeftRight(left.getBytes(), right.getBytes());
+        return MerkleHasher.subtreeHash(hashes, height, pos);
     }
 
     @Override
@@ -201,22 +187,16 @@ public class PartialMerkleTree extends Message {
             return hash;
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes).getBytes(), right;
+            Sha256Hash left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes), right;
             if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1))
-                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes).getBytes();
+                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes);
             else
                 right = left;
             // and combine them before returning
-            return combineLeftRight(left, right);
+            return MerkleHasher.combine(left, right);
         }
     }
 
-    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return new Sha256Hash(reverseBytes(doubleDigestTwoBuffers(
-                reverseBytes(left), 0, 32,
-                reverseBytes(right), 0, 32)));
-    }
-
     /**
      * Extracts tx hashes that are in this merkle tree
      * and returns the merkle root of this tree.
@@ -28,15 +28,16 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.matthewmitchell.peercoinj.net.AbstractTimeoutHandler;
-import com.matthewmitchell.peercoinj.store.BlockStore;
-import com.matthewmitchell.peercoinj.store.BlockStoreException;
 import com.matthewmitchell.peercoinj.utils.ListenerRegistration;
+import com.matthewmitchell.peercoinj.utils.NetworkMetrics;
 import com.matthewmitchell.peercoinj.utils.Threading;
+import java.nio.channels.NotYetConnectedException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import net.jcip.annotations.GuardedBy;
@@ -124,6 +125,15 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // If set, the bodies of the blocks this peer announces during chain download are fetched by the scheduler, from
+    // several peers at once.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
+    // If set, the transactions this peer announces are downloaded through the scheduler, which asks only one of the
+    // peers announcing a transaction for it at a time.
+    @Nullable private volatile TransactionRequestScheduler vTxRequestScheduler;
+    // How well the peer serves us, and when the oldest getdata it hasn't started answering yet was sent, or zero.
+    private final PeerStats stats = new PeerStats();
+    private final AtomicLong getDataSentMillis = new AtomicLong();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -322,8 +332,34 @@ public class Peer extends PeerSocketHandler {
         return versionHandshakeFuture;
     }
 
+    /** Returns the measurements of how well this peer serves us, which {@link PeerGroup} selects download peers by. */
+    public PeerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void sendMessage(Message message) throws NotYetConnectedException {
+        if (message instanceof GetDataMessage) {
+            stats.itemsRequested(((GetDataMessage) message).getItems().size());
+            getDataSentMillis.compareAndSet(0, Utils.currentTimeMillis());
+        }
+        super.sendMessage(message);
+    }
+
     @Override
     protected void processMessage(Message m) throws Exception {
+        stats.messageReceived(m.getMessageSize());
+        if (m instanceof Block || m instanceof FilteredBlock || m instanceof Transaction || m instanceof NotFoundMessage) {
+            long sent = getDataSentMillis.getAndSet(0);
+            if (sent != 0) {
+                long latency = Utils.currentTimeMillis() - sent;
+                stats.responseReceived(latency);
+                NetworkMetrics.get().getDataLatency(getAddress(), latency);
+            }
+            if (!(m instanceof Transaction || m instanceof NotFoundMessage))
+                stats.blockReceived();
+        }
+
         // Allow event listeners to filter the message stream. Listeners are allowed to drop messages by
         // returning null.
         for (ListenerRegistration<PeerEventListener> registration : eventListeners) {
@@ -461,6 +497,16 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        stats.itemsNotFound(m.getItems().size());
+        TransactionRequestScheduler txScheduler = vTxRequestScheduler;
+        if (txScheduler != null) {
+            List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
+            for (InventoryItem item : m.getItems()) {
+                if (item.type == InventoryItem.Type.Transaction)
+                    txHashes.add(item.hash);
+            }
+            txScheduler.notFound(this, txHashes);
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -494,9 +540,15 @@ public class Peer extends PeerSocketHandler {
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
-        // request the full blocks from that point on instead.
+        // request the full blocks from that point on instead. In headers-first mode the headers from that point on
+        // are handed to the scheduler instead, which fetches their blocks.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && !scheduler.isHeadersFirst())
+            scheduler = null;
+        List<Block> headers = m.getBlockHeaders();
+        boolean more = headers.size() >= HeadersMessage.MAX_HEADERS;
 
         lock.lock();
         try {
@@ -512,9 +564,14 @@ public class Peer extends PeerSocketHandler {
         }
 
         try {
-            checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
+            if (downloadBlockBodies) {
+                checkState(scheduler != null, toString());
+                if (vDownloadData)
+                    scheduler.addBlockHeaders(this, headers, more);
+                return;
+            }
+            for (int i = 0; i < headers.size(); i++) {
+                Block header = headers.get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
                 // of the chain - always process the last block as a full/filtered block to kick us out of the
                 // fast catchup mode (in which we ignore new blocks).
@@ -535,11 +592,22 @@ public class Peer extends PeerSocketHandler {
                         // headers that are part of the best chain.
                         throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
                     }
+                } else if (scheduler != null) {
+                    log.info("Passed the fast catchup time, downloading the blocks of the remaining {} headers",
+                            headers.size() - i);
+                    lock.lock();
+                    try {
+                        this.downloadBlockBodies = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    scheduler.addBlockHeaders(this, headers.subList(i, headers.size()), more);
+                    return;
                 } else {
                     lock.lock();
                     try {
                         log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
+                                headers.size() - i);
                         this.downloadBlockBodies = true;
                         // Prevent this request being seen as a duplicate.
                         this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
@@ -552,7 +620,7 @@ public class Peer extends PeerSocketHandler {
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (more) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -589,6 +657,9 @@ public class Peer extends PeerSocketHandler {
     private void processTransaction(Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        TransactionRequestScheduler txScheduler = vTxRequestScheduler;
+        if (txScheduler != null)
+            txScheduler.received(tx.getHash());
         final Transaction fTx;
         lock.lock();
         try {
@@ -909,6 +980,8 @@ public class Peer extends PeerSocketHandler {
     private void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        // Was this block requested by getBlocks()?
+        if (maybeHandleRequestedData(m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1026,7 +1099,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1080,10 +1153,27 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
+        final TransactionRequestScheduler txScheduler = vTxRequestScheduler;
+        List<Sha256Hash> scheduledTxns = null;
         Iterator<InventoryItem> it = transactions.iterator();
         while (it.hasNext()) {
             InventoryItem item = it.next();
-            if (memoryPool == null) {
+            if (txScheduler != null && memoryPool != null) {
+                // As below, only download the transaction if we are the first peer that saw it be advertised. A
+                // transaction another peer is still being asked for goes to the scheduler too though, which asks us
+                // for it if that peer fails to deliver.
+                if (memoryPool.maybeWasSeen(item.hash) && !txScheduler.isInFlight(item.hash)) {
+                    // Already downloaded, or given up on.
+                    it.remove();
+                    memoryPool.seen(item.hash, this.getAddress());
+                } else {
+                    // Marked as seen once the scheduler has it in flight, so that other peers announcing it at the
+                    // same time are recorded as announcers rather than skipped.
+                    if (scheduledTxns == null)
+                        scheduledTxns = new ArrayList<Sha256Hash>(transactions.size());
+                    scheduledTxns.add(item.hash);
+                }
+            } else if (memoryPool == null) {
                 if (downloadData) {
                     // If there's no memory pool only download transactions if we're configured to.
                     getdata.addItem(item);
@@ -1111,9 +1201,24 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        final BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        final boolean schedulerDownloading = scheduler != null && scheduler.isDownloading();
+        List<Sha256Hash> scheduledBlocks = null;
+
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && blockChain != null && scheduler != null && downloadBlockBodies &&
+                    (blocks.size() > 1 || schedulerDownloading)) {
+                // The scheduler fetches the bodies from several peers. Several blocks are the answer to a getblocks,
+                // while a single one during the download is just the tickle to carry on, which the scheduler doesn't
+                // need as it asks for more hashes by itself.
+                blockResponseTimeout.setTimeoutEnabled(false);
+                if (blocks.size() > 1) {
+                    scheduledBlocks = new ArrayList<Sha256Hash>(blocks.size());
+                    for (InventoryItem item : blocks)
+                        scheduledBlocks.add(item.hash);
+                }
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1164,6 +1269,77 @@ public class Peer extends PeerSocketHandler {
 
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+
+        if (scheduledTxns != null) {
+            txScheduler.announced(this, scheduledTxns);
+            for (Sha256Hash hash : scheduledTxns)
+                memoryPool.seen(hash, this.getAddress());
+        }
+
+        if (scheduledBlocks != null)
+            scheduler.addBlockHashes(this, scheduledBlocks);
+    }
+
+    /**
+     * Asks the peer for the given blocks with a single getdata and returns a future for each, which completes with the
+     * block when it arrives, or is cancelled if the peer says it doesn't have it. Filtered blocks are asked for if the
+     * peer has been given a Bloom filter and supports them. Used by {@link BlockDownloadScheduler}.
+     */
+    List<ListenableFuture<Message>> getBlocks(List<Sha256Hash> blockHashes) {
+        boolean filtered = vBloomFilter != null && vPeerVersionMessage.isBloomFilteringSupported();
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<Message>> futures = new ArrayList<ListenableFuture<Message>>(blockHashes.size());
+        for (Sha256Hash hash : blockHashes) {
+            if (filtered)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+            SettableFuture<Message> future = SettableFuture.create();
+            GetDataRequest req = new GetDataRequest();
+            req.hash = hash;
+            req.future = future;
+            getDataFutures.add(req);
+            futures.add(future);
+        }
+        sendMessage(getdata);
+        // As in processInv, the pong marks the end of the last filtered block's transactions.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return futures;
+    }
+
+    /**
+     * Asks the peer for the hashes of the blocks following the given one, or our chain head if null, without
+     * downloading the blocks themselves. Asks for their headers if the scheduler is in headers-first mode. Used by
+     * {@link BlockDownloadScheduler} to find more blocks to fetch while the previous ones are still being downloaded.
+     */
+    void getBlocksAfter(@Nullable Sha256Hash blockHash) {
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        lock.lock();
+        try {
+            List<Sha256Hash> blockLocator = blockLocatorLocked();
+            if (blockHash != null)
+                blockLocator.add(0, blockHash);
+            if (scheduler != null && scheduler.isHeadersFirst())
+                sendMessage(new GetHeadersMessage(params, blockLocator, Sha256Hash.ZERO_HASH));
+            else
+                sendMessage(new GetBlocksMessage(params, blockLocator, Sha256Hash.ZERO_HASH));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the scheduler downloading the transactions this peer announces, or null to ask it for those no other peer
+     * announced first. Only used if the peer has a memory pool.
+     */
+    void setTransactionRequestScheduler(@Nullable TransactionRequestScheduler scheduler) {
+        this.vTxRequestScheduler = scheduler;
+    }
+
+    /** Sets the scheduler fetching the blocks this peer announces during chain download, or null to fetch them itself. */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
     }
 
     /**
@@ -1319,6 +1495,20 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock")
     private Sha256Hash lastGetBlocksBegin, lastGetBlocksEnd;
     
+    /**
+     * Forgets the last getblocks or getheaders request, so that the next request for the same range is sent rather
+     * than ignored as a duplicate. Used when the peer stalled and is asked again.
+     */
+    void resetLastGetBlocks() {
+        lock.lock();
+        try {
+            lastGetBlocksBegin = null;
+            lastGetBlocksEnd = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @GuardedBy("lock")
     private void blockChainDownloadLocked(Sha256Hash toHash) {
         checkState(lock.isHeldByCurrentThread());
@@ -1354,18 +1544,12 @@ public class Peer extends PeerSocketHandler {
         // use the "getheaders" command. Once we find we've gone past the target date, we throw away the downloaded
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
-
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
         //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        // In headers-first mode, set by giving us a BlockDownloadScheduler which asks for it, we carry on asking for
+        // headers past the fast catchup time too, and hand them to the scheduler which fetches the bodies. That saves
+        // the inv round trip of each batch, and each batch has 2000 blocks rather than 500.
+
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
@@ -1375,26 +1559,20 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null)
-            blockLocator.add(params.getGenesisBlock().getHash());
+        List<Sha256Hash> blockLocator = blockLocatorLocked();
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (downloadBlockBodies && scheduler != null && scheduler.isHeadersFirst()) {
+            // Headers-first: the scheduler fetches the bodies of the blocks whose headers the peer sends.
+            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            blockResponseTimeout.setSocketTimeout(false);
+            sendMessage(message);
+        } else if (downloadBlockBodies) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
 	    blockResponseTimeout.setSocketTimeout(true);
             sendMessage(message);
@@ -1406,6 +1584,11 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    @GuardedBy("lock")
+    private List<Sha256Hash> blockLocatorLocked() {
+        return checkNotNull(blockChain).getBlockLocator();
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -1453,6 +1636,7 @@ public class Peer extends PeerSocketHandler {
             Long elapsed = Utils.currentTimeMillis() - startTimeMsec;
             Peer.this.addPingTimeData(elapsed);
             log.debug("{}: ping time is {} msec", Peer.this.toString(), elapsed);
+            stats.pingReceived(elapsed);
             future.set(elapsed);
             future = null;
         }
@@ -28,6 +28,7 @@ import com.matthewmitchell.peercoinj.net.discovery.TorDiscovery;
 import com.matthewmitchell.peercoinj.script.Script;
 import com.matthewmitchell.peercoinj.utils.ExponentialBackoff;
 import com.matthewmitchell.peercoinj.utils.ListenerRegistration;
+import com.matthewmitchell.peercoinj.utils.NetworkMetrics;
 import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -117,6 +118,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Downloads the transactions peers announce, from one peer at a time, moving on to another on failure.
+    private final TransactionRequestScheduler txRequestScheduler;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -289,6 +292,29 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 12000;
     private volatile int vConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
 
+    // Where new peers process their messages, or null for the network thread
+    @Nullable private volatile Executor vMessageExecutor;
+
+    // Fetches block bodies from several peers at once during chain download, or null to leave it to the download peer
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
+    @GuardedBy("lock") private int maxBlockDownloadPeers = 1;
+    @GuardedBy("lock") private boolean headersFirst;
+    // How often the scheduler checks for peers that stopped delivering blocks
+    private static final long BLOCK_DOWNLOAD_STALL_CHECK_MSEC = 1000;
+
+    /** How long the chain may go without progress, while the download peer is ahead of it, before we give up on it. */
+    public static final long DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC = 30 * 1000;
+    private volatile long vDownloadStallTimeoutMsec = DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC;
+    // How long a download peer that stalled is passed over for the role.
+    private static final long DOWNLOAD_STALL_PENALTY_MSEC = 5 * 60 * 1000;
+    // A download peer is only replaced by one whose score is this many times better, and not before it has had the
+    // role for DOWNLOAD_PEER_MIN_TENURE_MSEC, so that peers with similar scores don't keep taking it from each other.
+    private static final double DOWNLOAD_PEER_SWITCH_RATIO = 2.0;
+    private static final long DOWNLOAD_PEER_MIN_TENURE_MSEC = 60 * 1000;
+    @GuardedBy("lock") private long downloadPeerSinceMsec;
+    @GuardedBy("lock") private int lastChainHeight = -1;
+    @GuardedBy("lock") private long lastChainProgressMsec;
+
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
      * as zero to other peers. This constructor is useful if you just want to explore the network but aren't interested
@@ -368,6 +394,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         downloadTxDependencies = true;
 
         memoryPool = new MemoryPool();
+        txRequestScheduler = new TransactionRequestScheduler(params, memoryPool);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
@@ -392,6 +419,86 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         bloomFilterMerger = new FilterMerger(DEFAULT_BLOOM_FILTER_FP_RATE);
     }
 
+    /**
+     * Has newly connected peers process their messages on the given executor, rather than on the network thread, so
+     * that one peer's slow messages don't hold up reading from the others. Each peer's messages are still processed
+     * in order. Useful with a {@link NioClientManager} running several selector threads. Does not apply to peers
+     * already connected or connecting.
+     *
+     * @see Peer#setMessageExecutor(Executor)
+     */
+    public void setMessageExecutor(@Nullable Executor messageExecutor) {
+        this.vMessageExecutor = messageExecutor;
+    }
+
+    /**
+     * <p>Sets how many peers block bodies are fetched from at once during chain download. The download peer still
+     * works out which blocks are needed, but the blocks themselves are requested a few at a time from whichever of the
+     * connected peers has the least outstanding, and added to the chain in order as they arrive. A peer which stops
+     * delivering has its blocks asked of another peer.</p>
+     *
+     * <p>The default of 1 downloads everything from the download peer alone. Fetching from several peers helps most
+     * when catching up on a lot of blocks, where a single peer's bandwidth and latency are the limit. Has no effect on
+     * blocks downloaded as headers only because they predate the fast catchup time.</p>
+     */
+    public void setMaxBlockDownloadPeers(int maxPeers) {
+        checkArgument(maxPeers > 0);
+        lock.lock();
+        try {
+            maxBlockDownloadPeers = maxPeers;
+            updateBlockDownloadSchedulerLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets whether the chain is downloaded headers-first. The download peer is asked for the headers of the blocks
+     * we don't have, 2000 at a time, and the blocks themselves are then requested from up to
+     * {@link #setMaxBlockDownloadPeers(int)} peers whilst the next headers are on their way. Otherwise the download
+     * peer is asked for inventories of 500 blocks at a time, each of which costs another round trip before the blocks
+     * can be requested.</p>
+     *
+     * <p>Headers which predate the fast catchup time are added to the chain as before, without fetching the blocks.
+     * Defaults to false.</p>
+     */
+    public void setHeadersFirst(boolean headersFirst) {
+        lock.lock();
+        try {
+            this.headersFirst = headersFirst;
+            updateBlockDownloadSchedulerLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void updateBlockDownloadSchedulerLocked() {
+        BlockDownloadScheduler old = vBlockDownloadScheduler;
+        if (old != null)
+            old.reset();
+        BlockDownloadScheduler scheduler = null;
+        if ((maxBlockDownloadPeers > 1 || headersFirst) && chain != null) {
+            scheduler = new BlockDownloadScheduler(chain, wallets, maxBlockDownloadPeers, headersFirst) {
+                @Override
+                protected List<Peer> getPeers() {
+                    // peers is copy on write, so there's no need for our lock, which mustn't be taken here.
+                    List<Peer> result = new ArrayList<Peer>(peers.size());
+                    int height = chain.getBestChainHeight();
+                    for (Peer peer : peers) {
+                        if (peer.getBestHeight() > height)
+                            result.add(peer);
+                    }
+                    return result;
+                }
+            };
+            scheduler.setDownloadPeer(downloadPeer);
+        }
+        vBlockDownloadScheduler = scheduler;
+        if (downloadPeer != null)
+            downloadPeer.setBlockDownloadScheduler(scheduler);
+    }
+
     /**
      * Adjusts the desired number of connections that we will create to peers. Note that if there are already peers
      * open and the new value is lower than the current number of peers, those connections will be terminated. Likewise
@@ -888,6 +995,21 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             log.warn("Starting up with no attached block chain. Did you forget to pass one to the constructor?");
         }
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                // An exception escaping here would cancel the timer, and with it every peer's pings.
+                try {
+                    BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                    if (scheduler != null)
+                        scheduler.checkStalls();
+                    txRequestScheduler.checkTimeouts();
+                    checkDownloadPeer();
+                } catch (Exception e) {
+                    log.warn("Exception whilst checking for stalled downloads: {}", e.toString());
+                }
+            }
+        }, BLOCK_DOWNLOAD_STALL_CHECK_MSEC, BLOCK_DOWNLOAD_STALL_CHECK_MSEC);
         if (torClient != null) {
             log.info("Starting Tor/Orchid ...");
             torClient.start();
@@ -1046,6 +1168,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 // if the estimate temporarily overshoots our threshold.
                 if (chain != null)
                     chain.resetFalsePositiveEstimate();
+                // Blocks discarded because the old filter was exhausted can be fetched again now.
+                BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                if (scheduler != null)
+                    scheduler.filterUpdated();
             }
             // Do this last so that bloomFilter is already set when it gets called.
             setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
@@ -1121,9 +1247,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         ver.bestHeight = chain == null ? 0 : chain.getBestChainHeight();
         ver.time = Utils.currentTimeSeconds();
 
+        NetworkMetrics.get().connectionAttempted(address);
         Peer peer = new Peer(params, ver, address, chain, memoryPool, downloadTxDependencies, this);
+        peer.setTransactionRequestScheduler(txRequestScheduler);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageExecutor(vMessageExecutor);
         pendingPeers.add(peer);
 
         try {
@@ -1227,7 +1356,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 peer.addWallet(wallet);
             // Re-evaluate download peers.
             Peer newDownloadPeer = selectDownloadPeer(peers);
-            if (downloadPeer != newDownloadPeer) {
+            if (downloadPeer != newDownloadPeer && shouldReplaceDownloadPeerLocked(newDownloadPeer, false)) {
                 setDownloadPeer(newDownloadPeer);
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
                 if (shouldDownloadChain) {
@@ -1321,19 +1450,25 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer = peer;
                 return;
             }
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
             if (downloadPeer != null) {
                 log.info("Unsetting download peer: {}", downloadPeer);
                 if (downloadListener != null)
                     downloadPeer.removeEventListener(downloadListener);
                 downloadPeer.setDownloadData(false);
+                downloadPeer.setBlockDownloadScheduler(null);
             }
             downloadPeer = peer;
+            downloadPeerSinceMsec = Utils.currentTimeMillis();
+            if (scheduler != null)
+                scheduler.setDownloadPeer(peer);
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null)
                     peer.addEventListener(downloadListener, Threading.SAME_THREAD);
                 downloadPeer.setDownloadData(true);
                 downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+                downloadPeer.setBlockDownloadScheduler(scheduler);
             }
         } finally {
             lock.unlock();
@@ -1350,6 +1485,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return memoryPool;
     }
 
+    /**
+     * Returns how many announced transactions have been asked of a peer and haven't arrived yet. Each transaction is
+     * asked of one peer at a time, however many announced it.
+     */
+    public int getTransactionRequestsInFlight() {
+        return txRequestScheduler.getInFlightCount();
+    }
+
     /**
      * Tells the PeerGroup to download only block headers before a certain time and bodies after that. Call this
      * before starting block chain download.
@@ -1398,6 +1541,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died", address);
+            NetworkMetrics.get().connectionClosed(address);
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (scheduler != null)
+                scheduler.peerDisconnected(peer);
+            txRequestScheduler.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1424,6 +1572,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 ExponentialBackoff backoff = backoffMap.get(address);
                 if (backoff != null) {
                     backoff.trackFailure();
+                    NetworkMetrics.get().peerBackedOff(address, backoff.getRetryTime() - Utils.currentTimeMillis());
                     if (!inactives.contains(address))
                         // Put back on inactive list
                         inactives.offer(address);
@@ -1693,8 +1842,76 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return Utils.maxOfMostFreq(heights);
     }
 
+    /**
+     * Sets how long the chain may go without progress whilst the download peer claims to have more blocks, before the
+     * download peer is considered stalled and replaced. It then isn't chosen again for a few minutes. The default is
+     * {@link #DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC}.
+     */
+    public void setDownloadStallTimeout(long stallTimeoutMsec) {
+        vDownloadStallTimeoutMsec = stallTimeoutMsec;
+    }
+
+    /**
+     * Replaces the download peer if it stalled the chain download, or if another peer has been scoring much better
+     * for a while. Called every second by the ping timer once started.
+     */
+    void checkDownloadPeer() {
+        lock.lock();
+        try {
+            if (chain == null || downloadPeer == null || downloadListener == null)
+                return;
+            long now = Utils.currentTimeMillis();
+            int height = chain.getBestChainHeight();
+            if (height != lastChainHeight || downloadPeer.getBestHeight() <= height) {
+                // Making progress, or nothing to download.
+                lastChainHeight = height;
+                lastChainProgressMsec = now;
+            }
+            Peer newDownloadPeer;
+            if (now - Math.max(lastChainProgressMsec, downloadPeerSinceMsec) >= vDownloadStallTimeoutMsec) {
+                log.warn("{}: Chain download stalled at height {}, switching download peer. {}", downloadPeer, height,
+                        downloadPeer.getStats());
+                downloadPeer.getStats().stalled(DOWNLOAD_STALL_PENALTY_MSEC);
+                newDownloadPeer = selectDownloadPeer(peers);
+                if (newDownloadPeer == downloadPeer) {
+                    // Nobody else to ask, so ask it again. It would otherwise ignore a request for the same range.
+                    downloadPeerSinceMsec = now;
+                    downloadPeer.resetLastGetBlocks();
+                    startBlockChainDownloadFromPeer(downloadPeer);
+                    return;
+                }
+            } else {
+                newDownloadPeer = selectDownloadPeer(peers);
+                if (newDownloadPeer == downloadPeer || !shouldReplaceDownloadPeerLocked(newDownloadPeer, true))
+                    return;
+                log.info("{}: Replacing download peer with a better one. Old: {}, new: {}", downloadPeer,
+                        downloadPeer.getStats(), newDownloadPeer.getStats());
+            }
+            if (newDownloadPeer != null) {
+                setDownloadPeer(newDownloadPeer);
+                startBlockChainDownloadFromPeer(newDownloadPeer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether the download peer should make way for the given one, which selectDownloadPeer preferred to it.
+    @GuardedBy("lock")
+    private boolean shouldReplaceDownloadPeerLocked(@Nullable Peer candidate, boolean requireTenure) {
+        if (downloadPeer == null || candidate == null)
+            return true;
+        // The chain moved on without it.
+        if (downloadPeer.getBestHeight() < candidate.getBestHeight())
+            return true;
+        if (requireTenure && Utils.currentTimeMillis() - downloadPeerSinceMsec < DOWNLOAD_PEER_MIN_TENURE_MSEC)
+            return false;
+        return candidate.getStats().getScore() > downloadPeer.getStats().getScore() * DOWNLOAD_PEER_SWITCH_RATIO;
+    }
+
     private static class PeerAndPing {
         Peer peer;
+        double score;
         long pingTime;
     }
 
@@ -1707,6 +1924,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Score (see PeerStats), which comes down to ping time until the peer has sent us some data.
         //  - Ping time.
         if (peers.isEmpty())
             return null;
@@ -1732,14 +1950,18 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
                 PeerAndPing pap = new PeerAndPing();
                 pap.peer = peer;
+                pap.score = peer.getStats().getScore();
                 pap.pingTime = peer.getPingTime();
                 candidates2.add(pap);
             }
         }
-        // Sort by ping time.
+        // Sort by score, best first, then by ping time.
         Collections.sort(candidates2, new Comparator<PeerAndPing>() {
             @Override
             public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
+                int result = Double.compare(peerAndPing2.score, peerAndPing.score);
+                if (result != 0)
+                    return result;
                 return Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
             }
         });
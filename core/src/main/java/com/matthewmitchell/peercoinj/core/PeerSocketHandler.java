@@ -17,20 +17,28 @@
 package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.net.AbstractTimeoutHandler;
+import com.matthewmitchell.peercoinj.net.BufferPool;
+import com.matthewmitchell.peercoinj.net.GatheringMessageWriteTarget;
 import com.matthewmitchell.peercoinj.net.MessageWriteTarget;
+import com.matthewmitchell.peercoinj.net.ReadPausable;
 import com.matthewmitchell.peercoinj.net.StreamParser;
+import com.matthewmitchell.peercoinj.utils.NetworkMetrics;
 import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -59,6 +67,18 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // How many messages are processed in a row before the executor gets to run other peers' messages.
+    private static final int MESSAGES_PER_TURN = 16;
+    // How many messages may wait to be processed before we stop reading from the peer, and how few must be left before
+    // we start again.
+    private static final int MAX_PENDING_MESSAGES = 128;
+    private static final int RESUME_PENDING_MESSAGES = MAX_PENDING_MESSAGES / 2;
+    // If set, messages are processed here rather than on the network thread, one at a time in the order they arrived.
+    @Nullable private volatile Executor messageExecutor;
+    @GuardedBy("pendingMessages") private final Queue<Message> pendingMessages = new ArrayDeque<Message>();
+    @GuardedBy("pendingMessages") private boolean processingMessages;
+    @GuardedBy("pendingMessages") private boolean readPaused;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new PeercoinSerializer(checkNotNull(params));
         this.peerAddress = new PeerAddress(remoteIp);
@@ -83,17 +103,42 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            ByteBuffer[] buffers = serializer.serializeToBuffers(message);
+            NetworkMetrics metrics = NetworkMetrics.get();
+            if (metrics.isEnabled()) {
+                int bytes = 0;
+                for (ByteBuffer buffer : buffers)
+                    bytes += buffer.remaining();
+                metrics.bytesSent(peerAddress, bytes);
+            }
+            MessageWriteTarget target = writeTarget;
+            if (target instanceof GatheringMessageWriteTarget)
+                ((GatheringMessageWriteTarget) target).writeBuffers(buffers);
+            else
+                target.writeBytes(toBytes(buffers));
         } catch (IOException e) {
             exceptionCaught(e);
         }
 
     }
 
+    // Copies the buffers out for a write target that only takes arrays, giving them back to the pool.
+    private static byte[] toBytes(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int remaining = buffer.remaining();
+            buffer.get(bytes, offset, remaining);
+            offset += remaining;
+            BufferPool.release(buffer);
+        }
+        return bytes;
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -127,6 +172,13 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        int read = readMessages(buff);
+        if (read > 0)
+            NetworkMetrics.get().bytesReceived(peerAddress, read);
+        return read;
+    }
+
+    private int readMessages(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= PeercoinSerializer.PeercoinPacketHeader.HEADER_LENGTH + 4);
         try {
@@ -142,8 +194,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        // ...processing a message if one is available. The message keeps largeReadBuffer as its
+                        // payload rather than copying it, so we must let go of it.
+                        dispatchMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -182,7 +235,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                dispatchMessage(message);
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -190,6 +243,80 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * <p>Has messages from the peer processed on the given executor instead of the thread that reads them from the
+     * network. Messages are still processed one at a time, in the order they arrived, but the network thread can go on
+     * reading from other peers in the meantime, so a peer whose messages are slow to handle doesn't hold up the rest.
+     * The executor may be shared between peers. Pass null to process messages on the network thread, the default.</p>
+     *
+     * <p>If too many messages are waiting to be processed, reading from the peer stops until the executor catches up,
+     * provided the write target is {@link ReadPausable}, as those used by peercoinj's own clients are.</p>
+     *
+     * <p>This should be set before the connection opens.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor messageExecutor) {
+        this.messageExecutor = messageExecutor;
+    }
+
+    private void dispatchMessage(Message message) throws Exception {
+        Executor executor = messageExecutor;
+        if (executor == null) {
+            processMessage(message);
+            return;
+        }
+        synchronized (pendingMessages) {
+            pendingMessages.add(message);
+            if (!readPaused && pendingMessages.size() >= MAX_PENDING_MESSAGES)
+                setReadPaused(true);
+            if (processingMessages)
+                return; // Already queued to run, and will get to this one
+            processingMessages = true;
+        }
+        executor.execute(processPendingMessages);
+    }
+
+    private final Runnable processPendingMessages = new Runnable() {
+        @Override
+        public void run() {
+            Executor executor = messageExecutor;
+            for (int processed = 0; ; processed++) {
+                Message message;
+                synchronized (pendingMessages) {
+                    if (pendingMessages.isEmpty()) {
+                        processingMessages = false;
+                        return;
+                    }
+                    if (processed == MESSAGES_PER_TURN && executor != null)
+                        break;
+                    message = pendingMessages.poll();
+                    if (readPaused && pendingMessages.size() <= RESUME_PENDING_MESSAGES)
+                        setReadPaused(false);
+                }
+                try {
+                    processMessage(message);
+                } catch (Exception e) {
+                    synchronized (pendingMessages) {
+                        pendingMessages.clear();
+                    }
+                    exceptionCaught(e);
+                }
+            }
+            // Give other peers sharing the executor a turn before carrying on
+            executor.execute(this);
+        }
+    };
+
+    // Pausing and resuming under the pendingMessages lock keeps them in the same order as the queue changes that
+    // caused them.
+    @GuardedBy("pendingMessages")
+    private void setReadPaused(boolean paused) {
+        MessageWriteTarget target = writeTarget;
+        if (target instanceof ReadPausable) {
+            readPaused = paused;
+            ((ReadPausable) target).setReadPaused(paused);
+        }
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link com.matthewmitchell.peercoinj.net.NioClient} or
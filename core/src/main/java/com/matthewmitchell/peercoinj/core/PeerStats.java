@@ -0,0 +1,140 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+/**
+ * <p>Measures how well a {@link Peer} serves us: how many blocks and bytes it delivers per second, how long it takes to
+ * answer a getdata, and how often it says it doesn't have what we asked for. Rates decay exponentially, with a time
+ * constant of {@link #DECAY_MILLIS}, so they follow the peer's recent behaviour rather than its whole history.</p>
+ *
+ * <p>{@link #getScore()} combines these into a single number, which {@link PeerGroup} uses to pick the download peer and
+ * to decide when to replace it. Thread safe.</p>
+ */
+public class PeerStats {
+    /** The time constant of the decaying rates and averages, in milliseconds. */
+    public static final long DECAY_MILLIS = 30 * 1000;
+    // Weight of a new sample in the latency and ping averages.
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private long lastDecayMillis = Utils.currentTimeMillis();
+    // Exponentially decaying sums.
+    private double blocks, bytes, requested, notFound;
+    // Exponentially weighted moving averages, or -1 until the first sample.
+    private double latencyMillis = -1, pingMillis = -1;
+    // Until when the peer is penalised for stalling the chain download.
+    private long stalledUntilMillis;
+
+    private void decay() {
+        long now = Utils.currentTimeMillis();
+        long elapsed = now - lastDecayMillis;
+        if (elapsed <= 0)
+            return;
+        double factor = Math.exp(-(double) elapsed / DECAY_MILLIS);
+        blocks *= factor;
+        bytes *= factor;
+        requested *= factor;
+        notFound *= factor;
+        lastDecayMillis = now;
+    }
+
+    private static double average(double average, double sample) {
+        return average < 0 ? sample : average + LATENCY_ALPHA * (sample - average);
+    }
+
+    synchronized void messageReceived(int size) {
+        decay();
+        bytes += size;
+    }
+
+    synchronized void blockReceived() {
+        decay();
+        blocks++;
+    }
+
+    synchronized void itemsRequested(int count) {
+        decay();
+        requested += count;
+    }
+
+    synchronized void itemsNotFound(int count) {
+        decay();
+        notFound += count;
+    }
+
+    /** Records how long the peer took to start answering a getdata. */
+    synchronized void responseReceived(long millis) {
+        latencyMillis = average(latencyMillis, millis);
+    }
+
+    synchronized void pingReceived(long millis) {
+        pingMillis = average(pingMillis, millis);
+    }
+
+    /** Marks the peer as having stalled the chain download, which zeroes its score for the given time. */
+    synchronized void stalled(long penaltyMillis) {
+        stalledUntilMillis = Utils.currentTimeMillis() + penaltyMillis;
+    }
+
+    /** Returns true if the peer stalled the chain download recently. */
+    public synchronized boolean isStalled() {
+        return Utils.currentTimeMillis() < stalledUntilMillis;
+    }
+
+    /** Returns the rate at which the peer has recently been delivering blocks, full or filtered. */
+    public synchronized double getBlocksPerSecond() {
+        decay();
+        return blocks * 1000 / DECAY_MILLIS;
+    }
+
+    /** Returns the rate at which the peer has recently been sending us messages, in bytes of payload per second. */
+    public synchronized double getBytesPerSecond() {
+        decay();
+        return bytes * 1000 / DECAY_MILLIS;
+    }
+
+    /** Returns the fraction of the items recently requested from the peer that it said it didn't have. */
+    public synchronized double getNotFoundRate() {
+        decay();
+        return requested <= 0 ? 0 : Math.min(1, notFound / requested);
+    }
+
+    /** Returns the average time the peer took to answer a getdata, or -1 if we haven't asked it for anything yet. */
+    public synchronized long getLatencyMillis() {
+        return Math.round(latencyMillis);
+    }
+
+    /**
+     * <p>Returns how well the peer is expected to serve the chain download, higher being better. It is the sum of the
+     * peer's responsiveness, 1000 divided by its getdata latency (or ping time if we haven't asked it for data yet) in
+     * milliseconds, and its recent throughput in KB/sec, reduced in proportion to how many requests it couldn't
+     * answer. A peer we know nothing about scores 0, and so does one which recently stalled the download.</p>
+     */
+    public synchronized double getScore() {
+        if (isStalled())
+            return 0;
+        double responseMillis = latencyMillis >= 0 ? latencyMillis : pingMillis;
+        double responsiveness = responseMillis < 0 ? 0 : 1000 / Math.max(1, responseMillis);
+        return (responsiveness + getBytesPerSecond() / 1024) * (1 - getNotFoundRate());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("score %.2f, %.2f blocks/sec, %.0f bytes/sec, latency %d ms, %.0f%% not found%s",
+                getScore(), getBlocksPerSecond(), getBytesPerSecond(), getLatencyMillis(), getNotFoundRate() * 100,
+                isStalled() ? ", stalled" : "");
+    }
+}
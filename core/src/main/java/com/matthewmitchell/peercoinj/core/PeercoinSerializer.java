@@ -17,6 +17,9 @@
 
 package com.matthewmitchell.peercoinj.core;
 
+import com.matthewmitchell.peercoinj.net.BufferPool;
+import com.matthewmitchell.peercoinj.net.GatheringMessageWriteTarget;
+import com.matthewmitchell.peercoinj.utils.NetworkMetrics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +29,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -46,6 +50,7 @@ import static com.matthewmitchell.peercoinj.core.Utils.*;
 public class PeercoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(PeercoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    private static final int HEADER_SIZE = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private NetworkParameters params;
     private boolean parseLazy = false;
@@ -99,7 +104,18 @@ public class PeercoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        byte[] header = header(name, message.length, doubleDigest(message));
+        out.write(header);
+        out.write(message);
+        NetworkMetrics.get().messageSent(name, message.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    // Builds the message header. Only the first four bytes of the hash are used, as the checksum.
+    private byte[] header(String name, int length, byte[] hash) {
+        byte[] header = new byte[HEADER_SIZE];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
@@ -108,26 +124,106 @@ public class PeercoinSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getName(message), message.peercoinSerialize(), out);
+    }
+
+    /**
+     * <p>Serializes the message, header included, into buffers that can be handed to
+     * {@link GatheringMessageWriteTarget#writeBuffers(ByteBuffer[])} without further copies.</p>
+     *
+     * <p>A message that still holds the bytes it was parsed from, such as a block or transaction being relayed, is sent
+     * straight from those bytes and its checksum is remembered for the next time. Anything else is serialized directly
+     * into a buffer from the {@link BufferPool}.</p>
+     */
+    public ByteBuffer[] serializeToBuffers(Message message) throws IOException {
+        String name = getName(message);
+        if (message.payload != null && message.length != Message.UNKNOWN_LENGTH) {
+            byte[] checksum = message.getChecksum();
+            if (checksum == null) {
+                checksum = Arrays.copyOf(doubleDigest(message.payload, message.offset, message.length), 4);
+                message.setChecksum(checksum);
+            }
+            ByteBuffer header = ByteBuffer.wrap(header(name, message.length, checksum));
+            ByteBuffer payload = ByteBuffer.wrap(message.payload, message.offset, message.length).slice();
+            if (log.isDebugEnabled())
+                log.debug("Sending {} message: {}", name, HEX.encode(header.array()) + hex(payload));
+            NetworkMetrics.get().messageSent(name, message.length);
+            return new ByteBuffer[] { header, payload };
+        }
+
+        BufferOutputStream stream = new BufferOutputStream(HEADER_SIZE +
+                (message.length == Message.UNKNOWN_LENGTH ? 0 : message.length));
+        stream.buffer.position(HEADER_SIZE);
+        message.peercoinSerialize(stream);
+        ByteBuffer buffer = stream.buffer;
+        int length = buffer.position() - HEADER_SIZE;
+        buffer.flip();
+        buffer.position(HEADER_SIZE);
+        byte[] header = header(name, length, doubleDigest(buffer));
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + hex(buffer));
+        buffer.position(0);
+        buffer.put(header);
+        buffer.position(0);
+        NetworkMetrics.get().messageSent(name, length);
+        return new ByteBuffer[] { buffer };
+    }
+
+    private static String getName(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("PeercoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.peercoinSerialize(), out);
+        return name;
+    }
+
+    private static String hex(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return HEX.encode(bytes);
+    }
+
+    // Writes into a buffer from the BufferPool, moving to a larger one whenever it fills up.
+    private static class BufferOutputStream extends OutputStream {
+        ByteBuffer buffer;
+
+        BufferOutputStream(int capacity) {
+            buffer = BufferPool.acquire(capacity);
+        }
+
+        private void ensureRemaining(int length) {
+            if (buffer.remaining() >= length)
+                return;
+            long needed = (long) buffer.position() + length;
+            if (needed > Integer.MAX_VALUE)
+                throw new IllegalStateException("Message too large to serialize");
+            ByteBuffer larger = BufferPool.acquire((int) Math.min(Math.max(needed, 2L * buffer.capacity()), Integer.MAX_VALUE));
+            buffer.flip();
+            larger.put(buffer);
+            BufferPool.release(buffer);
+            buffer = larger;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
     }
 
     /**
@@ -165,14 +261,23 @@ public class PeercoinSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link PeercoinSerializer#deserializeHeader}.
+     *
+     * <p>The checksum is verified in place, so a corrupt payload is never copied. If the remaining bytes of the buffer
+     * are exactly the payload and are backed by a whole array, as when a large message was read into a buffer of its
+     * own, that array becomes the message's backing store and must not be modified afterwards. Otherwise the payload is
+     * copied out once.</p>
      */
     public Message deserializePayload(PeercoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        NetworkMetrics metrics = NetworkMetrics.get();
+        long startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+        ByteBuffer payload = in.slice();
+        payload.limit(header.size);
 
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = doubleDigest(payload);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -180,16 +285,29 @@ public class PeercoinSerializer {
                     " vs " + HEX.encode(header.checksum));
         }
 
+        byte[] payloadBytes;
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.array().length == header.size) {
+            payloadBytes = payload.array();
+        } else {
+            payloadBytes = new byte[header.size];
+            payload.get(payloadBytes);
+        }
+        in.position(in.position() + header.size);
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
                     HEX.encode(payloadBytes));
         }
 
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
             throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
         }
+        if (metrics.isEnabled())
+            metrics.messageReceived(header.command, header.size, System.nanoTime() - startNanos);
+        return message;
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
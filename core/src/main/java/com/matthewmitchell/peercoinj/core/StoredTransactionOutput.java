@@ -138,6 +138,13 @@ public class StoredTransactionOutput implements Serializable {
         return height;
     }
 
+    /**
+     * Returns whether this output was created by a coinbase transaction.
+     */
+    public boolean isCoinbase() {
+        return height != NONCOINBASE_HEIGHT;
+    }
+
     @Override
     public String toString() {
         return String.format("Stored TxOut of %s (%s:%d)", value.toFriendlyString(), hash.toString(), index);
@@ -23,6 +23,7 @@ import com.matthewmitchell.peercoinj.script.ScriptBuilder;
 import com.matthewmitchell.peercoinj.script.ScriptOpCodes;
 import com.matthewmitchell.peercoinj.utils.ExchangeRate;
 import com.matthewmitchell.peercoinj.wallet.WalletTransaction.Pool;
+import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -114,6 +115,8 @@ public class Transaction extends ChildMessage implements Serializable {
     // Old serialized transactions don't have this field, thus null is valid. It is used for returning an ordered
     // list of transactions from a wallet, which is helpful for presenting to users.
     private Date updatedAt;
+    // Told when updatedAt changes, so that the wallet holding this transaction can keep its transactions in time order.
+    @Nullable private transient UpdateTimeListener updateTimeListener;
 
     // This is an in memory helper only.
     private transient Sha256Hash hash;
@@ -330,7 +333,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public void setBlockAppearance(StoredBlock block, boolean bestChain, int relativityOffset) {
         long blockTime = block.getHeader().getTimeSeconds() * 1000;
         if (bestChain && (updatedAt == null || updatedAt.getTime() == 0 || updatedAt.getTime() > blockTime)) {
-            updatedAt = new Date(blockTime);
+            setUpdateTime(new Date(blockTime));
         }
 
         addBlockAppearance(block.getHeader().getHash(), relativityOffset);
@@ -473,7 +476,20 @@ public class Transaction extends ChildMessage implements Serializable {
     }
 
     public void setUpdateTime(Date updatedAt) {
+        Date old = this.updatedAt;
         this.updatedAt = updatedAt;
+        UpdateTimeListener listener = updateTimeListener;
+        if (listener != null && !Objects.equal(old, updatedAt))
+            listener.onUpdateTimeChanged(this);
+    }
+
+    /** Used by the wallet to hear about changes to the update time of the transactions it holds. */
+    interface UpdateTimeListener {
+        void onUpdateTimeChanged(Transaction tx);
+    }
+
+    void setUpdateTimeListener(@Nullable UpdateTimeListener listener) {
+        this.updateTimeListener = listener;
     }
 
     /**
@@ -25,6 +25,8 @@ import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ListIterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -72,8 +74,37 @@ public class TransactionConfidence implements Serializable {
     // Lazily created listeners array.
     private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Only used when there
+    // is no depth tracker that can work it out from the height of the chain.
     private int depth;
+    // Lets the depth be computed from the best chain height, so the wallet need not touch this object for every block.
+    @Nullable private transient DepthTracker depthTracker;
+    // Depths that depth futures are waiting for, so they can be told about them even when nothing else is.
+    @Nullable private transient SortedSet<Integer> wantedDepths;
+
+    /**
+     * <p>A depth tracker knows the height of the best chain, which lets a BUILDING transaction work out its own depth
+     * from the height it appeared at, rather than having the depth counted up with each block. A {@link Wallet} sets
+     * itself as the tracker of the transactions it holds.</p>
+     *
+     * <p>A transaction has only one tracker, although several wallets may hold the same transaction object, as they do
+     * when it comes from a shared {@link MemoryPool}. The first wallet to take it keeps it, with
+     * {@link #setDepthTrackerIfAbsent(DepthTracker)}, and gives it up with {@link #clearDepthTracker(DepthTracker)}
+     * when it lets go of the transaction, rather than another wallet taking over depths and depth requests that the
+     * owner is still answering.</p>
+     *
+     * <p>Both methods are called with the confidence object locked, so they must not block or take other locks.</p>
+     */
+    public interface DepthTracker {
+        /** Returns the height of the best chain, or -1 if it isn't known. */
+        int getBestChainHeight();
+
+        /**
+         * Called when something starts waiting for the transaction to reach the given depth, so that the tracker
+         * can make sure a {@link Listener.ChangeReason#DEPTH} event is raised when it does.
+         */
+        void depthWanted(Transaction tx, int depth);
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -324,7 +355,7 @@ public class TransactionConfidence implements Serializable {
 
     /**
      * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * internal counter that tracks how deeply buried the block is. Not needed if a {@link DepthTracker} is set.
      */
     public synchronized void incrementDepthInBlocks() {
         this.depth++;
@@ -341,6 +372,11 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (confidenceType == ConfidenceType.BUILDING && depthTracker != null && appearedAtChainHeight >= 0) {
+            int height = depthTracker.getBestChainHeight();
+            if (height >= appearedAtChainHeight)
+                return height - appearedAtChainHeight + 1;
+        }
         return depth;
     }
 
@@ -377,7 +413,46 @@ public class TransactionConfidence implements Serializable {
         setConfidenceType(ConfidenceType.DEAD);
     }
 
-    /** Returns a copy of this object. Event listeners are not duplicated. */
+    /**
+     * Sets the object that works out the depth of the transaction from the height of the best chain. Pass null to go
+     * back to the depth being set explicitly.
+     */
+    public synchronized void setDepthTracker(@Nullable DepthTracker depthTracker) {
+        if (this.depthTracker != null && depthTracker == null)
+            depth = getDepthInBlocks();
+        this.depthTracker = depthTracker;
+    }
+
+    /**
+     * Sets the depth tracker unless there is one already, and returns whether the given one is now the tracker.
+     */
+    public synchronized boolean setDepthTrackerIfAbsent(DepthTracker depthTracker) {
+        checkNotNull(depthTracker);
+        if (this.depthTracker == null)
+            this.depthTracker = depthTracker;
+        return this.depthTracker == depthTracker;
+    }
+
+    /**
+     * Clears the depth tracker if it is the given one, going back to the depth being set explicitly.
+     */
+    public synchronized void clearDepthTracker(DepthTracker depthTracker) {
+        if (this.depthTracker == depthTracker)
+            setDepthTracker(null);
+    }
+
+    /**
+     * Returns the smallest depth greater than the given one that a depth future is waiting for, or -1 if there is
+     * none. Depths that have already been reached are forgotten.
+     */
+    public synchronized int getNextWantedDepth(int depth) {
+        if (wantedDepths == null)
+            return -1;
+        wantedDepths.headSet(depth + 1).clear();
+        return wantedDepths.isEmpty() ? -1 : wantedDepths.first();
+    }
+
+    /** Returns a copy of this object. Event listeners and the depth tracker are not duplicated. */
     public synchronized TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(transaction);
         // There is no point in this sync block, it's just to help FindBugs.
@@ -386,6 +461,7 @@ public class TransactionConfidence implements Serializable {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.depth = getDepthInBlocks();
             return c;
         }
     }
@@ -436,6 +512,11 @@ public class TransactionConfidence implements Serializable {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+        } else if (depthTracker != null) {
+            if (wantedDepths == null)
+                wantedDepths = new TreeSet<Integer>();
+            wantedDepths.add(depth);
+            depthTracker.depthWanted(transaction, depth);
         }
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
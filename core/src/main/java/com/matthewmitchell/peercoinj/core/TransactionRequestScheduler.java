@@ -0,0 +1,238 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the transactions announced by all the peers of a {@link PeerGroup}, asking only one of them for each
+ * transaction at a time. When several peers announce the same transaction, the first is asked for it and the others
+ * are remembered. If the first doesn't deliver it in time, says it doesn't have it or disconnects, the next announcer
+ * is asked, until the transaction arrives or there is nobody left to ask.</p>
+ *
+ * <p>The transactions a peer announces in one inv, or which are passed on to it together, are asked for in a single
+ * getdata. Thread safe. Only takes its own lock and the memory pool's, and sends nothing whilst holding them.</p>
+ */
+public class TransactionRequestScheduler {
+    private static final Logger log = LoggerFactory.getLogger(TransactionRequestScheduler.class);
+
+    // The most transactions in flight at once. Announcements beyond it are ignored, so a flood of invs can't use up
+    // our memory.
+    private static final int MAX_IN_FLIGHT = 5000;
+    // How many of the transactions that arrived are remembered, so that peers announcing them afterwards are ignored
+    // even once the memory pool has let go of them.
+    private static final int MAX_RECENTLY_RECEIVED = 5000;
+    // How long a peer has to deliver a transaction before the next announcer is asked for it.
+    static long timeoutMillis = 10 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("txRequestScheduler");
+    private final NetworkParameters params;
+    @Nullable private final MemoryPool memoryPool;
+
+    private static class Request {
+        // The peer the transaction was last asked of, and when it has to arrive by.
+        Peer peer;
+        long deadline;
+        // The other peers that announced it and haven't been asked yet, in the order they announced it.
+        final LinkedHashSet<Peer> announcers = new LinkedHashSet<Peer>();
+    }
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> requests = new LinkedHashMap<Sha256Hash, Request>();
+    @GuardedBy("lock") private final Set<Sha256Hash> recentlyReceived = Collections.newSetFromMap(
+            new LinkedHashMap<Sha256Hash, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > MAX_RECENTLY_RECEIVED;
+                }
+            });
+
+    /** @param memoryPool used to skip transactions we already downloaded, or null to consider only those in flight */
+    public TransactionRequestScheduler(NetworkParameters params, @Nullable MemoryPool memoryPool) {
+        this.params = checkNotNull(params);
+        this.memoryPool = memoryPool;
+    }
+
+    /** Asks the peer for the given transactions. */
+    protected void requestTransactions(Peer peer, List<Sha256Hash> hashes) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes)
+            getdata.addItem(new InventoryItem(InventoryItem.Type.Transaction, hash));
+        peer.sendMessage(getdata);
+    }
+
+    /**
+     * Records that the peer announced the given transactions, and asks it for those that haven't been downloaded and
+     * aren't being asked of another peer already.
+     */
+    public void announced(Peer peer, List<Sha256Hash> hashes) {
+        List<Sha256Hash> toRequest = new ArrayList<Sha256Hash>();
+        lock.lock();
+        try {
+            long deadline = Utils.currentTimeMillis() + timeoutMillis;
+            for (Sha256Hash hash : hashes) {
+                Request request = requests.get(hash);
+                if (request != null) {
+                    if (request.peer != peer)
+                        request.announcers.add(peer);
+                    continue;
+                }
+                if (requests.size() >= MAX_IN_FLIGHT || recentlyReceived.contains(hash) ||
+                        (memoryPool != null && memoryPool.get(hash) != null))
+                    continue;
+                request = new Request();
+                request.peer = peer;
+                request.deadline = deadline;
+                requests.put(hash, request);
+                toRequest.add(hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!toRequest.isEmpty()) {
+            log.debug("{}: getdata on {} txns", peer, toRequest.size());
+            request(peer, toRequest);
+        }
+    }
+
+    /** Records that the given transaction arrived, from whichever peer. */
+    public void received(Sha256Hash hash) {
+        lock.lock();
+        try {
+            requests.remove(hash);
+            recentlyReceived.add(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the given transaction has been asked for and hasn't arrived yet. */
+    public boolean isInFlight(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return requests.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Asks the next announcers for the transactions the peer said it doesn't have. */
+    public void notFound(Peer peer, List<Sha256Hash> hashes) {
+        Map<Peer, List<Sha256Hash>> batches = new HashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            for (Sha256Hash hash : hashes) {
+                Request request = requests.get(hash);
+                if (request != null && request.peer == peer)
+                    reassignLocked(hash, request, batches);
+            }
+        } finally {
+            lock.unlock();
+        }
+        request(batches);
+    }
+
+    /** Asks the next announcers for the transactions that weren't delivered in time. Called periodically. */
+    public void checkTimeouts() {
+        Map<Peer, List<Sha256Hash>> batches = new HashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Sha256Hash, Request> entry : new ArrayList<Map.Entry<Sha256Hash, Request>>(requests.entrySet())) {
+                if (entry.getValue().deadline <= now) {
+                    log.info("{}: Timed out downloading tx {}", entry.getValue().peer, entry.getKey());
+                    reassignLocked(entry.getKey(), entry.getValue(), batches);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        request(batches);
+    }
+
+    /** Forgets the peer's announcements, and asks other announcers for the transactions it was asked for. */
+    public void peerDisconnected(Peer peer) {
+        Map<Peer, List<Sha256Hash>> batches = new HashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            for (Map.Entry<Sha256Hash, Request> entry : new ArrayList<Map.Entry<Sha256Hash, Request>>(requests.entrySet())) {
+                Request request = entry.getValue();
+                request.announcers.remove(peer);
+                if (request.peer == peer)
+                    reassignLocked(entry.getKey(), request, batches);
+            }
+        } finally {
+            lock.unlock();
+        }
+        request(batches);
+    }
+
+    /** Returns how many transactions have been asked for and haven't arrived yet. */
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void reassignLocked(Sha256Hash hash, Request request, Map<Peer, List<Sha256Hash>> batches) {
+        Iterator<Peer> next = request.announcers.iterator();
+        if (!next.hasNext()) {
+            log.debug("Nobody else announced tx {}, giving up on it", hash);
+            requests.remove(hash);
+            return;
+        }
+        request.peer = next.next();
+        next.remove();
+        request.deadline = Utils.currentTimeMillis() + timeoutMillis;
+        List<Sha256Hash> batch = batches.get(request.peer);
+        if (batch == null) {
+            batch = new ArrayList<Sha256Hash>();
+            batches.put(request.peer, batch);
+        }
+        batch.add(hash);
+    }
+
+    private void request(Map<Peer, List<Sha256Hash>> batches) {
+        for (Map.Entry<Peer, List<Sha256Hash>> batch : batches.entrySet()) {
+            log.info("{}: Asking for {} txns another peer didn't deliver", batch.getKey(), batch.getValue().size());
+            request(batch.getKey(), batch.getValue());
+        }
+    }
+
+    private void request(Peer peer, List<Sha256Hash> hashes) {
+        checkState(!lock.isHeldByCurrentThread());
+        try {
+            requestTransactions(peer, hashes);
+        } catch (Exception e) {
+            // Most likely the peer disconnected, which passes the transactions on. If not, they will time out.
+            log.warn("{}: Failed to request transactions: {}", peer, e.toString());
+        }
+    }
+}
@@ -33,6 +33,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -48,15 +50,31 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dpeercoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
+    // Every thread gets its own digest engine. Hashing happens on network threads, the script verification pool and
+    // user threads alike, and sharing one engine under a lock serialized all of them.
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
+        }
+    };
+
+    /** Returns a new SHA-256 {@link MessageDigest}. */
+    public static MessageDigest newSha256Digest() {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);  // Can't happen.
         }
     }
 
+    /** Returns the calling thread's SHA-256 digest, reset and ready for use. It must not be shared with other threads. */
+    private static MessageDigest sha256Digest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
     /** The string that prefixes all text messages signed using Peercoin keys. */
     public static final String Peercoin_SIGNED_MESSAGE_HEADER = "Peercoin Signed Message:\n";
     public static final byte[] Peercoin_SIGNED_MESSAGE_HEADER_BYTES = Peercoin_SIGNED_MESSAGE_HEADER.getBytes(Charsets.UTF_8);
@@ -151,20 +169,41 @@ public class Utils {
      * standard procedure in Peercoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = sha256Digest();
+        digest.update(input, offset, length);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the bytes between the buffer's position and limit, and then hashes the resulting
+     * hash again. The bytes are read in place and the buffer's position is left unchanged.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        MessageDigest digest = sha256Digest();
+        int position = input.position();
+        digest.update(input);
+        input.position(position);
+        byte[] first = digest.digest();
+        return digest.digest(first);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = sha256Digest();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the bytes between the buffer's position and limit. The bytes are read in place
+     * and the buffer's position is left unchanged.
+     */
+    public static byte[] singleDigest(ByteBuffer input) {
+        MessageDigest digest = sha256Digest();
+        int position = input.position();
+        digest.update(input);
+        input.position(position);
+        return digest.digest();
     }
 
     /**
@@ -172,12 +211,29 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        MessageDigest digest = sha256Digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) and writes the 32 byte result into output at
+     * outputOffset, without allocating. The output may overlap either input range.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] output, int outputOffset) {
+        MessageDigest digest = sha256Digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        try {
+            digest.digest(output, outputOffset, 32);
+            digest.update(output, outputOffset, 32);
+            digest.digest(output, outputOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
         }
     }
 
@@ -266,16 +322,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = sha256Digest().digest(input);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
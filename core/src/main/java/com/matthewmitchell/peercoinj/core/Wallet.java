@@ -55,9 +55,13 @@ import javax.annotation.Nullable;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -109,6 +113,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
+    /** The default depth up to which transactions get a DEPTH confidence event with every block. */
+    public static final int DEFAULT_DEPTH_EVENT_HORIZON = 100;
+
     // Ordering: lock > keychainLock. Keychain is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
     protected final ReentrantLock lock = Threading.lock("wallet");
@@ -165,7 +172,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Volatile as the transaction confidences read it without the wallet lock to work out their depths.
+    private volatile int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
     private transient CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>> eventListeners;
@@ -174,10 +182,22 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // The pending transactions by the outpoints that their inputs spend, so that double spends against the pending pool
+    // and pending spends of newly confirmed outputs can be found without walking the whole pool.
+    @GuardedBy("lock") private transient Map<TransactionOutPoint, List<Transaction>> pendingSpends;
+
+    // Transactions on the best chain work out their depth from lastBlockSeenHeight, so a new block only has to touch
+    // those that are due a DEPTH confidence event. They are kept here by the height at which that happens, which is
+    // every block until they reach the depth event horizon and after that only the depths that depth futures are
+    // waiting for and coinbase maturity.
+    @GuardedBy("lock") private transient TreeMap<Integer, Set<Transaction>> depthEvents;
+    @GuardedBy("lock") private transient Map<Transaction, Integer> depthEventHeights;
+    // BUILDING transactions from old wallets that don't know their appearance height, whose depth is still counted.
+    @GuardedBy("lock") private transient Set<Transaction> countedDepthTransactions;
+    // Transactions that depth futures started waiting on, queued without the lock by their confidence objects.
+    private transient ConcurrentLinkedQueue<Transaction> depthRequests;
+    private transient TransactionConfidence.DepthTracker depthTracker;
+    @GuardedBy("lock") private int depthEventHorizon = DEFAULT_DEPTH_EVENT_HORIZON;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -194,7 +214,84 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // that was created after it. Useful when you believe some keys have been compromised.
     private volatile long vKeyRotationTimestamp;
 
-    protected transient CoinSelector coinSelector = new DefaultCoinSelector();
+    // Volatile so balances can be worked out without the wallet lock.
+    protected transient volatile CoinSelector coinSelector = new DefaultCoinSelector();
+
+    // The outputs of unspent and pending transactions that are ours and not yet spent, by transaction, and their total
+    // (the ESTIMATED balance). Rather than walk the whole wallet for every balance, the transactions whose pools or
+    // spent flags were touched are marked stale and only those are looked at again, when the index is next needed.
+    @GuardedBy("lock") private transient Map<Sha256Hash, List<TransactionOutput>> spendCandidates;
+    @GuardedBy("lock") private transient Set<Sha256Hash> staleSpendCandidates;
+    @GuardedBy("lock") private transient Coin spendCandidatesValue;
+    // Set when every transaction must be looked at again, eg because keys were imported.
+    private transient volatile boolean vRebuildSpendCandidates;
+    // Moves on whenever the spend candidates or their confidences change, invalidating the cached AVAILABLE balance.
+    // Confidences change on network threads without the wallet lock, hence the atomic.
+    private transient AtomicInteger balanceEpoch;
+
+    // Every transaction in the pools with the pool it is in, by hash and by decreasing update time, so that listing
+    // and paging through transactions needs neither the wallet lock nor a copy of the whole wallet. Updated by
+    // indexTransactionLocked wherever a transaction changes pool or update time.
+    private transient ConcurrentHashMap<Sha256Hash, WalletTransaction> walletTransactions;
+    private transient ConcurrentSkipListMap<TimeKey, WalletTransaction> transactionsByTime;
+    @GuardedBy("lock") private transient Map<Sha256Hash, TimeKey> timeKeys;
+    private transient AtomicInteger deadCount;
+    // Transactions whose update time was changed from outside the wallet, queued without the lock to be put back in
+    // order by the next reader.
+    private transient ConcurrentLinkedQueue<Transaction> retimedTransactions;
+    private transient Transaction.UpdateTimeListener updateTimeListener;
+
+    // Orders transactions like Transaction.SORT_TX_BY_UPDATE_TIME, using the update time they were indexed with.
+    private static final class TimeKey implements Comparable<TimeKey> {
+        final long time;
+        final Sha256Hash hash;
+
+        TimeKey(Transaction tx) {
+            time = tx.getUpdateTime().getTime();
+            hash = tx.getHash();
+        }
+
+        @Override
+        public int compareTo(TimeKey other) {
+            if (time != other.time)
+                return time > other.time ? -1 : 1;
+            return hash.compareTo(other.hash);
+        }
+    }
+
+    // An immutable copy of the spend candidates that readers use without taking the wallet lock, so that asking for
+    // the balance doesn't wait behind signing, saving or block processing. It is rebuilt under the lock when it is
+    // next needed after contentsVersion moves on, which happens whenever the pools or the spend candidates change.
+    // Long operations that hold the lock publish a fresh one before starting.
+    @Nullable private transient volatile Snapshot vSnapshot;
+    private transient AtomicInteger contentsVersion;
+
+    private static final class Snapshot {
+        final int version;
+        // The spend candidate lists of the index. They are replaced rather than changed, so can be shared.
+        final ImmutableList<List<TransactionOutput>> spendCandidates;
+        final Coin spendCandidatesValue;
+        // The last balance worked out from this snapshot, with the selector and balance epoch it was worked out for.
+        @Nullable volatile CachedBalance cachedBalance;
+
+        Snapshot(int version, ImmutableList<List<TransactionOutput>> spendCandidates, Coin spendCandidatesValue) {
+            this.version = version;
+            this.spendCandidates = spendCandidates;
+            this.spendCandidatesValue = spendCandidatesValue;
+        }
+    }
+
+    private static final class CachedBalance {
+        final CoinSelector selector;
+        final int epoch;
+        final Coin value;
+
+        CachedBalance(CoinSelector selector, int epoch, Coin value) {
+            this.selector = selector;
+            this.epoch = epoch;
+            this.value = value;
+        }
+    }
 
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
@@ -266,10 +363,45 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        walletTransactions = new ConcurrentHashMap<Sha256Hash, WalletTransaction>();
+        transactionsByTime = new ConcurrentSkipListMap<TimeKey, WalletTransaction>();
+        timeKeys = new HashMap<Sha256Hash, TimeKey>();
+        deadCount = new AtomicInteger();
+        retimedTransactions = new ConcurrentLinkedQueue<Transaction>();
+        updateTimeListener = new Transaction.UpdateTimeListener() {
+            @Override
+            public void onUpdateTimeChanged(Transaction tx) {
+                retimedTransactions.add(tx);
+            }
+        };
+        pendingSpends = new HashMap<TransactionOutPoint, List<Transaction>>();
+        depthEvents = new TreeMap<Integer, Set<Transaction>>();
+        depthEventHeights = new HashMap<Transaction, Integer>();
+        countedDepthTransactions = new HashSet<Transaction>();
+        depthRequests = new ConcurrentLinkedQueue<Transaction>();
+        depthTracker = new TransactionConfidence.DepthTracker() {
+            @Override
+            public int getBestChainHeight() {
+                return lastBlockSeenHeight;
+            }
+
+            @Override
+            public void depthWanted(Transaction tx, int depth) {
+                // Picked up with the next block, the earliest the depth can change.
+                depthRequests.add(tx);
+            }
+        };
+        spendCandidates = new HashMap<Sha256Hash, List<TransactionOutput>>();
+        staleSpendCandidates = new HashSet<Sha256Hash>();
+        spendCandidatesValue = Coin.ZERO;
+        vRebuildSpendCandidates = true;
+        balanceEpoch = new AtomicInteger();
+        contentsVersion = new AtomicInteger();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+                // Whether an output is available to the coin selector usually depends on its confidence.
+                balanceEpoch.incrementAndGet();
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -523,6 +655,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean removeKey(ECKey key) {
         keychainLock.lock();
         try {
+            rebuildSpendCandidatesLater();
             return keychain.removeImportedKey(key);
         } finally {
             keychainLock.unlock();
@@ -599,6 +732,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             result = keychain.importKeys(keys);
+            rebuildSpendCandidatesLater();
         } finally {
             keychainLock.unlock();
         }
@@ -629,6 +763,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            rebuildSpendCandidatesLater();
             return keychain.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keychainLock.unlock();
@@ -643,6 +778,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addFollowingAccountKeys(followingAccountKeys);
+            rebuildSpendCandidatesLater();
         } finally {
             keychainLock.unlock();
         }
@@ -659,6 +795,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addFollowingAccountKeys(followingAccountKeys, threshold);
+            rebuildSpendCandidatesLater();
         } finally {
             keychainLock.unlock();
         }
@@ -781,6 +918,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 watchedScripts.add(script);
                 added++;
             }
+            if (added > 0)
+                rebuildSpendCandidatesLater();
         } finally {
             keychainLock.unlock();
         }
@@ -1293,6 +1432,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public void saveToFileStream(OutputStream f) throws IOException {
         lock.lock();
         try {
+            // Let readers carry on from a snapshot whilst we write.
+            snapshotLocked();
             new WalletProtobufSerializer().writeWallet(this, f);
         } finally {
             lock.unlock();
@@ -1325,7 +1466,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             boolean success = true;
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = new HashSet<Transaction>();
+            transactions.addAll(unspent.values());
+            transactions.addAll(spent.values());
+            transactions.addAll(pending.values());
+            transactions.addAll(dead.values());
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -1345,6 +1490,13 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 success = false;
             }
 
+            if (walletTransactions.size() != size1 || transactionsByTime.size() != size1 ||
+                    deadCount.get() != dead.size()) {
+                log.error("Inconsistent transaction index: {} {} {}", walletTransactions.size(),
+                        transactionsByTime.size(), deadCount.get());
+                success = false;
+            }
+
             for (Transaction tx : unspent.values()) {
                 if (!tx.isConsistent(this, false)) {
                     success = false;
@@ -1386,6 +1538,19 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        lock.lock();
+        try {
+            for (Transaction tx : pending.values())
+                addPendingSpendsLocked(tx);
+            for (Transaction tx : transactions.values()) {
+                indexTransactionLocked(tx);
+                tx.setUpdateTimeListener(updateTimeListener);
+                tx.getConfidence().setDepthTrackerIfAbsent(depthTracker);
+            }
+            scheduleAllDepthEventsLocked();
+        } finally {
+            lock.unlock();
+        }
     }
 
     //endregion
@@ -1588,23 +1753,17 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private boolean checkForDoubleSpendAgainstPending(Transaction tx, boolean takeAction) {
         checkState(lock.isHeldByCurrentThread());
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // For each outpoint spent by tx, see if a pending transaction spends it too. This relies on the fact that
+        // TransactionOutPoint equality is defined at the protocol not object level - outpoints from two different
+        // inputs that point to the same output compare the same.
         LinkedList<Transaction> doubleSpentTxns = Lists.newLinkedList();
-        for (Transaction p : pending.values()) {
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the pending pool, which makes it relevant.
-                    if (!doubleSpentTxns.isEmpty() && doubleSpentTxns.getLast() == p) continue;
+        for (TransactionInput input : tx.getInputs()) {
+            List<Transaction> spenders = pendingSpends.get(input.getOutpoint());
+            if (spenders == null) continue;
+            // It does, it's a double spend against the pending pool, which makes it relevant.
+            for (Transaction p : spenders) {
+                if (!doubleSpentTxns.contains(p))
                     doubleSpentTxns.add(p);
-                }
             }
         }
         if (takeAction && !doubleSpentTxns.isEmpty()) {
@@ -1674,7 +1833,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 tx = tmp;
         }
 
-        boolean wasPending = pending.remove(txHash) != null;
+        boolean wasPending = removePendingLocked(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
 
@@ -1713,15 +1872,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
-            if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
-                ignoreNextNewBlock.add(txHash);
-            }
+            if (bestChain)
+                scheduleDepthEventLocked(tx);
         }
 
         onWalletChangedSuppressions--;
+        // Covers the spends of this tx connected above and those of it disconnected and reconnected.
+        markSpendCandidatesStale(tx);
+        // It may have changed pool, and it or the transactions it spends may have taken the time of the block.
+        indexTransactionLocked(tx);
+        reindexRetimedLocked();
 
         // Side chains don't affect confidence.
         if (bestChain) {
@@ -1787,24 +1947,42 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             return;
         lock.lock();
         try {
+            // Depth futures added since the last block are scheduled from the depths as of that block.
+            Transaction requested;
+            while ((requested = depthRequests.poll()) != null) {
+                if (transactions.get(requested.getHash()) == requested)
+                    scheduleDepthEventLocked(requested);
+            }
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+            // Depths and coinbase maturity have changed.
+            balanceEpoch.incrementAndGet();
+            // The depths of BUILDING transactions follow the new height by themselves, so only raise events for
+            // those that are due one rather than walking the whole wallet.
+            for (Iterator<Transaction> it = countedDepthTransactions.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                if (transactions.get(tx.getHash()) != tx ||
+                        tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING) {
+                    it.remove();
+                } else {
                     tx.getConfidence().incrementDepthInBlocks();
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                 }
             }
+            List<Transaction> due = Lists.newArrayList();
+            while (!depthEvents.isEmpty() && depthEvents.firstKey() <= block.getHeight())
+                due.addAll(depthEvents.pollFirstEntry().getValue());
+            for (Transaction tx : due) {
+                depthEventHeights.remove(tx);
+                // Transactions that left the best chain since they were scheduled are just dropped.
+                if (transactions.get(tx.getHash()) != tx ||
+                        tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                    continue;
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                scheduleDepthEventLocked(tx);
+            }
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1939,19 +2117,25 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         // didn't see arrive on the best chain yet. For instance, because of a chain replay or because of our keys were
         // used by another wallet somewhere else.
         if (fromChain) {
-            for (Transaction pendingTx : pending.values()) {
-                for (TransactionInput input : pendingTx.getInputs()) {
-                    TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
-                    // This TX is supposed to have just appeared on the best chain, so its outputs should not be marked
-                    // as spent yet. If they are, it means something is happening out of order.
-                    checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
-                    if (result == TransactionInput.ConnectionResult.SUCCESS) {
-                        log.info("Connected pending tx input {}:{}",
-                                pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                List<Transaction> spenders = pendingSpends.get(new TransactionOutPoint(params, i, tx.getHash()));
+                if (spenders == null) continue;
+                for (Transaction pendingTx : spenders) {
+                    for (TransactionInput input : pendingTx.getInputs()) {
+                        if (input.getOutpoint().getIndex() != i || !input.getOutpoint().getHash().equals(tx.getHash()))
+                            continue;
+                        TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+                        // This TX is supposed to have just appeared on the best chain, so its outputs should not be
+                        // marked as spent yet. If they are, it means something is happening out of order.
+                        checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
+                        if (result == TransactionInput.ConnectionResult.SUCCESS) {
+                            log.info("Connected pending tx input {}:{}",
+                                    pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+                        }
                     }
+                    // If the transactions outputs are now all spent, it will be moved into the spent pool by the
+                    // processTxFromBestChain method.
                 }
-                // If the transactions outputs are now all spent, it will be moved into the spent pool by the
-                // processTxFromBestChain method.
             }
         }
     }
@@ -1965,7 +2149,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     overridingTx != null ? "by " + overridingTx.getHashAsString() : "");
             log.warn("Disconnecting each input and moving connected transactions.");
             // TX could be pending (finney attack), or in unspent/spent (coinbase killed by reorg).
-            pending.remove(tx.getHash());
+            removePendingLocked(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
             addWalletTransaction(Pool.DEAD, tx);
@@ -1989,6 +2173,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         if (overridingTx == null)
             return;
         log.warn("Now attempting to connect the inputs of the overriding transaction.");
+        markSpendCandidatesStale(overridingTx);
         for (TransactionInput input : overridingTx.getInputs()) {
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
@@ -2008,6 +2193,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        markSpendCandidatesStale(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2024,6 +2210,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 unspent.put(tx.getHash(), tx);
             }
         }
+        indexTransactionLocked(tx);
     }
 
     /**
@@ -2214,45 +2401,130 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. See {@link #getTransactionsView(boolean)} to avoid the copy.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
-        try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
-        } finally {
-            lock.unlock();
-        }
+        return new HashSet<Transaction>(getTransactionsView(includeDead));
     }
 
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns all transactions in the wallet as an unmodifiable view that follows the wallet as it changes, rather than
+     * a copy. It can be used without the wallet lock, in which case iteration is weakly consistent: a transaction
+     * added or removed meanwhile may or may not be seen.
+     * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     */
+    public Set<Transaction> getTransactionsView(boolean includeDead) {
+        return new TransactionSetView(includeDead);
+    }
+
+    /**
+     * Returns a set of all WalletTransactions in the wallet. See {@link #getWalletTransactionsView()} to avoid the copy.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
         try {
-            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
+            return new HashSet<WalletTransaction>(walletTransactions.values());
         } finally {
             lock.unlock();
         }
     }
 
-    private static void addWalletTransactionsToSet(Set<WalletTransaction> txs,
-                                                   Pool poolType, Collection<Transaction> pool) {
-        for (Transaction tx : pool) {
-            txs.add(new WalletTransaction(poolType, tx));
+    /**
+     * Returns all WalletTransactions in the wallet, as an unmodifiable view that follows the wallet as it changes. To
+     * see a consistent set of pools, iterate it whilst the wallet is locked.
+     */
+    public Collection<WalletTransaction> getWalletTransactionsView() {
+        return Collections.unmodifiableCollection(walletTransactions.values());
+    }
+
+    /** Returns the number of transactions in the wallet, without having to list them. */
+    public int getTransactionCount(boolean includeDead) {
+        return walletTransactions.size() - (includeDead ? 0 : deadCount.get());
+    }
+
+    // A view of the wallet transactions, optionally without the dead ones, backed by the transaction index.
+    private final class TransactionSetView extends AbstractSet<Transaction> {
+        private final boolean includeDead;
+
+        TransactionSetView(boolean includeDead) {
+            this.includeDead = includeDead;
+        }
+
+        @Override
+        public Iterator<Transaction> iterator() {
+            final Iterator<WalletTransaction> it = walletTransactions.values().iterator();
+            return new AbstractIterator<Transaction>() {
+                @Override
+                protected Transaction computeNext() {
+                    while (it.hasNext()) {
+                        WalletTransaction wtx = it.next();
+                        if (includeDead || wtx.getPool() != Pool.DEAD)
+                            return wtx.getTransaction();
+                    }
+                    return endOfData();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return getTransactionCount(includeDead);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Transaction))
+                return false;
+            WalletTransaction wtx = walletTransactions.get(((Transaction) o).getHash());
+            return wtx != null && wtx.getTransaction().equals(o) && (includeDead || wtx.getPool() != Pool.DEAD);
+        }
+    }
+
+    // Brings the transaction index up to date with the pool the transaction is in, if any, and its update time.
+    private void indexTransactionLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = tx.getHash();
+        Pool pool = null;
+        if (unspent.containsKey(hash))
+            pool = Pool.UNSPENT;
+        else if (spent.containsKey(hash))
+            pool = Pool.SPENT;
+        else if (pending.containsKey(hash))
+            pool = Pool.PENDING;
+        else if (dead.containsKey(hash))
+            pool = Pool.DEAD;
+        WalletTransaction old = walletTransactions.get(hash);
+        TimeKey oldKey = timeKeys.remove(hash);
+        if (old != null && old.getPool() == Pool.DEAD)
+            deadCount.decrementAndGet();
+        if (pool == null) {
+            walletTransactions.remove(hash);
+            if (oldKey != null)
+                transactionsByTime.remove(oldKey);
+            return;
+        }
+        WalletTransaction wtx = old != null && old.getPool() == pool && old.getTransaction() == tx ?
+                old : new WalletTransaction(pool, tx);
+        TimeKey key = new TimeKey(tx);
+        // Add it at its new place before taking it from the old one, so that readers paging through don't miss it.
+        transactionsByTime.put(key, wtx);
+        if (oldKey != null && oldKey.compareTo(key) != 0)
+            transactionsByTime.remove(oldKey);
+        timeKeys.put(hash, key);
+        walletTransactions.put(hash, wtx);
+        if (pool == Pool.DEAD)
+            deadCount.incrementAndGet();
+    }
+
+    private void reindexRetimedLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx;
+        while ((tx = retimedTransactions.poll()) != null) {
+            // It may have been dropped from the wallet, or be another wallet's copy of the same transaction.
+            WalletTransaction wtx = walletTransactions.get(tx.getHash());
+            if (wtx != null && wtx.getTransaction() == tx)
+                indexTransactionLocked(tx);
         }
     }
 
@@ -2285,6 +2557,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             break;
         case PENDING:
             checkState(pending.put(tx.getHash(), tx) == null);
+            addPendingSpendsLocked(tx);
             break;
         case DEAD:
             checkState(dead.put(tx.getHash(), tx) == null);
@@ -2292,13 +2565,54 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        markSpendCandidatesStale(tx);
+        indexTransactionLocked(tx);
+        tx.setUpdateTimeListener(updateTimeListener);
+        tx.getConfidence().setDepthTrackerIfAbsent(depthTracker);
+        scheduleDepthEventLocked(tx);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
     }
 
+    private void addPendingSpendsLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            // Keyed by a copy, so the index doesn't hold on to the connected transaction.
+            TransactionOutPoint key = new TransactionOutPoint(params, outpoint.getIndex(), outpoint.getHash());
+            List<Transaction> spenders = pendingSpends.get(key);
+            if (spenders == null) {
+                spenders = new ArrayList<Transaction>(1);
+                pendingSpends.put(key, spenders);
+            }
+            if (!spenders.contains(tx))
+                spenders.add(tx);
+        }
+    }
+
+    private void removePendingSpendsLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        for (TransactionInput input : tx.getInputs()) {
+            List<Transaction> spenders = pendingSpends.get(input.getOutpoint());
+            if (spenders != null && spenders.remove(tx) && spenders.isEmpty())
+                pendingSpends.remove(input.getOutpoint());
+        }
+    }
+
+    /** Removes the transaction from the pending pool and from the index of what pending transactions spend. */
+    @Nullable
+    private Transaction removePendingLocked(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx = pending.remove(hash);
+        if (tx != null)
+            removePendingSpendsLocked(tx);
+        return tx;
+    }
+
     /**
-     * Returns all non-dead, active transactions ordered by recency.
+     * Returns all non-dead, active transactions ordered by recency. For big wallets, consider paging through them with
+     * {@link #getTransactionsByTime(Transaction, int, boolean)} instead.
      */
     public List<Transaction> getTransactionsByTime() {
         return getRecentTransactions(0, false);
@@ -2308,33 +2622,45 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included. <p>
      * <p/>
-     * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * The cost is proportional to the number of transactions requested, not to the size of the wallet, unless most
+     * of the wallet is dead and dead transactions are excluded. Passing zero returns them all.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = getPoolSize(Pool.UNSPENT) +
-                    getPoolSize(Pool.SPENT) +
-                    getPoolSize(Pool.PENDING);
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
+        checkArgument(numTransactions >= 0);
+        return getTransactionsByTime(null, numTransactions == 0 ? Integer.MAX_VALUE : numTransactions, includeDead);
+    }
+
+    /**
+     * Returns a page of up to pageSize transactions, ordered by increasing age, that come after the given one in that
+     * order, or from the newest transaction if it is null. To page through the whole wallet, pass the last transaction
+     * of each page to get the next one, until a short page comes back. Paging doesn't take the wallet lock and carries
+     * on where it left off even if the wallet changes in between; a transaction whose update time changes whilst
+     * paging may then be seen twice or not at all. Use {@link #getTransactionCount(boolean)} for the total.
+     *
+     * @param after       the last transaction of the previous page, which need not still be in the wallet, or null
+     * @param includeDead if true, transactions that were overridden by a double spend are included
+     */
+    public List<Transaction> getTransactionsByTime(@Nullable Transaction after, int pageSize, boolean includeDead) {
+        checkArgument(pageSize > 0);
+        if (!retimedTransactions.isEmpty()) {
+            lock.lock();
+            try {
+                reindexRetimedLocked();
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
+        Collection<WalletTransaction> txns = after == null ? transactionsByTime.values() :
+                transactionsByTime.tailMap(new TimeKey(after), false).values();
+        List<Transaction> page = new ArrayList<Transaction>(Math.min(pageSize, getTransactionCount(includeDead)));
+        for (WalletTransaction wtx : txns) {
+            if (!includeDead && wtx.getPool() == Pool.DEAD)
+                continue;
+            page.add(wtx.getTransaction());
+            if (page.size() == pageSize)
+                break;
+        }
+        return page;
     }
 
     /**
@@ -2381,11 +2707,23 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             if (fromHeight == 0) {
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().clearDepthTracker(depthTracker);
                 unspent.clear();
                 spent.clear();
                 pending.clear();
+                pendingSpends.clear();
                 dead.clear();
                 transactions.clear();
+                walletTransactions.clear();
+                transactionsByTime.clear();
+                timeKeys.clear();
+                deadCount.set(0);
+                retimedTransactions.clear();
+                depthEvents.clear();
+                depthEventHeights.clear();
+                countedDepthTransactions.clear();
+                rebuildSpendCandidatesLater();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -2438,7 +2776,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     if (!tx.isAnyOutputSpent()) {
                         tx.disconnectInputs();
                         i.remove();
+                        removePendingSpendsLocked(tx);
                         transactions.remove(tx.getHash());
+                        tx.getConfidence().clearDepthTracker(depthTracker);
+                        markSpendCandidatesStale(tx);
+                        indexTransactionLocked(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -2803,39 +3145,38 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
-        lock.lock();
-        try {
-            if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
-            } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            }else if (balanceType == BalanceType.ESTMINUSFEE) {
-            	return getBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
-        } finally {
-            lock.unlock();
+        if (balanceType == BalanceType.AVAILABLE) {
+            return getBalance(coinSelector);
+        } else if (balanceType == BalanceType.ESTIMATED) {
+            return getSnapshot().spendCandidatesValue;
+        }else if (balanceType == BalanceType.ESTMINUSFEE) {
+        	return getBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
         }
     }
 
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
-     * as many coins as possible and returns the total.
+     * as many coins as possible and returns the total. The answer is remembered until the wallet's outputs or their
+     * confidences change. The selector is run without the wallet lock held, on a snapshot of the spend candidates.
      */
     public Coin getBalance(CoinSelector selector) {
-        lock.lock();
-        try {
-            checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
-        } finally {
-            lock.unlock();
-        }
+        checkNotNull(selector);
+        Snapshot snapshot = getSnapshot();
+        int epoch = balanceEpoch.get();
+        CachedBalance cached = snapshot.cachedBalance;
+        if (cached != null && cached.selector == selector && cached.epoch == epoch)
+            return cached.value;
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (List<TransactionOutput> outputs : snapshot.spendCandidates) {
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            if (!outputs.get(0).getParentTransaction().isMature()) continue;
+            candidates.addAll(outputs);
+        }
+        Coin value = selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered;
+        snapshot.cachedBalance = new CachedBalance(selector, epoch, value);
+        return value;
     }
 
     /** Returns the available balance, including any unspent balance at watched addresses */
@@ -3353,6 +3694,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public void completeTx(SendRequest req) throws InsufficientMoneyException {
         lock.lock();
         try {
+            // Let readers carry on from a snapshot whilst we select coins and sign.
+            snapshotLocked();
             checkArgument(!req.completed, "Given SendRequest has already been completed.");
             // Calculate the amount of value we need to import
             // and check outputs are at least minimum values allowed
@@ -3539,15 +3882,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            updateSpendCandidatesLocked();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (List<TransactionOutput> outputs : spendCandidates.values()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !outputs.get(0).getParentTransaction().isMature()) continue;
+                candidates.addAll(outputs);
             }
             return candidates;
         } finally {
@@ -3555,6 +3895,90 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    // Marks the transaction, and those whose outputs it spends, to be looked at again by the spend candidate index.
+    private void markSpendCandidatesStale(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        balanceEpoch.incrementAndGet();
+        contentsVersion.incrementAndGet();
+        if (vRebuildSpendCandidates)
+            return;
+        staleSpendCandidates.add(tx.getHash());
+        for (TransactionInput input : tx.getInputs())
+            staleSpendCandidates.add(input.getOutpoint().getHash());
+    }
+
+    // Has every transaction looked at again by the spend candidate index. Needn't hold the lock.
+    private void rebuildSpendCandidatesLater() {
+        vRebuildSpendCandidates = true;
+        balanceEpoch.incrementAndGet();
+        contentsVersion.incrementAndGet();
+    }
+
+    // Returns a snapshot of the wallet contents, only taking the lock if they changed since the last one.
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == contentsVersion.get())
+            return snapshot;
+        lock.lock();
+        try {
+            return snapshotLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Snapshot snapshotLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        // Read first, so that a change made without the lock whilst building leaves the snapshot out of date.
+        int version = contentsVersion.get();
+        Snapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == version)
+            return snapshot;
+        updateSpendCandidatesLocked();
+        snapshot = new Snapshot(version, ImmutableList.copyOf(spendCandidates.values()), spendCandidatesValue);
+        vSnapshot = snapshot;
+        return snapshot;
+    }
+
+    // Brings the spend candidate index up to date.
+    private void updateSpendCandidatesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (vRebuildSpendCandidates) {
+            vRebuildSpendCandidates = false;
+            spendCandidates.clear();
+            spendCandidatesValue = Coin.ZERO;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                addSpendCandidates(tx);
+        } else {
+            for (Sha256Hash hash : staleSpendCandidates) {
+                List<TransactionOutput> outputs = spendCandidates.remove(hash);
+                if (outputs != null)
+                    for (TransactionOutput output : outputs)
+                        spendCandidatesValue = spendCandidatesValue.subtract(output.getValue());
+                Transaction tx = unspent.get(hash);
+                if (tx == null)
+                    tx = pending.get(hash);
+                if (tx != null)
+                    addSpendCandidates(tx);
+            }
+        }
+        staleSpendCandidates.clear();
+    }
+
+    private void addSpendCandidates(Transaction tx) {
+        List<TransactionOutput> outputs = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            if (outputs == null)
+                outputs = new ArrayList<TransactionOutput>(1);
+            outputs.add(output);
+            spendCandidatesValue = spendCandidatesValue.add(output.getValue());
+        }
+        if (outputs != null)
+            spendCandidates.put(tx.getHash(), outputs);
+    }
+
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
     public CoinSelector getCoinSelector() {
         lock.lock();
@@ -3641,11 +4065,13 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
+            // Too much moves around to keep track of, and re-orgs are rare.
+            rebuildSpendCandidatesLater();
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
+            for (Transaction tx : getTransactionsView(true)) {
                 Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
                 if (appearsIn == null) continue;  // Pending.
                 for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
@@ -3728,6 +4154,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
+            // Schedule depth events again from the split point, for the blocks about to be replayed.
+            scheduleAllDepthEventsLocked();
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -3773,6 +4202,92 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Returns the depth up to which transactions on the best chain get a DEPTH confidence event with every block.
+     * See {@link #setDepthEventHorizon(int)}.
+     */
+    public int getDepthEventHorizon() {
+        lock.lock();
+        try {
+            return depthEventHorizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets the depth up to which transactions on the best chain get a
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} confidence event with every block. Past it, events are
+     * only raised at the depths that {@link TransactionConfidence#getDepthFuture(int)} is waiting for and when a
+     * coinbase matures, so the work done for each block doesn't grow with the age and size of the wallet.
+     * {@link TransactionConfidence#getDepthInBlocks()} is always up to date regardless.</p>
+     *
+     * <p>The default is {@link #DEFAULT_DEPTH_EVENT_HORIZON}.</p>
+     */
+    public void setDepthEventHorizon(int depthEventHorizon) {
+        checkArgument(depthEventHorizon >= 0);
+        lock.lock();
+        try {
+            this.depthEventHorizon = depthEventHorizon;
+            scheduleAllDepthEventsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleAllDepthEventsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        depthEvents.clear();
+        depthEventHeights.clear();
+        countedDepthTransactions.clear();
+        for (Transaction tx : transactions.values())
+            scheduleDepthEventLocked(tx);
+    }
+
+    /**
+     * Works out the height at which the given transaction is next due a DEPTH confidence event, replacing any
+     * previous one.
+     */
+    private void scheduleDepthEventLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        Integer scheduled = depthEventHeights.remove(tx);
+        if (scheduled != null) {
+            Set<Transaction> atHeight = depthEvents.get(scheduled);
+            atHeight.remove(tx);
+            if (atHeight.isEmpty())
+                depthEvents.remove(scheduled);
+        }
+        countedDepthTransactions.remove(tx);
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        int appearedAtHeight = confidence.getAppearedAtChainHeight();
+        if (appearedAtHeight < 0) {
+            countedDepthTransactions.add(tx);
+            return;
+        }
+        int depth = confidence.getDepthInBlocks();
+        int nextDepth;
+        if (depth < depthEventHorizon) {
+            nextDepth = depth + 1;
+        } else {
+            nextDepth = confidence.getNextWantedDepth(depth);
+            int maturity = params.getSpendableCoinbaseDepth();
+            if (tx.isCoinBase() && depth < maturity && (nextDepth < 0 || maturity < nextDepth))
+                nextDepth = maturity;
+            if (nextDepth < 0)
+                return;
+        }
+        int height = appearedAtHeight + nextDepth - 1;
+        Set<Transaction> atHeight = depthEvents.get(height);
+        if (atHeight == null) {
+            atHeight = new LinkedHashSet<Transaction>();
+            depthEvents.put(height, atHeight);
+        }
+        atHeight.add(tx);
+        depthEventHeights.put(tx, height);
+    }
+
     //endregion
 
     /******************************************************************************************************************/
@@ -3786,7 +4301,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Override
     public int getBloomFilterElementCount() {
         int size = 0;
-        for (Transaction tx : getTransactions(false)) {
+        for (Transaction tx : getTransactionsView(false)) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
                     if (isTxOutputBloomFilterable(out))
@@ -3864,7 +4379,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     }
                 }
             }
-            for (Transaction tx : getTransactions(false)) {
+            for (Transaction tx : getTransactionsView(false)) {
                 for (int i = 0; i < tx.getOutputs().size(); i++) {
                     TransactionOutput out = tx.getOutputs().get(i);
                     try {
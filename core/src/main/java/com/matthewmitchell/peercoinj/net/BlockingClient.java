@@ -19,15 +19,20 @@ package com.matthewmitchell.peercoinj.net;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -38,15 +43,23 @@ import static com.google.common.base.Preconditions.checkState;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements GatheringMessageWriteTarget, ReadPausable {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
+    private static final int MAX_READ_BUFFERS_PER_SIZE = 16;
 
-    private final ByteBuffer dbuf;
+    // Read buffers that are not holding part of a message, shared by all clients. A connection only takes one while
+    // bytes are arriving, so idle connections (most of them, most of the time) hold none.
+    private static final ConcurrentMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> readBuffers =
+            new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+
+    private final int bufferSize;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    private final Object readPauseLock = new Object();
+    @GuardedBy("readPauseLock") private boolean readPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -62,30 +75,64 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, socketFactory, clientSet, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread t = new Thread(command);
+                t.setDaemon(true);
+                t.start();
+            }
+        });
+    }
+
+    /**
+     * <p>As {@link #BlockingClient(SocketAddress, StreamParser, int, SocketFactory, Set)}, but the connection is run
+     * as a single long lived task on the given executor instead of on a thread of its own. The executor must give the
+     * task a thread to block on for as long as the connection is open, such as a virtual thread or a thread from a
+     * pool.</p>
+     *
+     * @throws IOException if the executor rejects the connection.
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet,
+                          Executor executor) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        bufferSize = Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
-        Thread t = new Thread() {
+        Runnable connection = new Runnable() {
             @Override
             public void run() {
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+                thread.setName("BlockingClient network thread for " + serverAddress);
                 if (clientSet != null)
                     clientSet.add(BlockingClient.this);
+                ByteBuffer dbuf = null;
                 try {
-                    InetSocketAddress iServerAddress = (InetSocketAddress)serverAddress;
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
-                        if (read == -1)
+                        awaitReadResumed();
+                        // Wait for the next byte without holding a buffer, then take whatever else has already arrived
+                        // straight into the buffer's array.
+                        int first = stream.read();
+                        if (first == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        if (dbuf == null)
+                            dbuf = acquireReadBuffer(bufferSize);
+                        checkState(dbuf.remaining() > 0);
+                        dbuf.put((byte) first);
+                        int available = Math.min(dbuf.remaining(), stream.available());
+                        if (available > 0) {
+                            int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(), available);
+                            if (read == -1)
+                                return;
+                            dbuf.position(dbuf.position() + read);
+                        }
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -93,8 +140,12 @@ public class BlockingClient implements MessageWriteTarget {
                         int bytesConsumed = parser.receiveBytes(dbuf);
                         checkState(dbuf.position() == bytesConsumed);
                         // Now drop the bytes which were read by compacting dbuf (resetting limit and keeping relative
-                        // position)
+                        // position), and give the buffer back if nothing is left in it.
                         dbuf.compact();
+                        if (dbuf.position() == 0) {
+                            releaseReadBuffer(dbuf);
+                            dbuf = null;
+                        }
                     }
                 } catch (Exception e) {
                     if (!vCloseRequested)
@@ -105,15 +156,43 @@ public class BlockingClient implements MessageWriteTarget {
                     } catch (IOException e1) {
                         // At this point there isn't much we can do, and we can probably assume the channel is closed
                     }
+                    if (dbuf != null)
+                        releaseReadBuffer(dbuf);
                     if (clientSet != null)
                         clientSet.remove(BlockingClient.this);
                     parser.connectionClosed();
+                    thread.setName(threadName);
                 }
             }
         };
-        t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
-        t.start();
+        try {
+            executor.execute(connection);
+        } catch (RejectedExecutionException e) {
+            socket.close();
+            throw new IOException("No thread available for a connection to " + serverAddress, e);
+        }
+    }
+
+    private static ByteBuffer acquireReadBuffer(int size) {
+        ConcurrentLinkedQueue<ByteBuffer> pool = readBuffers.get(size);
+        ByteBuffer buffer = pool == null ? null : pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void releaseReadBuffer(ByteBuffer buffer) {
+        ConcurrentLinkedQueue<ByteBuffer> pool = readBuffers.get(buffer.capacity());
+        if (pool == null) {
+            ConcurrentLinkedQueue<ByteBuffer> fresh = new ConcurrentLinkedQueue<ByteBuffer>();
+            pool = readBuffers.putIfAbsent(buffer.capacity(), fresh);
+            if (pool == null)
+                pool = fresh;
+        }
+        // Racing threads may keep a buffer or two more than the limit, which does no harm.
+        if (pool.size() < MAX_READ_BUFFERS_PER_SIZE)
+            pool.offer(buffer);
     }
 
     /**
@@ -126,11 +205,27 @@ public class BlockingClient implements MessageWriteTarget {
         try {
             vCloseRequested = true;
             socket.close();
+            setReadPaused(false); // Let the network thread find the socket closed
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readPaused = paused;
+            readPauseLock.notifyAll();
+        }
+    }
+
+    private void awaitReadResumed() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readPaused)
+                readPauseLock.wait();
+        }
+    }
+
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
         try {
@@ -143,4 +238,35 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            byte[] chunk = null;
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    continue;
+                }
+                // Sockets only take arrays, so direct buffers have to be copied out a chunk at a time.
+                if (chunk == null)
+                    chunk = new byte[BUFFER_SIZE_LOWER_BOUND];
+                ByteBuffer source = buffer.duplicate();
+                while (source.hasRemaining()) {
+                    int length = Math.min(chunk.length, source.remaining());
+                    source.get(chunk, 0, length);
+                    stream.write(chunk, 0, length);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            for (ByteBuffer buffer : buffers)
+                BufferPool.release(buffer);
+        }
+    }
 }
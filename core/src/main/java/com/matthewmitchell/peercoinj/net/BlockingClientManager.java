@@ -18,6 +18,7 @@ package com.matthewmitchell.peercoinj.net;
 
 import com.google.common.util.concurrent.AbstractIdleService;
 
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -25,24 +26,41 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * <p>A thin wrapper around a set of {@link BlockingClient}s.</p>
  *
+ * <p>Each connection needs a thread to block on. When the JVM has virtual threads (Java 21 and later) every
+ * connection gets one of those, which costs little more than its stack, so hundreds of connections don't need
+ * hundreds of OS threads. Otherwise connections run on a pool of daemon threads, kept for reuse as connections come
+ * and go, and bounded so that a connection storm can't exhaust the machine: once {@link #DEFAULT_MAX_THREADS} (or
+ * the number given to the constructor) connections are open, opening another throws until some close.</p>
+ *
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    /** The most connections open at once when they run on a thread pool rather than on virtual threads. */
+    public static final int DEFAULT_MAX_THREADS = 256;
+
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
+    private final Executor executor;
+    @Nullable private final ThreadPoolExecutor threadPool;
 
     private int connectTimeoutMillis = 1000;
 
     public BlockingClientManager() {
-        socketFactory = SocketFactory.getDefault();
+        this(SocketFactory.getDefault());
     }
 
     /**
@@ -50,7 +68,57 @@ public class BlockingClientManager extends AbstractIdleService implements Client
      * peercoinj connects to the P2P network.
      */
     public BlockingClientManager(SocketFactory socketFactory) {
+        this(socketFactory, DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * Creates a blocking client manager that will obtain sockets from the given factory, and allows at most the given
+     * number of connections when virtual threads aren't available.
+     */
+    public BlockingClientManager(SocketFactory socketFactory, int maxThreads) {
+        checkArgument(maxThreads > 0);
         this.socketFactory = checkNotNull(socketFactory);
+        final ThreadFactory virtualThreads = virtualThreadFactory();
+        if (virtualThreads != null) {
+            threadPool = null;
+            executor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    virtualThreads.newThread(command).start();
+                }
+            };
+        } else {
+            threadPool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setName("BlockingClient network thread");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor = threadPool;
+        }
+    }
+
+    // Returns a factory of virtual threads, or null if this JVM doesn't have them. Looked up reflectively as the
+    // library is built for Java 6.
+    @Nullable
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // Older JVMs, or virtual threads still in preview.
+            return null;
+        }
+    }
+
+    /** Returns true if connections run on virtual threads rather than on a bounded pool of threads. */
+    public boolean usesVirtualThreads() {
+        return threadPool == null;
     }
 
     @Override
@@ -58,9 +126,9 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients, executor);
         } catch (IOException e) {
-            throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
+            throw new RuntimeException(e); // This should only happen if we are, eg, out of threads or system resources
         }
     }
 
@@ -78,6 +146,9 @@ public class BlockingClientManager extends AbstractIdleService implements Client
             for (BlockingClient client : clients)
                 client.closeConnection();
         }
+        // Closing the connections ends their tasks, after which the pool's threads exit.
+        if (threadPool != null)
+            threadPool.shutdown();
     }
 
     @Override
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A pool of direct {@link ByteBuffer}s for outbound messages. Messages are serialized straight into a pooled
+ * buffer and the socket writes from it without the copy the JDK makes of heap buffers, and without allocating (and
+ * later collecting) a fresh buffer for every message sent.</p>
+ *
+ * <p>Buffers come in power of two sizes from 4KB to 256KB, and a few of each size are kept. Larger requests are given
+ * heap buffers, which are never pooled. A buffer must be released at most once, by whoever ends up owning it, and
+ * not touched afterwards.</p>
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 18;
+    private static final int MAX_BUFFERS_PER_SIZE = 16;
+
+    /** The largest buffer that is pooled. */
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicInteger[] pooledCounts = new AtomicInteger[pools.length];
+
+    static {
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // Returns the pool holding buffers of at least the given capacity, or -1 if it is too large to pool.
+    private static int poolIndex(int capacity) {
+        if (capacity > MAX_POOLED_SIZE)
+            return -1;
+        int shift = capacity <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least the given number of bytes. Buffers of up to
+     * {@link #MAX_POOLED_SIZE} bytes are direct and should be given back with {@link #release(ByteBuffer)}.
+     */
+    public static ByteBuffer acquire(int capacity) {
+        int index = poolIndex(capacity);
+        if (index < 0)
+            return ByteBuffer.allocate(capacity);
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        pooledCounts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer from {@link #acquire(int)} back to the pool. Any other buffer is ignored. */
+    public static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly())
+            return;
+        int index = poolIndex(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SHIFT))
+            return;
+        // The count may briefly overshoot when threads race, which just means a buffer too few is kept.
+        if (pooledCounts[index].incrementAndGet() > MAX_BUFFERS_PER_SIZE) {
+            pooledCounts[index].decrementAndGet();
+            return;
+        }
+        pools[index].offer(buffer);
+    }
+}
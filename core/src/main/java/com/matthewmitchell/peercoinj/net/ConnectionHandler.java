@@ -17,6 +17,7 @@
 package com.matthewmitchell.peercoinj.net;
 
 import com.matthewmitchell.peercoinj.core.Message;
+import com.matthewmitchell.peercoinj.utils.NetworkMetrics;
 import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
@@ -29,7 +30,7 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,18 +42,24 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements GatheringMessageWriteTarget, ReadPausable {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 32768;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // The most buffers handed to a single gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+    // How many reads of less than an eighth of the read buffer it takes for the buffer to shrink.
+    private static final int SHRINK_AFTER_SMALL_READS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    // Only touched by the selector thread.
+    private ByteBuffer readBuff;
+    private int minReadBuffSize, maxReadBuffSize, smallReads;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamParser parser;
@@ -60,6 +67,7 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -77,14 +85,24 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        minReadBuffSize = Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        maxReadBuffSize = Math.max(minReadBuffSize, Math.min(parser.getMaxMessageSize(), BufferPool.MAX_POOLED_SIZE));
+        readBuff = ByteBuffer.allocateDirect(minReadBuffSize);
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
+    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key, Set<ConnectionHandler> connectedHandlers) throws IOException {
+        this(parserFactory, key);
+        addTo(connectedHandlers);
+    }
+
     public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
         this(checkNotNull(parser), key);
+        addTo(connectedHandlers);
+    }
 
+    private void addTo(Set<ConnectionHandler> connectedHandlers) {
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // parser.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
         // to the connectedHandlers set.
@@ -112,14 +130,24 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing several
+            // buffers to each write call so that a run of small messages doesn't take a system call each.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    gatherBuffers[count++] = buff;
+                    if (count == gatherBuffers.length)
+                        break;
+                }
+                long written = channel.write(gatherBuffers, 0, count);
+                bytesToWriteRemaining -= written;
+                NetworkMetrics.get().outboundQueueChanged(-written);
+                boolean partial = gatherBuffers[count - 1].hasRemaining();
+                Arrays.fill(gatherBuffers, 0, count, null);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    BufferPool.release(bytesToWrite.poll());
+                if (partial) {
+                    // The OS buffer is full, wait until there's room again.
                     setWriteOps();
                     break;
                 }
@@ -135,22 +163,31 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller keeps the array, so it has to be copied. Use writeBuffers to hand over the bytes instead.
+        writeBuffers(new ByteBuffer[] { ByteBuffer.wrap(Arrays.copyOf(message, message.length)) });
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer[] buffers) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buff : buffers)
+                length += buff.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            Collections.addAll(bytesToWrite, buffers);
+            bytesToWriteRemaining += length;
+            NetworkMetrics.get().outboundQueueChanged(length);
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
+            releaseAll(buffers);
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
@@ -163,6 +200,32 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Already closed, so there's nothing left to read anyway
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void releaseAll(Iterable<ByteBuffer> buffers) {
+        for (ByteBuffer buff : buffers)
+            BufferPool.release(buff);
+    }
+
+    private static void releaseAll(ByteBuffer[] buffers) {
+        releaseAll(Arrays.asList(buffers));
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -180,6 +243,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so the pooled buffers can be reused.
+            releaseAll(bytesToWrite);
+            bytesToWrite.clear();
+            NetworkMetrics.get().outboundQueueChanged(-bytesToWriteRemaining);
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -189,6 +257,30 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Grows the read buffer while reads keep filling it, so that large messages such as blocks arrive in fewer reads
+    // and parsers can frame them without reassembling them, and shrinks it again once reads have been small for a
+    // while. Called on the selector thread with the buffer compacted.
+    private void adaptReadBuff(int read, boolean filled) {
+        int capacity = readBuff.capacity();
+        if (filled && capacity < maxReadBuffSize) {
+            resizeReadBuff(Math.min(capacity * 2, maxReadBuffSize));
+        } else if (read < capacity / 8 && capacity > minReadBuffSize) {
+            if (++smallReads >= SHRINK_AFTER_SMALL_READS && readBuff.position() <= capacity / 4)
+                resizeReadBuff(Math.max(capacity / 2, minReadBuffSize));
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    private void resizeReadBuff(int capacity) {
+        ByteBuffer buff = BufferPool.acquire(capacity);
+        readBuff.flip();
+        buff.put(readBuff);
+        BufferPool.release(readBuff);
+        readBuff = buff;
+        smallReads = 0;
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -211,6 +303,7 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
+                boolean filled = !handler.readBuff.hasRemaining();
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
                 handler.readBuff.flip();
                 // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
@@ -219,6 +312,7 @@ class ConnectionHandler implements MessageWriteTarget {
                 // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
                 // position)
                 handler.readBuff.compact();
+                handler.adaptReadBuff(read, filled);
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} which can write a message straight from the buffers it was serialized into. The write
+ * targets given to parsers by {@link NioClientManager}, {@link NioServer} and {@link BlockingClient} all implement this;
+ * writers should check for it and fall back to {@link #writeBytes(byte[])} for any other target.
+ */
+public interface GatheringMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffers to the remote server, in order, without copying them. The
+     * target takes ownership of the buffers, even if an exception is thrown, and gives any that came from the
+     * {@link BufferPool} back once they have been written.
+     */
+    void writeBuffers(ByteBuffer[] buffers) throws IOException;
+}
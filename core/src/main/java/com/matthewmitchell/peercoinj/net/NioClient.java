@@ -24,7 +24,7 @@ import java.nio.ByteBuffer;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements GatheringMessageWriteTarget {
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
@@ -108,4 +108,10 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        // The write target always comes from our own NioClientManager
+        ((GatheringMessageWriteTarget) handler.writeTarget).writeBuffers(buffers);
+    }
 }
@@ -18,42 +18,51 @@ package com.matthewmitchell.peercoinj.net;
 
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in one
+ * or more network processing threads, each of which handles its share of the connections.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
-    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
-    class SocketChannelAndParser {
-        SocketChannel sc; StreamParser parser;
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
-    }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+    private final SelectorLoop[] loops;
 
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    private final SelectorLoop.KeyHandler keyHandler = new SelectorLoop.KeyHandler() {
+        @Override
+        public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+            NioClientManager.this.handleKey(loop, key);
+        }
+    };
 
     // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
+    private void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+        if (key.attachment() instanceof StreamParser) { // ie a client connection which is still connecting
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            loop.pendingConnections.decrementAndGet();
+            // We could have a !isValid() key here if the connection was closed before it finished connecting
+            if (!key.isValid() || !key.isConnectable()) {
+                log.info("Connection closed before it finished connecting");
+                try {
+                    sc.close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+                parser.connectionClosed();
+                return;
+            }
+            // The initial connect process has finished, create a ConnectionHandler and hook everything together
+            ConnectionHandler handler = new ConnectionHandler(parser, key, loop.connectedHandlers);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
@@ -80,8 +89,21 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with the given number of threads
+     * handling select calls. New connections go to whichever thread has the fewest, and each connection is then read
+     * and parsed on its thread alone, so its messages are still processed in order. Use more than one thread when
+     * there are enough connections that a single thread becomes the bottleneck.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0);
+        loops = new SelectorLoop[selectorThreads];
         try {
-            selector = SelectorProvider.provider().openSelector();
+            for (int i = 0; i < selectorThreads; i++)
+                loops[i] = new SelectorLoop();
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -89,48 +111,32 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        // The first loop runs on the service's own thread, the rest get threads of their own.
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop(loop);
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
-            }
+            }, "NioClientManager selector " + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            threads.add(thread);
         }
+        runLoop(loops[0]);
+        for (Thread thread : threads)
+            Uninterruptibles.joinUninterruptibly(thread);
+    }
+
+    private void runLoop(SelectorLoop loop) {
+        loop.run(keyHandler);
+        // A loop only stops by itself when it fails, which brings the whole manager down as it did with a single loop.
+        for (SelectorLoop other : loops)
+            other.shutdown();
     }
 
     @Override
@@ -142,8 +148,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            register(SelectorLoop.leastLoaded(loops), sc, parser);
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -153,22 +158,56 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    // Registers a connecting channel with the loop's selector, on the loop's thread
+    private void register(final SelectorLoop loop, final SocketChannel sc, final StreamParser parser) {
+        loop.pendingConnections.incrementAndGet();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                    key.attach(parser);
+                } catch (ClosedChannelException e) {
+                    loop.pendingConnections.decrementAndGet();
+                    log.info("SocketChannel was closed before it could be registered");
+                } catch (ClosedSelectorException e) {
+                    loop.pendingConnections.decrementAndGet();
+                    try {
+                        sc.close();
+                    } catch (IOException e1) {
+                        log.error("Error closing channel", e1);
+                    }
+                }
+            }
+        });
+    }
+
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.shutdown();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (SelectorLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
+            // Take connections from the busiest loop, keeping the loops balanced.
+            SelectorLoop busiest = loops[0];
+            for (SelectorLoop loop : loops) {
+                if (loop.connectedHandlers.size() > busiest.connectedHandlers.size())
+                    busiest = loop;
+            }
             ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            synchronized (busiest.connectedHandlers) {
+                handler = busiest.connectedHandlers.iterator().next();
             }
             if (handler != null)
                 handler.closeConnection(); // Removes handler from connectedHandlers before returning
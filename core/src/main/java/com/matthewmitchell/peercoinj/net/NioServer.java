@@ -19,14 +19,17 @@ package com.matthewmitchell.peercoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
  * process data.
@@ -37,29 +40,69 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamParserFactory parserFactory;
 
     private final ServerSocketChannel sc;
+    // The first loop also accepts new connections.
+    private final SelectorLoop[] loops;
     @VisibleForTesting final Selector selector;
 
+    private final SelectorLoop.KeyHandler keyHandler = new SelectorLoop.KeyHandler() {
+        @Override
+        public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+            NioServer.this.handleKey(loop, key);
+        }
+    };
+
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a parser as an attachment
+            // Accept a new connection and hand it to the loop with the fewest connections
             SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-                newKey.attach(handler);
-                handler.parser.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
-            }
+            SelectorLoop target = SelectorLoop.leastLoaded(loops);
+            if (target == loop)
+                registerConnection(loop, newChannel);
+            else
+                handOff(target, newChannel);
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    // Registers a newly accepted connection with the loop's selector and gives it a parser as an attachment, on the
+    // loop's thread
+    private void registerConnection(SelectorLoop loop, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+        try {
+            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey, loop.connectedHandlers);
+            newKey.attach(handler);
+            handler.parser.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            newKey.channel().close();
+        }
+    }
+
+    private void handOff(final SelectorLoop loop, final SocketChannel newChannel) {
+        loop.pendingConnections.incrementAndGet();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                loop.pendingConnections.decrementAndGet();
+                try {
+                    registerConnection(loop, newChannel);
+                } catch (Exception e) {
+                    // The channel or the loop was closed before the connection could be registered
+                    log.info("Could not register new connection: {}", e.toString());
+                    try {
+                        newChannel.close();
+                    } catch (IOException e1) {
+                        log.error("Error closing channel", e1);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamParser}s created by the given {@link StreamParserFactory}
@@ -67,51 +110,51 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}. Connections are spread across the
+     * given number of selector threads, each of which reads and parses for its own connections.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads) throws IOException {
+        checkArgument(selectorThreads > 0);
         this.parserFactory = parserFactory;
 
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new SelectorLoop();
+        selector = loops[0].selector;
+
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
-        try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop(loop);
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            }, "NioServer selector " + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            runLoop(loops[0]);
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
             try {
                 sc.close();
             } catch (IOException e) {
@@ -120,6 +163,13 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    private void runLoop(SelectorLoop loop) {
+        loop.run(keyHandler);
+        // A loop only stops by itself when it fails, which brings the whole server down as it did with a single loop.
+        for (SelectorLoop other : loops)
+            other.shutdown();
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +177,8 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        for (SelectorLoop loop : loops)
+            loop.shutdown();
     }
 }
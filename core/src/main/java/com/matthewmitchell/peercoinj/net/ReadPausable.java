@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+/**
+ * A {@link MessageWriteTarget} which can stop reading from its connection for a while, so that a {@link StreamParser}
+ * which is handed data faster than it can deal with it can hold the remote end back rather than buffering without
+ * limit. The write targets given to parsers by {@link NioClientManager}, {@link NioServer} and {@link BlockingClient}
+ * all implement this.
+ */
+public interface ReadPausable {
+    /**
+     * Stops passing bytes to the parser until this is called again with false. Bytes which were already read may still
+     * be passed on after reading is paused. May be called from any thread.
+     */
+    void setReadPaused(boolean paused);
+}
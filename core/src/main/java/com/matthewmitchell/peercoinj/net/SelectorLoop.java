@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector and the loop which services it on a single thread. {@link NioClientManager} and {@link NioServer} spread
+ * their connections across several of these so that reading and parsing for many connections isn't held to one core,
+ * and a slow connection only holds up the others sharing its loop.
+ */
+class SelectorLoop {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    interface KeyHandler {
+        void handleKey(SelectorLoop loop, SelectionKey key) throws IOException;
+    }
+
+    final Selector selector;
+    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+    final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    // Connections handed to this loop which aren't in connectedHandlers yet, counted so that a burst of new connections
+    // is balanced too.
+    final AtomicInteger pendingConnections = new AtomicInteger();
+
+    private final Queue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+    private volatile boolean running = true;
+
+    SelectorLoop() throws IOException {
+        selector = SelectorProvider.provider().openSelector();
+    }
+
+    /** Returns the loop with the fewest connections. */
+    static SelectorLoop leastLoaded(SelectorLoop[] loops) {
+        SelectorLoop best = loops[0];
+        for (int i = 1; i < loops.length; i++) {
+            if (loops[i].getLoad() < best.getLoad())
+                best = loops[i];
+        }
+        return best;
+    }
+
+    int getLoad() {
+        return connectedHandlers.size() + pendingConnections.get();
+    }
+
+    /** Runs the given task on the loop's thread before it next selects, eg to register a channel with its selector. */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Makes {@link #run(KeyHandler)} return, closing every channel registered with the selector. */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Selects and handles keys until {@link #shutdown()} is called or handling a key throws. */
+    void run(KeyHandler handler) {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handler.handleKey(this, key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection: ", e);
+        } finally {
+            running = false;
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+                else if (key.attachment() instanceof StreamParser)
+                    pendingConnections.decrementAndGet(); // A client connection which never finished connecting
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("Error closing selector", e);
+            }
+            // Let registrations which didn't make it find the selector closed, so they close their channels.
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Error cancelling registration", e);
+                }
+            }
+        }
+    }
+}
@@ -22,12 +22,18 @@ import com.google.common.annotations.VisibleForTesting;
 import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -46,19 +52,25 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>The design is based pretty heavily on sipa/Bitcoin Core's addrman/addr.dat:
  * <ul>
- * <li>Addresses are stored in limited-size sets and thrown away randomly with weight given to addresses not seen in
- * some time (ie no peers have announced them in some time and we have not successfully connected to them in some time).
- * Unlike Bitcoin Core's addrman, we do not have separate groups of sets for addresses which are new and addresses which
- * have been connected to in the past.</li>
- * <li>Sets are indexed by three values: first the IP subnet of the peer which announced the given address, second by
- * the address' IP subnet, and third by a random key which randomizes where collisions will happen. The random key and
- * announcing peer subnet is used to select a group of 16 sets. The random key and IP's subnet are then used to select
- * one of these 16 sets, to which the address is added.</li>
- * <li>The random key is important as it prevents determinism and makes it impossible to predict which sets a given
+ * <li>Addresses are stored in limited-size buckets and thrown away with weight given to addresses not seen in some
+ * time (ie no peers have announced them in some time and we have not successfully connected to them in some time).
+ * Like Bitcoin Core's addrman, addresses we have only heard of are kept in "new" buckets and addresses we have
+ * connected to are moved to separate "tried" buckets, so a flood of announcements can't push out the peers known to
+ * work.</li>
+ * <li>New buckets are indexed by three values: first the IP subnet of the peer which announced the given address,
+ * second by the address' IP subnet, and third by a random key which randomizes where collisions will happen. The random
+ * key and announcing peer subnet is used to select a group of 8 buckets. The random key and IP's subnet are then used
+ * to select one of these 8 buckets, to which the address is added. Tried buckets are selected the same way, but by the
+ * address' own subnet and the address itself.</li>
+ * <li>The random key is important as it prevents determinism and makes it impossible to predict which buckets a given
  * source subnet is able to get its addresses placed in. Thus, an attacker which wants to fill the address database with
- * nodes it controls can only probabilistically fill all sets instead of being able to pick specific source IPs which
- * allow it to place entries in all sets.</li>
+ * nodes it controls can only probabilistically fill all buckets instead of being able to pick specific source IPs which
+ * allow it to place entries in all buckets.</li>
  * </ul></p>
+ *
+ * <p>The buckets are a table of fixed size records in a memory mapped file, and every change is written to its record
+ * as it happens, so what was learned is kept even if the process dies without calling {@link #shutdown()}.
+ * {@link #getPeers(long, TimeUnit)} samples random slots of an in-memory copy of the table without taking any lock.</p>
  */
 public class PeerDBDiscovery implements PeerDiscovery {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(PeerDBDiscovery.class);
@@ -66,106 +78,72 @@ public class PeerDBDiscovery implements PeerDiscovery {
     // Threading notes:
     //  * In general all calls will come in on the USER_THREAD so we're probably OK to just ignore threading, but we
     //    make some effort to ensure we are thread-safe against calls coming in via broken PeerGroup extensions.
-    //  * This means addAddress is synchronized so PeerData objects are created and updated atomically, however
-    //    PeerData.connected() is called outside of addAddress, so we have to ensure the fields it accesses are always
-    //    accessed in a thread-safe manner.
+    //  * Changes to the table and the file take the lock. Each slot's record is immutable and published atomically
+    //    into slots, so getPeers reads it without the lock.
 
     static final int SETS_PER_SOURCE = 8;
-    static final int TOTAL_SETS = 128;
-    static final int MAX_SET_SIZE = 16;
+    static final int NEW_BUCKETS = 128;
+    static final int TRIED_BUCKETS = 64;
+    static final int BUCKET_SIZE = 16;
     private static final int ADDRESSES_RETURNED = 128;
     private static final int MAX_ADDRESSES_FACTOR = 8; // Only ever return at max 1/8th the total addresses we have
 
-    class PeerData {
-         PeerAddress address;
-         /*@GuardedBy("super")*/ volatile long vTimeLastHeard = Utils.currentTimeMillis(); // Last time we heard of this node (ie a peer told us about it/we connected to it)
-         @GuardedBy("this") long lastConnected = 0; // Last time we successfully connected to this node
-         @GuardedBy("this") long triedSinceLastConnection = 0; // Number of times we've tried to connect to this node since the last success
-
-        PeerData(PeerAddress address) { this.address = address; }
-
-        PeerData(InputStream input) throws IOException {
-            byte[] peerAddress = new byte[30 + 8*3];
-            checkState(input.read(peerAddress) == peerAddress.length);
-            address = new PeerAddress(params, peerAddress, 0, NetworkParameters.PROTOCOL_VERSION);
-            vTimeLastHeard = Utils.readInt64(peerAddress, 30);
-            lastConnected = Utils.readInt64(peerAddress, 30 + 8);
-            triedSinceLastConnection = Utils.readInt64(peerAddress, 30 + 16);
-        }
-
-        synchronized void write(OutputStream s) throws IOException {
-            address.peercoinSerialize(s);
-            Utils.int64ToByteStreamLE(vTimeLastHeard, s);
-            Utils.int64ToByteStreamLE(lastConnected, s);
-            Utils.int64ToByteStreamLE(triedSinceLastConnection, s);
-            triedSinceLastConnection = Math.max(0, triedSinceLastConnection);
+    // File layout: a header of magic, version and random key, then a record for each slot, new buckets first.
+    private static final String MAGIC = "PPDB";
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    // In use flag (1), unused (1), port (2), tries since last connection (4), IPv6 or IPv4 mapped address (16),
+    // services (8), last heard (8), last connected (8).
+    private static final int RECORD_SIZE = 48;
+    private static final int NEW_SLOTS = NEW_BUCKETS * BUCKET_SIZE;
+    private static final int SLOTS = NEW_SLOTS + TRIED_BUCKETS * BUCKET_SIZE;
+    static final int FILE_SIZE = HEADER_SIZE + SLOTS * RECORD_SIZE;
+
+    // What we know about an address. Immutable, a change is a new record in the same slot.
+    private static class Record {
+        final InetSocketAddress address;
+        final long services;
+        final long lastHeard; // Last time we heard of this node (ie a peer told us about it/we connected to it)
+        final long lastConnected; // Last time we successfully connected to this node
+        final int tries; // Number of times we've tried to connect to this node since the last success
+
+        Record(InetSocketAddress address, long services, long lastHeard, long lastConnected, int tries) {
+            this.address = address;
+            this.services = services;
+            this.lastHeard = lastHeard;
+            this.lastConnected = lastConnected;
+            this.tries = tries;
         }
 
-        synchronized void connected() {
-            triedSinceLastConnection = -1;
-            lastConnected = Utils.currentTimeMillis();
-        }
-
-        synchronized void disconnected() {
-            triedSinceLastConnection++;
-        }
-
-        synchronized boolean isBad() {
-            return (lastConnected == 0 && triedSinceLastConnection >= 3) || // Tried 3 times and never connected
-                    (lastConnected < Utils.currentTimeMillis() - TimeUnit.DAYS.toMillis(5) &&
-                            triedSinceLastConnection >= 3) || // Tried 3 times since last connection, which was > 5 days ago
-                    (vTimeLastHeard < Utils.currentTimeMillis() - TimeUnit.DAYS.toMillis(14)); // Haven't heard of node in 14 days
-        }
-
-        @Override public synchronized int hashCode() { return (int) (address.toSocketAddress().hashCode() ^ rotatingRandomKey); }
-        @Override public synchronized boolean equals(Object o) { return (o instanceof PeerData) && ((PeerData) o).address.toSocketAddress().equals(address.toSocketAddress()); }
-    }
-
-    class AddressSet extends HashSet<PeerData> {
-        @Override
-        public boolean add(PeerData peer) {
-            if (size() == MAX_SET_SIZE) {
-                // Loop through our elements, throwing away ones which are considered useless
-                Iterator<PeerData> it = iterator();
-                while (it.hasNext()) {
-                    PeerData peerToCheck = it.next();
-                    if (peerToCheck.isBad()) {
-                        log.debug("Removing bad node " + peerToCheck.address);
-                        it.remove();
-                    }
-                }
-                if (size() == MAX_SET_SIZE) {
-                    // If we're still too large, throw away an element selected based on rotatingRandomKey
-                    it = iterator();
-                    it.next(); it.remove();
-                }
-            }
-            checkState(size() < MAX_SET_SIZE);
-            return super.add(peer);
+        boolean isBad(long now) {
+            return (lastConnected == 0 && tries >= 3) || // Tried 3 times and never connected
+                    (lastConnected < now - TimeUnit.DAYS.toMillis(5) &&
+                            tries >= 3) || // Tried 3 times since last connection, which was > 5 days ago
+                    (lastHeard < now - TimeUnit.DAYS.toMillis(14)); // Haven't heard of node in 14 days
         }
     }
 
     private NetworkParameters params;
 
-    @GuardedBy("this") List<AddressSet> addressBuckets = new ArrayList<AddressSet>(TOTAL_SETS);
+    private final ReentrantLock lock = Threading.lock("PeerDBDiscovery");
+    private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<Record>(SLOTS);
+    private final AtomicInteger newCount = new AtomicInteger(), triedCount = new AtomicInteger();
     // We never keep multiple entries for a peer on different ports as one of our primary goals it to get as diverse a set of peers as possible
-    @GuardedBy("this") Map<InetAddress, PeerData> addressToSetMap = new HashMap<InetAddress, PeerData>();
-    // Keep a static random key that is used to select set groups/sets and a rotating random key that changes on each restart
+    @GuardedBy("lock") private final Map<InetAddress, Integer> slotOfAddress = new HashMap<InetAddress, Integer>();
+    @GuardedBy("lock") private final MappedByteBuffer buffer;
+    // Keep a static random key that is used to select buckets
     private long randomKey;
-    private long rotatingRandomKey = new Random(Utils.currentTimeMillis()).nextLong();
-
-    private final File db;
 
     // Write some data representing the subnet address is in to out. Trying to figure out which subnet size we should
     // use to ensure a single ISP/user cannot get in tons of address groups simply by switching IPs within their
     // allocation.
-    private void writeAddressGroup(PeerAddress address, OutputStream out) throws IOException {
+    private void writeAddressGroup(InetAddress address, OutputStream out) throws IOException {
         // We use a system similar to GetGroup() in Bitcoin Core, however we do not handle nearly as many cases for
         // address types which are rarely used (RFC6052) and a few which are used more commonly (Teredo, 6to4).
         // While more should probably be added, not having them simply means we consider entire blocks a single group
         // instead of splitting them into more realistic groups.
-        byte[] addressBytes = address.getAddr().getAddress();
-        if (address.getAddr() instanceof Inet4Address) {
+        byte[] addressBytes = address.getAddress();
+        if (address instanceof Inet4Address) {
             // If the address is in a /8 that was allocated to a single group, use the /8, otherwise use the /16
             if (addressBytes[0] <= 57 && addressBytes[0] != 50 && addressBytes[0] != 49 && addressBytes[0] != 46 &&
                     addressBytes[0] != 42 && addressBytes[0] != 41 && addressBytes[0] != 39 && addressBytes[0] != 37 &&
@@ -188,68 +166,257 @@ public class PeerDBDiscovery implements PeerDiscovery {
         }
     }
 
-    // May return null if address.getAddr() != from.getAddr(), otherwise must return a PeerData
-    private synchronized PeerData addAddress(PeerAddress address, PeerAddress from) {
-        PeerData peer = addressToSetMap.get(address.getAddr());
-        if (peer == null) {
-            peer = new PeerData(address);
-            addressToSetMap.put(address.getAddr(), peer);
+    private int hash(ByteArrayOutputStream stream) {
+        return Sha256Hash.create(stream.toByteArray()).hashCode() & Integer.MAX_VALUE;
+    }
 
-            try {
-                // We write out information needed and use a cryptographic hash to ensure there are no sets of IP groups
-                // which have a higher probability of filling all sets than any other sets of groups (and because we do
-                // not use a secure random value for randomKey).
-                // setSelector is used to select the set used within the possible sets for a given source group
-                // it is used % SETS_PER_SOURCE as there should only be SETS_PER_SOURCE sets used per source group
-                ByteArrayOutputStream setWithinGroupSelector = new UnsafeByteArrayOutputStream();
-                Utils.uint32ToByteStreamLE(randomKey, setWithinGroupSelector);
-                writeAddressGroup(address, setWithinGroupSelector);
-
-                ByteArrayOutputStream setSelector = new UnsafeByteArrayOutputStream();
-                Utils.uint32ToByteStreamLE(randomKey, setSelector);
-                writeAddressGroup(from, setSelector); // Select which group of sets we will use
-                // Now select one of SETS_PER_SOURCE sets to use within the selected group
-                Utils.uint32ToByteStreamLE(Math.abs(Sha256Hash.create(setWithinGroupSelector.toByteArray()).hashCode()) % SETS_PER_SOURCE, setSelector);
-
-                addressBuckets.get(Math.abs(Sha256Hash.create(setSelector.toByteArray()).hashCode()) % TOTAL_SETS).add(peer);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    // Selects the new bucket for an address announced by the given peer.
+    private int newBucket(InetAddress address, InetAddress from) {
+        try {
+            // We write out information needed and use a cryptographic hash to ensure there are no sets of IP groups
+            // which have a higher probability of filling all buckets than any other sets of groups (and because we do
+            // not use a secure random value for randomKey).
+            // setSelector is used to select the bucket used within the possible buckets for a given source group
+            // it is used % SETS_PER_SOURCE as there should only be SETS_PER_SOURCE buckets used per source group
+            ByteArrayOutputStream setWithinGroupSelector = new UnsafeByteArrayOutputStream();
+            Utils.uint32ToByteStreamLE(randomKey, setWithinGroupSelector);
+            writeAddressGroup(address, setWithinGroupSelector);
+
+            ByteArrayOutputStream setSelector = new UnsafeByteArrayOutputStream();
+            Utils.uint32ToByteStreamLE(randomKey, setSelector);
+            writeAddressGroup(from, setSelector); // Select which group of buckets we will use
+            // Now select one of SETS_PER_SOURCE buckets to use within the selected group
+            Utils.uint32ToByteStreamLE(hash(setWithinGroupSelector) % SETS_PER_SOURCE, setSelector);
+            return hash(setSelector) % NEW_BUCKETS;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Selects the tried bucket for an address: one of SETS_PER_SOURCE for its group, chosen by the address itself.
+    private int triedBucket(InetSocketAddress address) {
+        try {
+            ByteArrayOutputStream setWithinGroupSelector = new UnsafeByteArrayOutputStream();
+            Utils.uint32ToByteStreamLE(randomKey, setWithinGroupSelector);
+            setWithinGroupSelector.write(address.getAddress().getAddress());
+            Utils.uint32ToByteStreamLE(address.getPort(), setWithinGroupSelector);
+
+            ByteArrayOutputStream setSelector = new UnsafeByteArrayOutputStream();
+            Utils.uint32ToByteStreamLE(randomKey, setSelector);
+            writeAddressGroup(address.getAddress(), setSelector);
+            Utils.uint32ToByteStreamLE(hash(setWithinGroupSelector) % SETS_PER_SOURCE, setSelector);
+            return hash(setSelector) % TRIED_BUCKETS;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isTried(int slot) {
+        return slot >= NEW_SLOTS;
+    }
+
+    // Returns a free slot in the bucket, or else the one whose record is worth least: a bad one, or the one heard of
+    // (or for tried buckets, connected to) longest ago.
+    @GuardedBy("lock")
+    private int chooseSlotLocked(int firstSlot, long now) {
+        int worst = -1;
+        long worstTime = Long.MAX_VALUE;
+        for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+            Record record = slots.get(slot);
+            if (record == null)
+                return slot;
+            long time = record.isBad(now) ? Long.MIN_VALUE : isTried(slot) ? record.lastConnected : record.lastHeard;
+            if (time < worstTime) {
+                worst = slot;
+                worstTime = time;
             }
+        }
+        return worst;
+    }
+
+    // Writes the record, or clears the slot if it is null, both to the file and to the table.
+    @GuardedBy("lock")
+    private void setLocked(int slot, @Nullable Record record) {
+        Record old = slots.get(slot);
+        if (old != null && !(record != null && record.address.getAddress().equals(old.address.getAddress()))) {
+            slotOfAddress.remove(old.address.getAddress());
+            log.debug("Removing node {}", old.address);
+        }
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (record == null) {
+            buffer.put(offset, (byte) 0);
         } else {
+            byte[] ip = record.address.getAddress().getAddress();
+            if (ip.length == 4) {
+                // Store as an IPv4 mapped IPv6 address, which InetAddress.getByAddress maps back.
+                byte[] mapped = new byte[16];
+                mapped[10] = (byte) 0xff;
+                mapped[11] = (byte) 0xff;
+                System.arraycopy(ip, 0, mapped, 12, 4);
+                ip = mapped;
+            }
+            buffer.put(offset + 1, (byte) 0);
+            buffer.putShort(offset + 2, (short) record.address.getPort());
+            buffer.putInt(offset + 4, record.tries);
+            for (int i = 0; i < 16; i++)
+                buffer.put(offset + 8 + i, ip[i]);
+            buffer.putLong(offset + 24, record.services);
+            buffer.putLong(offset + 32, record.lastHeard);
+            buffer.putLong(offset + 40, record.lastConnected);
+            // Mark the record in use last, so a crash halfway through writing it leaves the slot empty or as it was.
+            buffer.put(offset, (byte) 1);
+            slotOfAddress.put(record.address.getAddress(), slot);
+        }
+        slots.set(slot, record);
+        AtomicInteger count = isTried(slot) ? triedCount : newCount;
+        count.addAndGet((record != null ? 1 : 0) - (old != null ? 1 : 0));
+    }
+
+    // Reads the record of a slot from the file, or returns null if the slot is empty.
+    @Nullable
+    private Record readRecord(int slot) throws IOException {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (buffer.get(offset) != 1)
+            return null;
+        byte[] ip = new byte[16];
+        for (int i = 0; i < 16; i++)
+            ip[i] = buffer.get(offset + 8 + i);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(ip), buffer.getShort(offset + 2) & 0xffff);
+        return new Record(address, buffer.getLong(offset + 24), buffer.getLong(offset + 32), buffer.getLong(offset + 40),
+                buffer.getInt(offset + 4));
+    }
+
+    // Returns the slot of the address after noting that we heard of it, adding it to a new bucket if it isn't known.
+    // May return -1 if address.getAddr() != from.getAddr(), otherwise always returns a slot.
+    @VisibleForTesting
+    int addAddress(PeerAddress address, PeerAddress from) {
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Integer slot = slotOfAddress.get(address.getAddr());
+            long services = address.getServices().longValue();
+            if (slot == null) {
+                slot = chooseSlotLocked(newBucket(address.getAddr(), from.getAddr()) * BUCKET_SIZE, now);
+                setLocked(slot, new Record(address.toSocketAddress(), services, now, 0, 0));
+                return slot;
+            }
+            Record record = slots.get(slot);
+            InetSocketAddress socketAddress = record.address;
             // We only keep one entry per IP to ensure our set of peers is as diverse as possible, so if the port
-            // differs we have to either throw peer away or replace it
-            if (address.getPort() != peer.address.getPort()) {
+            // differs we have to either throw the address away or replace the one we have
+            if (address.getPort() != socketAddress.getPort()) {
                 if (from.getAddr().equals(address.getAddr())) // If the node announced itself or we connected, replace
-                    peer.address = address;
+                    socketAddress = address.toSocketAddress();
                 else // Otherwise just ignore the new address (the old one will get thrown out eventually if necessary)
-                    return null;
+                    return -1;
             }
             // Pick up new service bits
-            peer.address.setServices(peer.address.getServices().or(address.getServices()));
+            setLocked(slot, new Record(socketAddress, record.services | services, now, record.lastConnected, record.tries));
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records a successful connection, moving the address to a tried bucket if it's in a new one. If the tried bucket
+    // is full, the address in it we connected to longest ago goes back to a new bucket.
+    @VisibleForTesting
+    void connected(PeerAddress address) {
+        int slot = addAddress(address, address);
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Record record = slots.get(slot);
+            // -1 so that the disconnection which follows leaves no tries against it
+            record = new Record(record.address, record.services, record.lastHeard, now, -1);
+            if (isTried(slot)) {
+                setLocked(slot, record);
+                return;
+            }
+            setLocked(slot, null);
+            int triedSlot = chooseSlotLocked(NEW_SLOTS + triedBucket(record.address) * BUCKET_SIZE, now);
+            Record evicted = slots.get(triedSlot);
+            setLocked(triedSlot, record);
+            if (evicted != null) {
+                InetAddress evictedAddress = evicted.address.getAddress();
+                setLocked(chooseSlotLocked(newBucket(evictedAddress, evictedAddress) * BUCKET_SIZE, now), evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    void disconnected(PeerAddress address) {
+        int slot = addAddress(address, address);
+        lock.lock();
+        try {
+            Record record = slots.get(slot);
+            setLocked(slot, new Record(record.address, record.services, record.lastHeard, record.lastConnected,
+                    record.tries + 1));
+        } finally {
+            lock.unlock();
         }
-        peer.vTimeLastHeard = Utils.currentTimeMillis();
-        return peer;
     }
 
     /**
      * Creates a PeerDB for the given {@link PeerGroup}, adding this as a PeerDiscovery to the given group.
      */
     public PeerDBDiscovery(NetworkParameters params, File db, PeerGroup group) {
-        this.params = params;
-        this.db = db;
-        for (int i = 0; i < TOTAL_SETS; i++)
-            addressBuckets.add(new AddressSet());
-
-        boolean doInit = !db.exists();
-        if (!doInit)
-            doInit = !maybeLoadFromFile(db);
-        if (doInit)
-            randomKey = new Random(Utils.currentTimeMillis()).nextLong();
-
+        this(params, db);
         listenForPeers(group);
         group.addPeerDiscovery(this);
     }
 
+    @VisibleForTesting
+    PeerDBDiscovery(NetworkParameters params, File db) {
+        this.params = params;
+        try {
+            // A database of the first version is imported into the new layout.
+            List<Record> imported = null;
+            if (db.exists() && db.length() != FILE_SIZE)
+                imported = maybeLoadVersion1(db);
+            // The mapping stays valid once the file is closed, so it isn't kept open.
+            RandomAccessFile file = new RandomAccessFile(db, "rw");
+            boolean load = file.length() == FILE_SIZE;
+            file.setLength(FILE_SIZE);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            file.close();
+            byte[] magic = new byte[4];
+            buffer.get(magic);
+            if (load && (!new String(magic, "US-ASCII").equals(MAGIC) || buffer.getInt(4) != VERSION)) {
+                log.warn("PeerDB has an unknown format, starting again");
+                load = false;
+            }
+            lock.lock();
+            try {
+                if (load) {
+                    randomKey = buffer.getLong(8);
+                    for (int slot = 0; slot < SLOTS; slot++) {
+                        Record record = readRecord(slot);
+                        if (record != null && !slotOfAddress.containsKey(record.address.getAddress()))
+                            setLocked(slot, record);
+                    }
+                    log.info("Loaded {} new and {} tried addresses from the PeerDB", newCount.get(), triedCount.get());
+                } else {
+                    randomKey = new Random(Utils.currentTimeMillis()).nextLong();
+                    for (int slot = 0; slot < SLOTS; slot++)
+                        buffer.put(HEADER_SIZE + slot * RECORD_SIZE, (byte) 0);
+                    buffer.position(0);
+                    buffer.put(MAGIC.getBytes("US-ASCII"));
+                    buffer.putInt(VERSION);
+                    buffer.putLong(randomKey);
+                    if (imported != null)
+                        importLocked(imported);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Attaches a {@link PeerEventListener} to the given {@link PeerGroup} which listens for {@link AddressMessage}
      * announcements and peer connections to track known peers.
@@ -262,106 +429,126 @@ public class PeerDBDiscovery implements PeerDiscovery {
                     for (PeerAddress address : ((AddressMessage) m).getAddresses())
                         addAddress(address, p.getAddress());
                 }
-                
+
                 if (p.isAcked && !p.gaveAddrs)
 	                // Use the opportunity to send a GetAddr message if we have not
 	                // received an addr message with more than one address
                 	p.sendMessage(new GetAddrMessage(params));
-                
+
                 return m;
             }
 
             @Override
             public void onPeerConnected(Peer p, int peerCount) {
                 // When PeerGroups accept incoming connections, we should skip this and onPeerDisconnected
-                addAddress(p.getAddress(), p.getAddress()).connected();
+                connected(p.getAddress());
                 // We want addresses from them.
                 p.sendMessage(new GetAddrMessage(params));
             }
 
             @Override
             public void onPeerDisconnected(Peer p, int peerCount) {
-                addAddress(p.getAddress(), p.getAddress()).disconnected();
+                disconnected(p.getAddress());
             }
         }, Threading.SAME_THREAD);
     }
 
+    /**
+     * Returns a random selection of the addresses which aren't bad, taken from the tried and new buckets alike. Doesn't
+     * block on changes to the database.
+     */
     @Override
-    public synchronized InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
-        int addressesToReturn = Math.min(ADDRESSES_RETURNED, addressToSetMap.size()/MAX_ADDRESSES_FACTOR);
-        InetSocketAddress[] addresses = new InetSocketAddress[addressesToReturn];
-        //TODO: There is a better way to get a random set here
-        ArrayList<PeerData> peerList = new ArrayList<PeerData>(addressToSetMap.values());
-        Collections.shuffle(peerList);
-        Iterator<PeerData> iterator = peerList.iterator();
-        for (int i = 0; i < addressesToReturn; i++) {
-        	try {
-        		PeerData peer = iterator.next();
-        		while (peer.isBad() && iterator.hasNext())
-                    peer = iterator.next();
-                if (iterator.hasNext())
-                    addresses[i] = peer.address.toSocketAddress();
-        	} catch (NoSuchElementException e) {
-        		// No more peers
-        		break;
-        	}
+    public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        int tried = triedCount.get(), total = newCount.get() + tried;
+        int addressesToReturn = Math.min(ADDRESSES_RETURNED, total / MAX_ADDRESSES_FACTOR);
+        Set<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+        Random random = new Random();
+        long now = Utils.currentTimeMillis();
+        // Pick random slots, of tried or new buckets in proportion to how full they are, until we have enough. Slots
+        // are mostly full so this rarely takes many more attempts than addresses, but give up eventually.
+        for (int attempts = 0; addresses.size() < addressesToReturn && attempts < SLOTS * 4; attempts++) {
+            boolean fromTried = random.nextInt(total) < tried;
+            int slot = fromTried ? NEW_SLOTS + random.nextInt(SLOTS - NEW_SLOTS) : random.nextInt(NEW_SLOTS);
+            Record record = slots.get(slot);
+            if (record != null && !record.isBad(now))
+                addresses.add(record.address);
         }
-        log.debug("Returning {} addresses from db discovery", addressesToReturn);
-        return addresses;
+        log.debug("Returning {} addresses from db discovery", addresses.size());
+        return addresses.toArray(new InetSocketAddress[addresses.size()]);
     }
 
+    @VisibleForTesting
+    int getNewCount() {
+        return newCount.get();
+    }
+
+    @VisibleForTesting
+    int getTriedCount() {
+        return triedCount.get();
+    }
+
+    /** Writes outstanding changes to disk. They are kept in the meantime even if the process dies. */
     @Override public void shutdown() {
+        lock.lock();
         try {
-            saveToFile(db);
-        } catch (IOException e) {
-            log.error("Failed to save Peer set to file", e);
+            buffer.force();
+        } finally {
+            lock.unlock();
         }
     }
 
-    private synchronized boolean maybeLoadFromFile(File f) {
+    // Reads a database in the format of the first version, in which each of 128 sets of addresses was written out in
+    // turn. Returns null if the file isn't one.
+    @Nullable
+    private List<Record> maybeLoadVersion1(File f) {
         try {
-            InputStream s = new FileInputStream(f);
-            byte[] versionAndRandomKeyBytes = new byte[12];
-            if (s.read(versionAndRandomKeyBytes) != versionAndRandomKeyBytes.length) {
-                log.warn("Failed to read PeerDB Header");
-                return false;
-            }
-            if (Utils.readUint32(versionAndRandomKeyBytes, 0) != 1) {
-                log.warn("PeerDB is a different version (expected version 1 got " + Utils.readUint32(versionAndRandomKeyBytes, 0) + ")");
-                return false; // Newer version
-            }
-            randomKey = Utils.readInt64(versionAndRandomKeyBytes, 4);
-            for (int i = 0; i < TOTAL_SETS; i++) {
-                byte[] addressCountBytes = new byte[4];
-                checkState(s.read(addressCountBytes) == addressCountBytes.length);
-                int addresses = (int) Utils.readUint32(addressCountBytes, 0);
-                checkState(addresses <= MAX_SET_SIZE);
-                for (int j = 0; j < addresses; j++) {
-                    PeerData peer = new PeerData(s);
-                    addressBuckets.get(i).add(peer);
-                    addressToSetMap.put(peer.address.getAddr(), peer);
+            DataInputStream s = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                byte[] versionAndRandomKeyBytes = new byte[12];
+                s.readFully(versionAndRandomKeyBytes);
+                if (Utils.readUint32(versionAndRandomKeyBytes, 0) != 1)
+                    return null;
+                List<Record> records = new ArrayList<Record>();
+                for (int i = 0; i < NEW_BUCKETS; i++) {
+                    byte[] addressCountBytes = new byte[4];
+                    s.readFully(addressCountBytes);
+                    int addresses = (int) Utils.readUint32(addressCountBytes, 0);
+                    checkState(addresses <= BUCKET_SIZE);
+                    for (int j = 0; j < addresses; j++) {
+                        byte[] peerAddress = new byte[30 + 8*3];
+                        s.readFully(peerAddress);
+                        PeerAddress address = new PeerAddress(params, peerAddress, 0, NetworkParameters.PROTOCOL_VERSION);
+                        records.add(new Record(address.toSocketAddress(), address.getServices().longValue(),
+                                Utils.readInt64(peerAddress, 30), Utils.readInt64(peerAddress, 30 + 8),
+                                (int) Math.max(0, Utils.readInt64(peerAddress, 30 + 16))));
+                    }
                 }
+                log.info("Importing {} addresses from the old PeerDB format", records.size());
+                return records;
+            } finally {
+                s.close();
             }
-            return true;
-        } catch (FileNotFoundException e) {
-            return false;
         } catch (IllegalStateException e) {
-            return false;
+            return null;
         } catch (IOException e) {
-            log.error("Error reading PeerDB from file", e);
-            return false;
+            log.warn("Could not read old PeerDB: {}", e.toString());
+            return null;
         }
     }
 
-    //TODO Call on a regular basis
-    private synchronized void saveToFile(File f) throws IOException {
-        OutputStream s = new FileOutputStream(f);
-        Utils.uint32ToByteStreamLE(1, s); // Version tag
-        Utils.int64ToByteStreamLE(randomKey, s);
-        for (int i = 0; i < TOTAL_SETS; i++) {
-            Utils.uint32ToByteStreamLE(addressBuckets.get(i).size(), s);
-            for (PeerData peerData : addressBuckets.get(i))
-                peerData.write(s);
+    @GuardedBy("lock")
+    private void importLocked(List<Record> records) {
+        long now = Utils.currentTimeMillis();
+        for (Record record : records) {
+            if (slotOfAddress.containsKey(record.address.getAddress()))
+                continue;
+            // We don't know who announced them any more, so bucket them by themselves.
+            InetAddress address = record.address.getAddress();
+            int firstSlot = record.lastConnected != 0 ? NEW_SLOTS + triedBucket(record.address) * BUCKET_SIZE :
+                    newBucket(address, address) * BUCKET_SIZE;
+            int slot = chooseSlotLocked(firstSlot, now);
+            if (slots.get(slot) == null)
+                setLocked(slot, record);
         }
     }
 }
@@ -1190,11 +1190,8 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    byte[] sha256Input = stack.pollLast();
+                    stack.add(Utils.singleDigest(sha256Input, 0, sha256Input.length));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
@@ -1269,7 +1266,7 @@ public class Script {
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromPeercoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = SignatureCache.get().verify(hash, sigBytes, sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1337,9 +1334,10 @@ public class Script {
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromPeercoin(sigs.getFirst(), false);
+                byte[] sigBytes = sigs.getFirst();
+                TransactionSignature sig = TransactionSignature.decodeFromPeercoin(sigBytes, false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (SignatureCache.get().verify(hash, sigBytes, sig, pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.script;
+
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers signatures that have already been verified, so that a transaction checked once, for example when it
+ * was relayed to us, isn't checked again when it shows up in a block or a re-organize connects it once more.
+ * {@link Script} consults the cache for every OP_CHECKSIG and OP_CHECKMULTISIG.</p>
+ *
+ * <p>Entries are keyed by a salted hash of the signature hash, the public key and the signature, so each takes only
+ * a few dozen bytes and nobody can craft entries that collide. Only valid signatures are remembered. Once the cache
+ * is full the oldest entries are dropped first. The cache is split into shards so that the threads verifying the
+ * scripts of a block rarely contend.</p>
+ */
+public class SignatureCache {
+    /** The default number of signatures remembered. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private static final int SHARDS = 16;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final Map<Sha256Hash, Boolean>[] shards;
+    private final byte[] salt = new byte[16];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache that remembers up to the given number of signatures. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries >= SHARDS);
+        final int maxShardEntries = maxEntries / SHARDS;
+        shards = new Map[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new LinkedHashMap<Sha256Hash, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > maxShardEntries;
+                }
+            };
+        }
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the cache used by {@link Script}. */
+    public static SignatureCache get() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by {@link Script}, for instance with one of a different size. */
+    public static void set(SignatureCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Checks that the signature, as it appeared in the script, signs the given hash with the given public key. A
+     * signature verified before is answered from the cache.
+     *
+     * @param sigHash the hash that was signed, see {@link com.matthewmitchell.peercoinj.core.Transaction#hashForSignature}
+     * @param sigBytes the encoded signature the signature was decoded from, used to identify it
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] sigBytes, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // Fake signatures are only accepted by unit tests, and must not stay accepted after they are switched off.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        Sha256Hash key = key(sigHash, sigBytes, pubKey);
+        Map<Sha256Hash, Boolean> shard = shard(key);
+        synchronized (shard) {
+            if (shard.containsKey(key)) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        if (!ECKey.verify(sigHash.getBytes(), signature, pubKey))
+            return false;
+        synchronized (shard) {
+            shard.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    private Sha256Hash key(Sha256Hash sigHash, byte[] sigBytes, byte[] pubKey) {
+        byte[] hash = sigHash.getBytes();
+        // The lengths make the key unambiguous: otherwise moving bytes between the end of the public key and the start
+        // of the signature would give the same key, and be taken as verified without the public key being parsed.
+        ByteBuffer data = ByteBuffer.allocate(salt.length + hash.length + 4 + pubKey.length + 4 + sigBytes.length);
+        data.put(salt).put(hash).putInt(pubKey.length).put(pubKey).putInt(sigBytes.length).put(sigBytes);
+        return Sha256Hash.create(data.array());
+    }
+
+    private Map<Sha256Hash, Boolean> shard(Sha256Hash key) {
+        return shards[(key.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    /** Returns how many signatures were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many signatures had to be verified. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public int size() {
+        int size = 0;
+        for (Map<Sha256Hash, Boolean> shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /** Forgets all signatures. The hit and miss counts are kept. */
+    public void clear() {
+        for (Map<Sha256Hash, Boolean> shard : shards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredBlock;
+import com.matthewmitchell.peercoinj.core.StoredTransactionOutput;
+import com.matthewmitchell.peercoinj.core.StoredUndoableBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A write-back cache of unspent transaction outputs in front of another {@link FullPrunedBlockStore}, such as
+ * {@link H2FullPrunedBlockStore}. Connecting a block makes a store call for every input and output, and for the
+ * database backed stores each of those is a separate round trip. This store keeps outputs in memory instead and
+ * only writes them out, in one database batch, once the cache grows beyond its memory budget. Outputs that are
+ * created and spent between two flushes never reach the underlying store at all.</p>
+ *
+ * <p>The cache is split into shards by outpoint so that readers on other threads rarely contend with the thread
+ * connecting blocks. Changes made between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} are kept per thread until the commit, as the interface requires.</p>
+ *
+ * <p>Blocks and undo blocks are passed straight through. The verified chain head is only written together with the
+ * outputs it describes, so after a crash the underlying store still holds a consistent output set and the chain
+ * replays the blocks since the last flush. Call {@link #flush()} or {@link #close()} to write everything out.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget for cached outputs, in bytes. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64 * 1024 * 1024;
+
+    private static final int SHARDS = 16;
+    // Rough size of a cached output with an empty script: the entry, the outpoint key, hashes and map overhead.
+    private static final int ENTRY_OVERHEAD = 200;
+
+    // A cached output. Clean entries mirror the underlying store. An entry that isn't in the underlying store needs
+    // to be added when flushed, and a spent one that is needs to be removed.
+    private static class Entry {
+        final StoredTransactionOutput out;
+        final boolean inStore;
+        boolean spent;
+
+        Entry(StoredTransactionOutput out, boolean inStore, boolean spent) {
+            this.out = out;
+            this.inStore = inStore;
+            this.spent = spent;
+        }
+
+        boolean isDirty() {
+            return inStore == spent;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + out.getScriptBytes().length;
+        }
+    }
+
+    private static class Shard {
+        final LinkedHashMap<StoredTransactionOutPoint, Entry> entries = new LinkedHashMap<StoredTransactionOutPoint, Entry>();
+        long bytes;
+        // Moves on whenever an entry is dropped, so that a read of the underlying store that started before then
+        // knows its result may be out of date.
+        long removals;
+    }
+
+    // A change made inside a database batch. existed records whether the output was unspent before the batch.
+    private static class Change {
+        final StoredTransactionOutput out;
+        final boolean existed;
+        boolean spent;
+
+        Change(StoredTransactionOutput out, boolean existed, boolean spent) {
+            this.out = out;
+            this.existed = existed;
+            this.spent = spent;
+        }
+    }
+
+    private static class Batch {
+        final HashMap<StoredTransactionOutPoint, Change> changes = new HashMap<StoredTransactionOutPoint, Change>();
+        StoredBlock verifiedChainHead;
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final Shard[] shards;
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+    // The verified chain head matching the cached outputs, when it hasn't been written to the underlying store yet.
+    private volatile StoredBlock verifiedChainHead;
+    // Guards flushing and applying batches, which only the thread connecting blocks does in practice.
+    private final Object flushLock = new Object();
+
+    /**
+     * Wraps the given store with a cache of the default size.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param store The store the outputs are eventually written to.
+     * @param maxCacheBytes Roughly how much memory cached outputs may use before they are flushed to the store.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) {
+        checkArgument(maxCacheBytes > 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard();
+    }
+
+    private Shard shard(StoredTransactionOutPoint outPoint) {
+        return shards[(outPoint.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    private void putEntry(Shard shard, StoredTransactionOutPoint outPoint, Entry entry) {
+        Entry old = shard.entries.put(outPoint, entry);
+        if (old != null)
+            shard.bytes -= old.size();
+        shard.bytes += entry.size();
+    }
+
+    private void removeEntry(Shard shard, StoredTransactionOutPoint outPoint) {
+        Entry old = shard.entries.remove(outPoint);
+        if (old != null) {
+            shard.bytes -= old.size();
+            shard.removals++;
+        }
+    }
+
+    /** Returns the committed state of the output, loading it from the underlying store if it isn't cached. */
+    @Nullable
+    private StoredTransactionOutput getCommitted(StoredTransactionOutPoint outPoint) throws BlockStoreException {
+        Shard shard = shard(outPoint);
+        long removals;
+        synchronized (shard) {
+            Entry entry = shard.entries.get(outPoint);
+            if (entry != null)
+                return entry.spent ? null : entry.out;
+            removals = shard.removals;
+        }
+        StoredTransactionOutput out = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        if (out != null) {
+            synchronized (shard) {
+                // Don't overwrite anything a commit cached while we were reading, and don't cache what we read if
+                // an entry was dropped meanwhile: it may have been this output, spent and then flushed.
+                if (shard.removals == removals && !shard.entries.containsKey(outPoint))
+                    putEntry(shard, outPoint, new Entry(out, true, false));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        Batch current = batch.get();
+        if (current != null) {
+            Change change = current.changes.get(outPoint);
+            if (change != null)
+                return change.spent ? null : change.out;
+        }
+        return getCommitted(outPoint);
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Batch current = batch.get();
+        if (current == null) {
+            synchronized (flushLock) {
+                applyChange(outPoint, new Change(out, isCachedUnspent(outPoint), false));
+                maybeFlush();
+            }
+            return;
+        }
+        Change change = current.changes.get(outPoint);
+        if (change != null)
+            current.changes.put(outPoint, new Change(out, change.existed, false));
+        else
+            // New outputs are assumed not to exist yet, which saves a read of the store for every output created.
+            // Only a cached spent entry (from re-adding during a re-org) tells us otherwise.
+            current.changes.put(outPoint, new Change(out, isCachedUnspent(outPoint), false));
+    }
+
+    private boolean isCachedUnspent(StoredTransactionOutPoint outPoint) {
+        Shard shard = shard(outPoint);
+        synchronized (shard) {
+            Entry entry = shard.entries.get(outPoint);
+            return entry != null && !entry.spent;
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Batch current = batch.get();
+        Change change = current == null ? null : current.changes.get(outPoint);
+        if (change != null) {
+            if (change.spent)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            change.spent = true;
+            return;
+        }
+        StoredTransactionOutput existing = getCommitted(outPoint);
+        if (existing == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        if (current != null) {
+            current.changes.put(outPoint, new Change(existing, true, true));
+        } else {
+            synchronized (flushLock) {
+                applyChange(outPoint, new Change(existing, true, true));
+                maybeFlush();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch current = batch.get();
+        boolean anyUnknown = false, anySpent = false;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+            Change change = current == null ? null : current.changes.get(outPoint);
+            if (change != null) {
+                if (!change.spent)
+                    return true;
+                anySpent = true;
+                continue;
+            }
+            Shard shard = shard(outPoint);
+            synchronized (shard) {
+                Entry entry = shard.entries.get(outPoint);
+                if (entry == null)
+                    anyUnknown = true;
+                else if (!entry.spent)
+                    return true;
+                else
+                    anySpent = true;
+            }
+        }
+        if (!anyUnknown || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!anySpent)
+            return true;
+        // The store may only know of outputs we've spent since the last flush, so check the others one by one.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    // Applies a committed change to the cache. Must hold flushLock.
+    private void applyChange(StoredTransactionOutPoint outPoint, Change change) {
+        if (change.existed == !change.spent)
+            return;
+        Shard shard = shard(outPoint);
+        synchronized (shard) {
+            Entry entry = shard.entries.get(outPoint);
+            if (!change.spent) {
+                // A new output, or one that was spent and has been added back.
+                if (entry != null)
+                    entry.spent = false;
+                else
+                    putEntry(shard, outPoint, new Entry(change.out, false, false));
+            } else {
+                if (entry == null)
+                    putEntry(shard, outPoint, new Entry(change.out, true, true));
+                else if (entry.inStore)
+                    entry.spent = true;
+                else
+                    removeEntry(shard, outPoint);
+            }
+        }
+    }
+
+    /** Returns roughly how many bytes of memory the cached outputs use. */
+    public long getCachedBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    // Must hold flushLock.
+    private void maybeFlush() throws BlockStoreException {
+        if (getCachedBytes() > maxCacheBytes)
+            flush();
+    }
+
+    /**
+     * Writes all added and spent outputs, and the verified chain head they belong to, to the underlying store in one
+     * database batch, then evicts the oldest outputs of each shard until the cache is back under half its budget.
+     */
+    public void flush() throws BlockStoreException {
+        synchronized (flushLock) {
+            List<Entry> dirty = new ArrayList<Entry>();
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    for (Entry entry : shard.entries.values())
+                        if (entry.isDirty())
+                            dirty.add(entry);
+                }
+            }
+            StoredBlock head = verifiedChainHead;
+            if (dirty.isEmpty() && head == null)
+                return;
+            int added = 0, removed = 0;
+            store.beginDatabaseBatchWrite();
+            try {
+                for (Entry entry : dirty) {
+                    if (entry.spent) {
+                        store.removeUnspentTransactionOutput(entry.out);
+                        removed++;
+                    } else {
+                        store.addUnspentTransactionOutput(entry.out);
+                        added++;
+                    }
+                }
+                if (head != null)
+                    store.setVerifiedChainHead(head);
+                store.commitDatabaseBatchWrite();
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            } catch (RuntimeException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+            if (verifiedChainHead == head)
+                verifiedChainHead = null;
+            // Everything cached now matches the store: drop spent outputs and mark the rest as stored. Each shard then
+            // evicts its oldest entries until it is under its share of half the budget, so that we don't flush again
+            // straight away. Outputs are spread evenly over the shards by hash, so this is close to evicting the
+            // oldest across the whole cache without having to order entries between shards.
+            long shardTarget = maxCacheBytes / 2 / shards.length;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    for (Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = shard.entries.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<StoredTransactionOutPoint, Entry> mapEntry = it.next();
+                        Entry entry = mapEntry.getValue();
+                        if (entry.spent || shard.bytes > shardTarget) {
+                            it.remove();
+                            shard.bytes -= entry.size();
+                            shard.removals++;
+                        } else if (!entry.inStore) {
+                            mapEntry.setValue(new Entry(entry.out, true, false));
+                        }
+                    }
+                }
+            }
+            log.info("Flushed {} new and {} spent outputs to the block store", added, removed);
+        }
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current == null)
+            return;
+        batch.remove();
+        synchronized (flushLock) {
+            for (Map.Entry<StoredTransactionOutPoint, Change> change : current.changes.entrySet())
+                applyChange(change.getKey(), change.getValue());
+            if (current.verifiedChainHead != null)
+                verifiedChainHead = current.verifiedChainHead;
+            maybeFlush();
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.verifiedChainHead != null)
+            return current.verifiedChainHead;
+        StoredBlock head = verifiedChainHead;
+        return head != null ? head : store.getVerifiedChainHead();
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null)
+            current.verifiedChainHead = chainHead;
+        else
+            verifiedChainHead = chainHead;
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        // The underlying store only advances its chain head with the verified head when we flush.
+        StoredBlock chainHead = store.getChainHead();
+        StoredBlock verified = getVerifiedChainHead();
+        return verified.getHeight() > chainHead.getHeight() ? verified : chainHead;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    /** Flushes the cache and closes the underlying store. */
+    @Override
+    public void close() throws BlockStoreException {
+        try {
+            flush();
+        } finally {
+            store.close();
+        }
+    }
+}
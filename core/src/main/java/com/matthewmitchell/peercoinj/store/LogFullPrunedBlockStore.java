@@ -0,0 +1,1024 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in an append-only log of memory-mapped segment files,
+ * without a database. Block headers, undo blocks, unspent outputs and the chain head pointers are all records in
+ * the log. Spending an output or pruning an undo block appends a record saying so.</p>
+ *
+ * <p>Records are found through in-memory hash tables built from primitive arrays, which store only a fingerprint
+ * and a log position per entry, so the heap stays small even with millions of unspent outputs. The tables are
+ * rebuilt by replaying the log when the store is opened.</p>
+ *
+ * <p>Each {@link #commitDatabaseBatchWrite()} appends a commit record carrying a checksum of the batch and forces
+ * what the batch wrote to disk. When the store is reopened, anything after the last intact commit record is ignored, so a
+ * crash never leaves a partially applied block behind.</p>
+ *
+ * <p>Once the oldest segment is mostly made up of records that have been superseded, its live records are copied
+ * to the head of the log on a background thread and the segment file is deleted.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    /** The default size of each segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Every record is a 4 byte length (of the type and payload), a type byte and a payload that starts with its key.
+    private static final int RECORD_PREFIX = 5;
+    private static final byte RECORD_HEADER = 1;
+    private static final byte RECORD_UNDO = 2;
+    private static final byte RECORD_UNDO_REMOVED = 3;
+    private static final byte RECORD_OUTPUT = 4;
+    private static final byte RECORD_OUTPUT_SPENT = 5;
+    private static final byte RECORD_CHAIN_HEADS = 6;
+    private static final byte RECORD_COMMIT = 7;
+
+    private static final int HASH_KEY_SIZE = 32;
+    private static final int OUTPUT_KEY_SIZE = 36;
+
+    private static final long NONE = -1;
+    // Marks entries removed in the current batch.
+    private static final Long REMOVED = NONE;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        // Only used by the thread holding the write lock.
+        final ByteBuffer writer;
+        // The end of the committed records. Only changed while holding the write lock.
+        int end;
+        // Bytes of records that are still referenced.
+        long liveBytes;
+
+        Segment(File file, int id, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size)
+                raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writer = buffer.duplicate();
+        }
+
+        /** Returns a buffer over the payload of the record at offset, positioned after the key. */
+        ByteBuffer payload(int offset, int keySize) {
+            ByteBuffer record = buffer.duplicate();
+            int length = record.getInt(offset);
+            record.limit(offset + 4 + length);
+            record.position(offset + RECORD_PREFIX + keySize);
+            return record;
+        }
+
+        int recordSize(int offset) {
+            return 4 + buffer.getInt(offset);
+        }
+
+        // Forces the records written since the last sync to disk. Only the pages dirtied since then are written, where
+        // forcing the mapped buffer would walk the whole segment.
+        void sync() throws IOException {
+            raf.getChannel().force(false);
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            raf.close();
+        }
+    }
+
+    /**
+     * An open addressing hash table from keys to log positions. Only a fingerprint of each key is kept in memory,
+     * the full key is compared against the record in the log.
+     */
+    private class Index {
+        // The type of the records this index points to.
+        final byte recordType;
+        private final int keySize;
+        private long[] fingerprints;
+        private long[] positions;
+        private int size;
+
+        Index(byte recordType, int keySize) {
+            this.recordType = recordType;
+            this.keySize = keySize;
+            fingerprints = new long[1024];
+            positions = new long[1024];
+        }
+
+        private int slot(long fingerprint) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & (fingerprints.length - 1);
+        }
+
+        private int find(byte[] key, long fingerprint) {
+            int mask = fingerprints.length - 1;
+            for (int i = slot(fingerprint); fingerprints[i] != 0; i = (i + 1) & mask)
+                if (fingerprints[i] == fingerprint && keyMatches(positions[i], key))
+                    return i;
+            return -1;
+        }
+
+        long get(byte[] key) {
+            int i = find(key, fingerprint(key));
+            return i < 0 ? NONE : positions[i];
+        }
+
+        /** Returns the position previously stored for the key, or NONE. */
+        long put(byte[] key, long position) {
+            long fingerprint = fingerprint(key);
+            int i = find(key, fingerprint);
+            if (i >= 0) {
+                long old = positions[i];
+                positions[i] = position;
+                return old;
+            }
+            if ((size + 1) * 2 > fingerprints.length)
+                resize(fingerprints.length * 2);
+            insert(fingerprint, position);
+            size++;
+            return NONE;
+        }
+
+        private void insert(long fingerprint, long position) {
+            int mask = fingerprints.length - 1;
+            int i = slot(fingerprint);
+            while (fingerprints[i] != 0)
+                i = (i + 1) & mask;
+            fingerprints[i] = fingerprint;
+            positions[i] = position;
+        }
+
+        /** Returns the position that was stored for the key, or NONE. */
+        long remove(byte[] key) {
+            int i = find(key, fingerprint(key));
+            if (i < 0)
+                return NONE;
+            long old = positions[i];
+            // Shift later entries of the probe sequence back so that lookups never stop early.
+            int mask = fingerprints.length - 1;
+            int j = i;
+            while (true) {
+                fingerprints[i] = 0;
+                while (true) {
+                    j = (j + 1) & mask;
+                    if (fingerprints[j] == 0) {
+                        size--;
+                        return old;
+                    }
+                    int home = slot(fingerprints[j]);
+                    if (i <= j ? (home <= i || home > j) : (home <= i && home > j))
+                        break;
+                }
+                fingerprints[i] = fingerprints[j];
+                positions[i] = positions[j];
+                i = j;
+            }
+        }
+
+        private void resize(int slots) {
+            long[] oldFingerprints = fingerprints, oldPositions = positions;
+            fingerprints = new long[slots];
+            positions = new long[slots];
+            for (int i = 0; i < oldFingerprints.length; i++)
+                if (oldFingerprints[i] != 0)
+                    insert(oldFingerprints[i], oldPositions[i]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        private long fingerprint(byte[] key) {
+            // Block hashes start with zeros, so use the end of the hash.
+            long fingerprint = 0;
+            for (int i = HASH_KEY_SIZE - 8; i < HASH_KEY_SIZE; i++)
+                fingerprint = (fingerprint << 8) | (key[i] & 0xFF);
+            for (int i = HASH_KEY_SIZE; i < key.length; i++)
+                fingerprint = fingerprint * 31 + (key[i] & 0xFF);
+            return fingerprint == 0 ? 1 : fingerprint;
+        }
+
+        private boolean keyMatches(long position, byte[] key) {
+            Segment segment = segments.get(segmentId(position));
+            int offset = segmentOffset(position) + RECORD_PREFIX;
+            for (int i = 0; i < keySize; i++)
+                if (segment.buffer.get(offset + i) != key[i])
+                    return false;
+            return true;
+        }
+    }
+
+    // Changes made by the thread holding the write lock that aren't committed yet.
+    private static class Batch {
+        final Segment segment;
+        final int start;
+        final CRC32 crc = new CRC32();
+        final List<Long> records = new ArrayList<Long>();
+        final HashMap<ByteBuffer, Long> headers = new HashMap<ByteBuffer, Long>();
+        final HashMap<ByteBuffer, Long> undoBlocks = new HashMap<ByteBuffer, Long>();
+        final HashMap<ByteBuffer, Long> outputs = new HashMap<ByteBuffer, Long>();
+        StoredBlock chainHead, verifiedChainHead;
+
+        Batch(Segment segment) {
+            this.segment = segment;
+            this.start = segment.end;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxBatchSize;
+    private final int fullStoreDepth;
+
+    // Held from the start of a batch until it is committed or aborted. Only one batch is written at a time.
+    private final ReentrantLock writeLock = Threading.lock("LogFullPrunedBlockStore");
+    // Guards the indexes and segment map, which readers use without the write lock.
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    private final Index headers = new Index(RECORD_HEADER, HASH_KEY_SIZE);
+    private final Index undoBlocks = new Index(RECORD_UNDO, HASH_KEY_SIZE);
+    private final Index outputs = new Index(RECORD_OUTPUT, OUTPUT_KEY_SIZE);
+    // Undo blocks by height, so they can be pruned. Only as large as the number of undo blocks kept.
+    private final TreeMap<Integer, Set<Sha256Hash>> undoBlockHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+    private long chainHeadsPosition = NONE;
+    private volatile StoredBlock chainHead, verifiedChainHead;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it with the genesis block if it doesn't exist yet.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the log segments
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the log can't be opened or is corrupt
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize) throws BlockStoreException {
+        checkArgument(segmentSize >= 64 * 1024);
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        this.maxBatchSize = segmentSize / 8;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            File[] files = directory.listFiles();
+            TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    segmentFiles.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+            for (Map.Entry<Integer, File> entry : segmentFiles.entrySet()) {
+                Segment segment = new Segment(entry.getValue(), entry.getKey(), segmentSize);
+                segments.put(segment.id, segment);
+                replay(segment);
+                activeSegment = segment;
+            }
+            if (activeSegment == null) {
+                activeSegment = newSegment(0);
+                createGenesis();
+            } else {
+                if (chainHeadsPosition == NONE)
+                    throw new BlockStoreException("Corrupt log block store - no chain head pointer");
+                ByteBuffer heads = payload(chainHeadsPosition, 0);
+                chainHead = get(readHash(heads));
+                verifiedChainHead = get(readHash(heads));
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Corrupt log block store - head block not found");
+                log.info("Opened log block store with {} segments, {} headers and {} unspent outputs",
+                        segments.size(), headers.size(), outputs.size());
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (NumberFormatException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createGenesis() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, id, segmentSize);
+        indexLock.writeLock().lock();
+        try {
+            segments.put(id, segment);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        return segment;
+    }
+
+    private static int segmentId(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int segmentOffset(long position) {
+        return (int) position;
+    }
+
+    private static long position(Segment segment, int offset) {
+        return ((long) segment.id << 32) | offset;
+    }
+
+    // These two read the segment map, so the caller must hold the index lock or the write lock, which compaction
+    // needs to remove a segment.
+    private ByteBuffer payload(long position, int keySize) {
+        return segments.get(segmentId(position)).payload(segmentOffset(position), keySize);
+    }
+
+    private int recordSize(long position) {
+        return segments.get(segmentId(position)).recordSize(segmentOffset(position));
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        return ByteBuffer.allocate(OUTPUT_KEY_SIZE).put(hash.getBytes()).putInt((int) index).array();
+    }
+
+    // Reads the log, applying every batch that was committed intact.
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        List<Long> records = new ArrayList<Long>();
+        CRC32 crc = new CRC32();
+        int offset = 0, committed = 0;
+        while (offset + RECORD_PREFIX <= segmentSize) {
+            int length = buffer.getInt(offset);
+            if (length < 1 || offset + 4 + length > segmentSize)
+                break;
+            byte type = buffer.get(offset + 4);
+            if (type == RECORD_COMMIT) {
+                if (length != 5 || buffer.getInt(offset + RECORD_PREFIX) != (int) crc.getValue())
+                    break;
+                for (long position : records)
+                    apply(position);
+                records.clear();
+                crc.reset();
+                offset += 4 + length;
+                committed = offset;
+                continue;
+            }
+            if (type < RECORD_HEADER || type > RECORD_CHAIN_HEADS)
+                break;
+            updateCrc(crc, buffer, offset, 4 + length);
+            records.add(position(segment, offset));
+            offset += 4 + length;
+        }
+        if (offset > committed)
+            log.warn("Discarding {} bytes of uncommitted data at the end of {}", offset - committed, segment.file);
+        // Clear the rest so that it can't be mistaken for records later.
+        for (int i = committed; i < offset; i++)
+            buffer.put(i, (byte) 0);
+        segment.end = committed;
+    }
+
+    private static void updateCrc(CRC32 crc, ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        byte[] bytes = new byte[length];
+        slice.get(bytes);
+        crc.update(bytes);
+    }
+
+    private byte[] recordKey(long position, int keySize) {
+        byte[] key = new byte[keySize];
+        ByteBuffer record = payload(position, 0);
+        record.get(key);
+        return key;
+    }
+
+    // Applies a record to the indexes. Must hold the index write lock, or be opening the store.
+    private void apply(long position) {
+        Segment segment = segments.get(segmentId(position));
+        int offset = segmentOffset(position);
+        byte type = segment.buffer.get(offset + 4);
+        int size = segment.recordSize(offset);
+        long old;
+        switch (type) {
+            case RECORD_HEADER:
+                old = headers.put(recordKey(position, HASH_KEY_SIZE), position);
+                break;
+            case RECORD_UNDO: {
+                byte[] key = recordKey(position, HASH_KEY_SIZE);
+                old = undoBlocks.put(key, position);
+                int height = payload(position, HASH_KEY_SIZE).getInt();
+                Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+                if (hashes == null) {
+                    hashes = new HashSet<Sha256Hash>();
+                    undoBlockHeights.put(height, hashes);
+                }
+                hashes.add(new Sha256Hash(key));
+                break;
+            }
+            case RECORD_UNDO_REMOVED: {
+                byte[] key = recordKey(position, HASH_KEY_SIZE);
+                old = undoBlocks.remove(key);
+                if (old != NONE) {
+                    int height = payload(old, HASH_KEY_SIZE).getInt();
+                    Set<Sha256Hash> hashes = undoBlockHeights.get(height);
+                    if (hashes != null && hashes.remove(new Sha256Hash(key)) && hashes.isEmpty())
+                        undoBlockHeights.remove(height);
+                }
+                size = 0;
+                break;
+            }
+            case RECORD_OUTPUT:
+                old = outputs.put(recordKey(position, OUTPUT_KEY_SIZE), position);
+                break;
+            case RECORD_OUTPUT_SPENT:
+                old = outputs.remove(recordKey(position, OUTPUT_KEY_SIZE));
+                size = 0;
+                break;
+            case RECORD_CHAIN_HEADS:
+                old = chainHeadsPosition;
+                chainHeadsPosition = position;
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type);
+        }
+        // Records that remove something are never needed again, only what they add is.
+        segment.liveBytes += size;
+        if (old != NONE) {
+            Segment oldSegment = segments.get(segmentId(old));
+            oldSegment.liveBytes -= oldSegment.recordSize(segmentOffset(old));
+        }
+    }
+
+    private long append(byte type, byte[] key, byte[] value) throws BlockStoreException {
+        Batch current = batch.get();
+        checkState(current != null);
+        Segment segment = current.segment;
+        ByteBuffer writer = segment.writer;
+        int offset = writer.position();
+        int length = 1 + key.length + value.length;
+        if (offset + 4 + length + RECORD_PREFIX + 4 > segmentSize)
+            throw new BlockStoreException("Batch too large for a log segment");
+        byte[] record = ByteBuffer.allocate(4 + length).putInt(length).put(type).put(key).put(value).array();
+        writer.put(record);
+        current.crc.update(record);
+        long position = position(segment, offset);
+        current.records.add(position);
+        return position;
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() != null)
+            return;
+        writeLock.lock();
+        try {
+            if (closed)
+                throw new BlockStoreException("LogFullPrunedBlockStore is closed");
+            if (segmentSize - activeSegment.end < maxBatchSize)
+                activeSegment = newSegment(activeSegment.id + 1);
+            activeSegment.writer.position(activeSegment.end);
+            batch.set(new Batch(activeSegment));
+        } catch (IOException e) {
+            writeLock.unlock();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current == null)
+            return;
+        try {
+            Segment segment = current.segment;
+            byte[] commit = ByteBuffer.allocate(4 + RECORD_PREFIX).putInt(RECORD_PREFIX).put(RECORD_COMMIT)
+                    .putInt((int) current.crc.getValue()).array();
+            segment.writer.put(commit);
+            try {
+                segment.sync();
+            } catch (IOException e) {
+                // Wipe the batch so that its commit record can't be replayed later.
+                for (int i = current.start; i < segment.writer.position(); i++)
+                    segment.buffer.put(i, (byte) 0);
+                throw new BlockStoreException(e);
+            }
+            indexLock.writeLock().lock();
+            try {
+                for (long position : current.records)
+                    apply(position);
+                segment.end = segment.writer.position();
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            if (current.chainHead != null)
+                chainHead = current.chainHead;
+            if (current.verifiedChainHead != null)
+                verifiedChainHead = current.verifiedChainHead;
+        } finally {
+            batch.remove();
+            writeLock.unlock();
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current == null)
+            return;
+        try {
+            Segment segment = current.segment;
+            for (int i = current.start; i < segment.writer.position(); i++)
+                segment.buffer.put(i, (byte) 0);
+        } finally {
+            batch.remove();
+            writeLock.unlock();
+        }
+    }
+
+    private interface Write {
+        void run() throws BlockStoreException;
+    }
+
+    // Runs the write in the current batch, or in a batch of its own.
+    private void write(Write write) throws BlockStoreException {
+        if (batch.get() != null) {
+            write.run();
+            return;
+        }
+        beginDatabaseBatchWrite();
+        boolean done = false;
+        try {
+            write.run();
+            done = true;
+        } finally {
+            if (done)
+                commitDatabaseBatchWrite();
+            else
+                abortDatabaseBatchWrite();
+        }
+    }
+
+    // Returns a copy of the payload of a record after its key, or null if there isn't one. The lookup and the read are
+    // done under one read lock, so that compaction can't remove the segment holding the record in between.
+    @Nullable
+    private ByteBuffer read(Index index, byte[] key) {
+        indexLock.readLock().lock();
+        try {
+            long position = lookup(index, key);
+            if (position == NONE)
+                return null;
+            ByteBuffer record = payload(position, index.keySize);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Finds a record, looking at the current batch first.
+    private long lookup(Index index, byte[] key) {
+        Batch current = batch.get();
+        if (current != null) {
+            Long position = pending(current, index).get(ByteBuffer.wrap(key));
+            if (position != null)
+                return position;
+        }
+        indexLock.readLock().lock();
+        try {
+            return index.get(key);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private static HashMap<ByteBuffer, Long> pending(Batch current, Index index) {
+        switch (index.recordType) {
+            case RECORD_HEADER:
+                return current.headers;
+            case RECORD_UNDO:
+                return current.undoBlocks;
+            default:
+                return current.outputs;
+        }
+    }
+
+    private void putHeader(final StoredBlock block, final boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer value = ByteBuffer.allocate(1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        value.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(value);
+        byte[] key = block.getHeader().getHash().getBytes();
+        long position = append(RECORD_HEADER, key, value.array());
+        batch.get().headers.put(ByteBuffer.wrap(key), position);
+    }
+
+    @Override
+    public void put(final StoredBlock block) throws BlockStoreException {
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                putHeader(block, false);
+            }
+        });
+    }
+
+    @Override
+    public void put(final StoredBlock storedBlock, final StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(new byte[4]);
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write(ByteBuffer.allocate(4).putInt(numTxn).array());
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.peercoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                byte[] value = bos.toByteArray();
+                ByteBuffer.wrap(value).putInt(storedBlock.getHeight());
+                byte[] key = storedBlock.getHeader().getHash().getBytes();
+                long position = append(RECORD_UNDO, key, value);
+                batch.get().undoBlocks.put(ByteBuffer.wrap(key), position);
+                putHeader(storedBlock, true);
+            }
+        });
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        ByteBuffer value = read(headers, hash.getBytes());
+        if (value == null)
+            return null;
+        if (wasUndoableOnly && value.get() == 0)
+            return null;
+        value.position(value.position() + (wasUndoableOnly ? 0 : 1));
+        try {
+            return StoredBlock.deserializeCompact(params, value);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock head = chainHead;
+        if (head != null && batch.get() == null && head.getHeader().getHash().equals(hash))
+            return head;
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        ByteBuffer value = read(undoBlocks, hash.getBytes());
+        if (value == null)
+            return null;
+        value.getInt();  // Height.
+        byte kind = value.get();
+        byte[] data = new byte[value.remaining()];
+        value.get(data);
+        try {
+            if (kind == 0)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data)));
+            int offset = 4;
+            int numTxn = ByteBuffer.wrap(data).getInt();
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, data, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void writeChainHeads(StoredBlock newChainHead, StoredBlock newVerifiedChainHead) throws BlockStoreException {
+        Batch current = batch.get();
+        current.chainHead = newChainHead;
+        current.verifiedChainHead = newVerifiedChainHead;
+        ByteBuffer value = ByteBuffer.allocate(32);
+        value.put(newVerifiedChainHead.getHeader().getHash().getBytes());
+        append(RECORD_CHAIN_HEADS, newChainHead.getHeader().getHash().getBytes(), value.array());
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.chainHead != null)
+            return current.chainHead;
+        return chainHead;
+    }
+
+    @Override
+    public void setChainHead(final StoredBlock newChainHead) throws BlockStoreException {
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                StoredBlock verified = getVerifiedChainHead();
+                writeChainHeads(newChainHead, verified != null ? verified : newChainHead);
+            }
+        });
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.verifiedChainHead != null)
+            return current.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    @Override
+    public void setVerifiedChainHead(final StoredBlock newVerifiedChainHead) throws BlockStoreException {
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                StoredBlock head = getChainHead();
+                if (head == null || head.getHeight() < newVerifiedChainHead.getHeight())
+                    head = newVerifiedChainHead;
+                writeChainHeads(head, newVerifiedChainHead);
+                pruneUndoBlocks(newVerifiedChainHead.getHeight() - fullStoreDepth);
+            }
+        });
+    }
+
+    // Removes undo blocks at or below the given height. Must be in a batch.
+    private void pruneUndoBlocks(int height) throws BlockStoreException {
+        List<Sha256Hash> prune = new ArrayList<Sha256Hash>();
+        indexLock.readLock().lock();
+        try {
+            for (Set<Sha256Hash> hashes : undoBlockHeights.headMap(height, true).values())
+                prune.addAll(hashes);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        Batch current = batch.get();
+        for (Sha256Hash hash : prune) {
+            ByteBuffer key = ByteBuffer.wrap(hash.getBytes());
+            if (REMOVED.equals(current.undoBlocks.get(key)))
+                continue;
+            append(RECORD_UNDO_REMOVED, hash.getBytes(), new byte[0]);
+            current.undoBlocks.put(key, REMOVED);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        ByteBuffer value = read(outputs, outputKey(hash, index));
+        if (value == null)
+            return null;
+        long coins = value.getLong();
+        int height = value.getInt();
+        boolean coinbase = value.get() != 0;
+        byte[] scriptBytes = new byte[value.remaining()];
+        value.get(scriptBytes);
+        return new StoredTransactionOutput(hash, index, Coin.valueOf(coins), height, coinbase, scriptBytes);
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(final StoredTransactionOutput out) throws BlockStoreException {
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                byte[] key = outputKey(out.getHash(), out.getIndex());
+                ByteBuffer value = ByteBuffer.allocate(13 + out.getScriptBytes().length);
+                value.putLong(out.getValue().value).putInt(out.getHeight()).put((byte) (out.isCoinbase() ? 1 : 0))
+                        .put(out.getScriptBytes());
+                long position = append(RECORD_OUTPUT, key, value.array());
+                batch.get().outputs.put(ByteBuffer.wrap(key), position);
+            }
+        });
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(final StoredTransactionOutput out) throws BlockStoreException {
+        write(new Write() {
+            @Override
+            public void run() throws BlockStoreException {
+                byte[] key = outputKey(out.getHash(), out.getIndex());
+                if (lookup(outputs, key) == NONE)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogFullPrunedBlockStore that it didn't have!");
+                append(RECORD_OUTPUT_SPENT, key, new byte[0]);
+                batch.get().outputs.put(ByteBuffer.wrap(key), REMOVED);
+            }
+        });
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (lookup(outputs, outputKey(hash, i)) != NONE)
+                return true;
+        return false;
+    }
+
+    private void maybeCompact() {
+        indexLock.readLock().lock();
+        try {
+            if (segments.size() < 2)
+                return;
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment || oldest.liveBytes * 2 > oldest.end)
+                return;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        if (!compactionScheduled.compareAndSet(false, true))
+            return;
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactOldestSegment();
+                } catch (Exception e) {
+                    log.error("Failed to compact block store log", e);
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the records of the oldest segment that are still in use to the head of the log, then deletes it. Called
+     * on a background thread once most of the oldest segment has been superseded.
+     */
+    synchronized void compactOldestSegment() throws BlockStoreException, IOException {
+        Segment oldest;
+        indexLock.readLock().lock();
+        try {
+            oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment)
+                return;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        int offset = 0, copied = 0;
+        while (offset < oldest.end) {
+            beginDatabaseBatchWrite();
+            try {
+                int start = batch.get().segment.writer.position();
+                // Copy in batches of limited size so that block processing isn't held up for long.
+                while (offset < oldest.end && batch.get().segment.writer.position() - start < maxBatchSize / 2) {
+                    long position = position(oldest, offset);
+                    int size = oldest.recordSize(offset);
+                    byte type = oldest.buffer.get(offset + 4);
+                    if (isLive(type, position)) {
+                        ByteBuffer record = oldest.payload(offset, 0);
+                        byte[] payload = new byte[record.remaining()];
+                        record.get(payload);
+                        append(type, payload, new byte[0]);
+                        copied++;
+                    }
+                    offset += size;
+                }
+            } catch (BlockStoreException e) {
+                abortDatabaseBatchWrite();
+                throw e;
+            }
+            commitDatabaseBatchWrite();
+        }
+        writeLock.lock();
+        try {
+            indexLock.writeLock().lock();
+            try {
+                checkState(oldest.liveBytes == 0, "Compacted segment still in use");
+                segments.remove(oldest.id);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            oldest.close();
+            if (!oldest.file.delete())
+                log.warn("Could not delete {}", oldest.file);
+        } finally {
+            writeLock.unlock();
+        }
+        log.info("Compacted {}, copying {} records", oldest.file, copied);
+    }
+
+    // Whether the indexes still refer to the record. Must hold the write lock.
+    private boolean isLive(byte type, long position) {
+        switch (type) {
+            case RECORD_HEADER:
+                return headers.get(recordKey(position, HASH_KEY_SIZE)) == position;
+            case RECORD_UNDO:
+                return undoBlocks.get(recordKey(position, HASH_KEY_SIZE)) == position;
+            case RECORD_OUTPUT:
+                return outputs.get(recordKey(position, OUTPUT_KEY_SIZE)) == position;
+            case RECORD_CHAIN_HEADS:
+                return chainHeadsPosition == position;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        writeLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            for (Segment segment : segments.values())
+                segment.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
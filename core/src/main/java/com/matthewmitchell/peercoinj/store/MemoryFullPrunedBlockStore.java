@@ -17,70 +17,12 @@
 package com.matthewmitchell.peercoinj.store;
 
 import com.matthewmitchell.peercoinj.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import javax.annotation.Nullable;
-import java.io.Serializable;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(StoredTransactionOutput out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-    
-    @Override
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-    
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() &&
-               Objects.equal(getHash(), other.getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
  * This class is not thread-safe.
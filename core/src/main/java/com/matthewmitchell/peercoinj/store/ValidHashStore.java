@@ -23,34 +23,42 @@ import com.matthewmitchell.peercoinj.core.AbstractBlockChain;
 import com.matthewmitchell.peercoinj.core.Sha256Hash;
 import com.matthewmitchell.peercoinj.core.StoredBlock;
 import com.matthewmitchell.peercoinj.core.Utils;
+import com.matthewmitchell.peercoinj.utils.Threading;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
+/**
+ * <p>Holds the 16 byte prefixes of the block hashes that the trusted servers consider valid. The prefixes are kept in
+ * a flat file of 16 byte records, which is memory mapped, and an open addressing hash index over the records makes
+ * every lookup constant time regardless of the order in which blocks are checked.</p>
+ *
+ * <p>Synchronisation with the server is incremental: the hashes that are returned are appended to the end of the file
+ * and only the new records are indexed, so the file is never rewritten unless the server list was invalidated.</p>
+ */
 public class ValidHashStore {
 
     private static final Logger log = LoggerFactory.getLogger(ValidHashStore.class);
-	
-	private File filePath;
-	private ArrayList<byte[]> validHashesArray = new ArrayList<byte[]>();
-	int index;
-	boolean initialFind = true;
-
-	private static String GENESIS_MINI_HASH = "e327cd80c8b17efda4ea08c5877e95d8"; 
-	
+
+    private static final int RECORD_SIZE = 16;
+    // Limits the number of hashes accepted from one server response.
+    private static final int MAX_HASHES_PER_DOWNLOAD = 50000;
+    private static final int INITIAL_INDEX_SLOTS = 1 << 16;
+
+    private static String GENESIS_MINI_HASH = "e327cd80c8b17efda4ea08c5877e95d8";
+
     public interface TrustedServersInterface {
         /**
          * Implement the retrieval of server URLs.
@@ -67,7 +75,7 @@ public class ValidHashStore {
          */
         public void markSuccess(boolean success);
     }
-    
+
     private static URL SERVER;
 
     static {
@@ -77,12 +85,26 @@ public class ValidHashStore {
         }
     }
 
-    private TrustedServersInterface servers;
-    
+    private final ReentrantLock lock = Threading.lock("ValidHashStore");
+
+    private final TrustedServersInterface servers;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    // Read only view of the first numHashes records of the file. Remapped whenever records are appended.
+    private MappedByteBuffer buffer;
+    private int numHashes;
+
+    // Set when the server list has been invalidated, until the hashes have been replaced by a new server.
+    private boolean invalidated;
+
+    // Open addressing hash table of record numbers plus one, zero marking an empty slot. Kept at most half full.
+    private int[] index = new int[INITIAL_INDEX_SLOTS];
+
     public ValidHashStore(File filePath) throws IOException {
-        
+
         // Use hardcoded server only
-        
+
         this(filePath, new ValidHashStore.TrustedServersInterface() {
 
                 @Override
@@ -101,93 +123,197 @@ public class ValidHashStore {
                 }
 
             });
-        
-        
+
+
     }
 
     public ValidHashStore(File filePath, TrustedServersInterface servers) throws IOException {
 
-        this.filePath = filePath;
         this.servers = servers;
+        this.randomAccessFile = new RandomAccessFile(filePath, "rw");
+        this.channel = randomAccessFile.getChannel();
+
+        lock.lock();
+        try {
+            long len = channel.size();
+
+            if (len == 0) {
+                // Add genesis hash and that is all
+                appendHashes(Hex.decode(GENESIS_MINI_HASH), 1);
+                return;
+            }
+
+            if (len % RECORD_SIZE != 0) {
+                // A previous write was interrupted part way through a record. Drop the partial record.
+                log.warn("Valid hash file has a trailing partial record, truncating it");
+                len -= len % RECORD_SIZE;
+                channel.truncate(len);
+            }
+
+            numHashes = (int) (len / RECORD_SIZE);
+            remap();
+            rebuildIndex();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
 
-        long len = filePath.length();
-		
-		index = 0;
-		
-		if (len == 0) {
-			// Add genesis hash and that is all
-			BufferedOutputStream file = getOutputStream();
-			writeHash(Hex.decode(GENESIS_MINI_HASH), file);
-			file.flush();
-			file.close();
-			return;
-		}
-		
-		// Load valid hashes from file.
-		
-		FileInputStream file = new FileInputStream(filePath);
-		
-		byte[] data = new byte[(int)len];
-		file.read(data, 0, (int)len);
-		
-		byte[] b = new byte[16];
-		
-		for (int x = 0; x < len; x += 16) {
-			System.arraycopy(data, x, b, 0, 16);
-			validHashesArray.add(b);
-			b = new byte[16];
-		}
-		
-		file.close();
-		
-	}
-	
-	private BufferedOutputStream getOutputStream() throws FileNotFoundException {
-		return new BufferedOutputStream(new FileOutputStream(this.filePath));
-	}
-	
-	private void writeHash(byte[] hash, BufferedOutputStream file) throws IOException {
-		
-		validHashesArray.add(hash);
-		file.write(hash, 0, 16);
-		
-	}
-	
-	private boolean isInValidHashes(byte[] cmpHash) {
-		
-		for (;index < validHashesArray.size(); index++) {
-			
-			if (Arrays.equals(validHashesArray.get(index), cmpHash)) {
-				index++;
-				initialFind = false;
-				return true;
-			}
-			
-			// Else if we are finding initial index continue, else fail.
-			if (!initialFind) return false;
-			
-		}
-		
-		return false;
-		
-	}
-	
-	private byte[] getHashFromInputStream(InputStream is) throws IOException {
-		
-		byte[] hash = new byte[16];
-		int x = 0, res;
-		
-		while (x < 16 && (res = is.read()) != -1)
-			hash[x++] = (byte) res;
-		
-		if (x != 16)
-			return null;
-		
-		return hash;
-		
-	}
-
-    private boolean downloadHashes(final URL server, final byte[] locator, final int locatorSize) {
+    }
+
+    private void remap() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) numHashes * RECORD_SIZE);
+    }
+
+    private static int slotFor(long prefix, int mask) {
+        // The hashes are already uniformly distributed so folding the first eight bytes is enough.
+        return ((int) (prefix ^ (prefix >>> 32))) & mask;
+    }
+
+    /**
+     * Returns the record number matching the given prefix halves, or -1 if it is not in the store.
+     */
+    private int find(long high, long low) {
+        int mask = index.length - 1;
+        for (int slot = slotFor(high, mask); ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == 0)
+                return -1;
+            int offset = (entry - 1) * RECORD_SIZE;
+            if (buffer.getLong(offset) == high && buffer.getLong(offset + 8) == low)
+                return entry - 1;
+        }
+    }
+
+    /**
+     * Adds the record to the index unless an equal record is already indexed.
+     */
+    private void indexRecord(int record) {
+        int offset = record * RECORD_SIZE;
+        long high = buffer.getLong(offset);
+        long low = buffer.getLong(offset + 8);
+        int mask = index.length - 1;
+        for (int slot = slotFor(high, mask); ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == 0) {
+                index[slot] = record + 1;
+                return;
+            }
+            int other = (entry - 1) * RECORD_SIZE;
+            if (buffer.getLong(other) == high && buffer.getLong(other + 8) == low)
+                return;
+        }
+    }
+
+    private void rebuildIndex() {
+        int slots = INITIAL_INDEX_SLOTS;
+        while (slots < numHashes * 2)
+            slots *= 2;
+        index = new int[slots];
+        for (int i = 0; i < numHashes; i++)
+            indexRecord(i);
+    }
+
+    /**
+     * Appends count records from hashes to the end of the file and indexes them.
+     */
+    private void appendHashes(byte[] hashes, int count) throws IOException {
+        if (count == 0)
+            return;
+        int start = numHashes;
+        ByteBuffer src = ByteBuffer.wrap(hashes, 0, count * RECORD_SIZE);
+        long position = (long) start * RECORD_SIZE;
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+        channel.force(false);
+        numHashes += count;
+        remap();
+        if (numHashes * 2 > index.length) {
+            // Keep the table at most half full so probe chains stay short.
+            rebuildIndex();
+        } else {
+            for (int i = start; i < numHashes; i++)
+                indexRecord(i);
+        }
+    }
+
+    /**
+     * Discards every stored hash. Used when the server list has been invalidated and the hashes can't be trusted.
+     */
+    private void clear() throws IOException {
+        buffer = null;
+        channel.truncate(0);
+        numHashes = 0;
+        index = new int[INITIAL_INDEX_SLOTS];
+        remap();
+    }
+
+    private static byte[] getMiniHash(Sha256Hash hash) {
+        // Get 16 bytes only
+        byte[] cmpHash = new byte[RECORD_SIZE];
+        System.arraycopy(Utils.reverseBytes(hash.getBytes()), 0, cmpHash, 0, RECORD_SIZE);
+        return cmpHash;
+    }
+
+    private boolean isInValidHashes(byte[] cmpHash) {
+        ByteBuffer b = ByteBuffer.wrap(cmpHash);
+        return find(b.getLong(0), b.getLong(8)) != -1;
+    }
+
+    /** Returns the number of hashes currently held by the store. */
+    public int getHashCount() {
+        lock.lock();
+        try {
+            return numHashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to MAX_HASHES_PER_DOWNLOAD records from the stream into out, returning the number of records read.
+     */
+    private static int readHashes(InputStream is, byte[] out) throws IOException {
+        int count = 0;
+        for (; count < MAX_HASHES_PER_DOWNLOAD; count++) {
+            int offset = count * RECORD_SIZE;
+            int read = 0, res;
+            while (read < RECORD_SIZE && (res = is.read(out, offset + read, RECORD_SIZE - read)) != -1)
+                read += res;
+            if (read != RECORD_SIZE)
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Appends the records in hashes that aren't stored yet, clearing the store first if replace is set.
+     * Returns the number of records that were added.
+     */
+    private int addHashes(byte[] hashes, int count, boolean replace) throws IOException {
+        lock.lock();
+        try {
+            if (replace)
+                clear();
+            // Compact the new records to the front of the array.
+            ByteBuffer view = ByteBuffer.wrap(hashes);
+            int newCount = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = i * RECORD_SIZE;
+                if (find(view.getLong(offset), view.getLong(offset + 8)) != -1)
+                    continue;
+                System.arraycopy(hashes, offset, hashes, newCount * RECORD_SIZE, RECORD_SIZE);
+                newCount++;
+            }
+            appendHashes(hashes, newCount);
+            return newCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean downloadHashes(final URL server, final byte[] locator, final int locatorSize, boolean replace) {
 
         try {
 
@@ -198,7 +324,7 @@ public class ValidHashStore {
             connection.setReadTimeout(30000);
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Content-Type", "application/octet-stream");
-            connection.setRequestProperty("Accept-Encoding", ""); 
+            connection.setRequestProperty("Accept-Encoding", "");
             connection.setDoOutput(true);
             java.io.OutputStream os = connection.getOutputStream();
             os.write(locator, 0, locatorSize);
@@ -213,22 +339,12 @@ public class ValidHashStore {
 
                     InputStream is = new BufferedInputStream(connection.getInputStream());
 
-                    // We are going to replace the valid hashes with the new ones
-
-                    BufferedOutputStream file = getOutputStream();
-                    validHashesArray.clear();
-                    index = 0;
-                    initialFind = true;
+                    // The server only returns the hashes following the locator, so append whatever we don't already
+                    // have. Only a server list that has been invalidated requires throwing away the old hashes.
 
-                    // Write new hashes. Ensure a limit of 50,000 hashes.
-
-                    byte[] b;
-
-                    for (int x = 0; (b = getHashFromInputStream(is)) != null && x < 50000; x++)
-                        writeHash(b, file);
-
-                    file.flush();
-                    file.close();
+                    byte[] hashes = new byte[MAX_HASHES_PER_DOWNLOAD * RECORD_SIZE];
+                    int count = addHashes(hashes, readHashes(is, hashes), replace);
+                    log.info("Received {} new valid hashes from {}", count, server);
 
                     return false;
 
@@ -246,17 +362,32 @@ public class ValidHashStore {
 
     }
 
-    public boolean isValidHash(Sha256Hash hash, AbstractBlockChain blockChain, boolean waitForServer) throws IOException {
-
-        // Get 16 bytes only
-        byte[] cmpHash = new byte[16];
-        System.arraycopy(Utils.reverseBytes(hash.getBytes()), 0, cmpHash, 0, 16);
+    /**
+     * Returns true if the hash is already known to be valid. This never goes to the network so it is cheap enough to
+     * call whilst holding the block chain lock. A false result means {@link #synchronise(AbstractBlockChain, boolean)}
+     * should be called before the hash can be rejected.
+     */
+    public boolean isKnownValidHash(Sha256Hash hash) {
+        byte[] cmpHash = getMiniHash(hash);
+        lock.lock();
+        try {
+            // Hashes obtained from an invalidated server can't be relied upon until they have been replaced.
+            if (servers.invalidated())
+                invalidated = true;
+            return !invalidated && isInValidHashes(cmpHash);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // First check the existing hashes
-        if (!servers.invalidated() && isInValidHashes(cmpHash))
-            return true;
-
-        // Nope. We need to ensure the valid hashes is synchronised with the server
+    /**
+     * Fetches the hashes following the current chain head from the trusted servers and adds them to the store. This
+     * blocks on the network (and for 30 seconds first if waitForServer is set) so it must not be called with the block
+     * chain lock held. The store itself is only locked whilst the downloaded hashes are added.
+     *
+     * @throws IOException if none of the servers could provide the hashes.
+     */
+    public void synchronise(AbstractBlockChain blockChain, boolean waitForServer) throws IOException {
 
         // Create POST data locator
 
@@ -285,6 +416,16 @@ public class ValidHashStore {
         if (waitForServer)
             Utils.sleep(30000);
 
+        boolean replace;
+        lock.lock();
+        try {
+            if (servers.invalidated())
+                invalidated = true;
+            replace = invalidated;
+        } finally {
+            lock.unlock();
+        }
+
         URL server;
         boolean failed = false;
 
@@ -297,17 +438,49 @@ public class ValidHashStore {
             if (server == null)
                 throw new IOException("No more servers to try for valid block hashes.");
 
-        } while (failed = downloadHashes(server, locator, offset));
+        } while (failed = downloadHashes(server, locator, offset, replace));
 
         servers.markSuccess(true);
 
+        if (replace) {
+            lock.lock();
+            try {
+                invalidated = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * Returns true if the hash is valid, synchronising with the trusted servers first if it isn't known yet. This
+     * blocks on the network, see {@link #synchronise(AbstractBlockChain, boolean)}.
+     */
+    public boolean isValidHash(Sha256Hash hash, AbstractBlockChain blockChain, boolean waitForServer) throws IOException {
+
+        // First check the existing hashes
+        if (isKnownValidHash(hash))
+            return true;
+
+        // Nope. We need to ensure the valid hashes is synchronised with the server
+        synchronise(blockChain, waitForServer);
+
         // Lastly check valid hashes again
-        return isInValidHashes(cmpHash);
+        return isKnownValidHash(hash);
 
     }
-	
-	public void close(){
-		// Dummy method in case we add/remove it.
-	}
-	
+
+    public void close() {
+        lock.lock();
+        try {
+            buffer = null;
+            randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close valid hash file", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
 }
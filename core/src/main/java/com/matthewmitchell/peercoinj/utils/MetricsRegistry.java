@@ -0,0 +1,193 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.utils;
+
+import com.matthewmitchell.peercoinj.core.PeerAddress;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>{@link NetworkMetrics} that add up what they are told into named counters, gauges and a histogram, to be read with
+ * {@link #snapshot()} or handed to an {@link Exporter}. For example:</p>
+ *
+ * <pre>
+ * MetricsRegistry registry = new MetricsRegistry();
+ * NetworkMetrics.set(registry);
+ * ...
+ * registry.export(exporter);
+ * </pre>
+ *
+ * <p>The names are:</p>
+ * <ul>
+ *     <li>bytes.in, bytes.out: bytes received from and sent to all peers</li>
+ *     <li>peer.&lt;address&gt;.bytes.in, peer.&lt;address&gt;.bytes.out: the same for each connected peer</li>
+ *     <li>messages.in.&lt;command&gt;.count, .bytes and .parse.nanos: messages received, their payload sizes and the
+ *     time taken to parse them. Commands this library doesn't know are all counted as
+ *     messages.in.unknown</li>
+ *     <li>messages.out.&lt;command&gt;.count and .bytes: messages sent</li>
+ *     <li>getdata.latency.ms.le.&lt;bound&gt;, .count and .sum: a histogram of getdata latencies, each bucket counting
+ *     the answers that took at most its bound</li>
+ *     <li>outbound.queue.bytes and outbound.queue.bytes.max: bytes waiting to be written to sockets, now and at most</li>
+ *     <li>connections.attempted, connections.closed, connections.backoffs</li>
+ * </ul>
+ */
+public class MetricsRegistry extends NetworkMetrics {
+    /** Receives the values of all the metrics at once, sorted by name. */
+    public interface Exporter {
+        void export(SortedMap<String, Long> metrics);
+    }
+
+    // Upper bounds of the getdata latency buckets, in milliseconds. The last bucket takes the rest.
+    private static final long[] LATENCY_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    // The commands PeercoinSerializer understands. A peer can send any command it likes, so others share a counter
+    // rather than each adding counters that are never removed.
+    private static final ImmutableSet<String> KNOWN_COMMANDS = ImmutableSet.of("version", "verack", "inv", "block",
+            "merkleblock", "getdata", "getblocks", "getheaders", "headers", "tx", "addr", "getaddr", "ping", "pong",
+            "alert", "filterload", "notfound", "mempool");
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<PeerAddress, AtomicLong[]> peerBytes = new ConcurrentHashMap<PeerAddress, AtomicLong[]>();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BOUNDS_MS.length + 1);
+    private final AtomicLong latencySum = new AtomicLong();
+    private final AtomicLong outboundQueueBytes = new AtomicLong(), outboundQueueBytesMax = new AtomicLong();
+
+    private AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong fresh = new AtomicLong();
+            counter = counters.putIfAbsent(name, fresh);
+            if (counter == null)
+                counter = fresh;
+        }
+        return counter;
+    }
+
+    // Returns the bytes received from and sent to the peer.
+    private AtomicLong[] peerBytes(PeerAddress peer) {
+        AtomicLong[] bytes = peerBytes.get(peer);
+        if (bytes == null) {
+            AtomicLong[] fresh = {new AtomicLong(), new AtomicLong()};
+            bytes = peerBytes.putIfAbsent(peer, fresh);
+            if (bytes == null)
+                bytes = fresh;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void bytesReceived(PeerAddress peer, int bytes) {
+        counter("bytes.in").addAndGet(bytes);
+        peerBytes(peer)[0].addAndGet(bytes);
+    }
+
+    @Override
+    public void bytesSent(PeerAddress peer, int bytes) {
+        counter("bytes.out").addAndGet(bytes);
+        peerBytes(peer)[1].addAndGet(bytes);
+    }
+
+    @Override
+    public void messageReceived(String command, int bytes, long parseNanos) {
+        String prefix = "messages.in." + (KNOWN_COMMANDS.contains(command) ? command : "unknown");
+        counter(prefix + ".count").incrementAndGet();
+        counter(prefix + ".bytes").addAndGet(bytes);
+        counter(prefix + ".parse.nanos").addAndGet(parseNanos);
+    }
+
+    @Override
+    public void messageSent(String command, int bytes) {
+        String prefix = "messages.out." + command;
+        counter(prefix + ".count").incrementAndGet();
+        counter(prefix + ".bytes").addAndGet(bytes);
+    }
+
+    @Override
+    public void getDataLatency(PeerAddress peer, long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MS.length && millis > LATENCY_BOUNDS_MS[bucket])
+            bucket++;
+        latencyBuckets.incrementAndGet(bucket);
+        latencySum.addAndGet(millis);
+    }
+
+    @Override
+    public void outboundQueueChanged(long deltaBytes) {
+        long bytes = outboundQueueBytes.addAndGet(deltaBytes);
+        long max;
+        while (bytes > (max = outboundQueueBytesMax.get()) && !outboundQueueBytesMax.compareAndSet(max, bytes));
+    }
+
+    @Override
+    public void connectionAttempted(PeerAddress peer) {
+        counter("connections.attempted").incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(PeerAddress peer) {
+        counter("connections.closed").incrementAndGet();
+        // The totals keep counting the peer's bytes, but there's no point keeping a peer that's gone.
+        peerBytes.remove(peer);
+    }
+
+    @Override
+    public void peerBackedOff(PeerAddress peer, long retryMillis) {
+        counter("connections.backoffs").incrementAndGet();
+    }
+
+    /** Returns the current values of all the metrics, sorted by name. */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet())
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        for (Map.Entry<PeerAddress, AtomicLong[]> peer : peerBytes.entrySet()) {
+            String prefix = "peer." + peer.getKey().getAddr().getHostAddress() + ":" + peer.getKey().getPort();
+            snapshot.put(prefix + ".bytes.in", peer.getValue()[0].get());
+            snapshot.put(prefix + ".bytes.out", peer.getValue()[1].get());
+        }
+        long count = 0;
+        for (int i = 0; i < LATENCY_BOUNDS_MS.length; i++) {
+            count += latencyBuckets.get(i);
+            snapshot.put(String.format("getdata.latency.ms.le.%05d", LATENCY_BOUNDS_MS[i]), count);
+        }
+        count += latencyBuckets.get(LATENCY_BOUNDS_MS.length);
+        snapshot.put("getdata.latency.ms.count", count);
+        snapshot.put("getdata.latency.ms.sum", latencySum.get());
+        snapshot.put("outbound.queue.bytes", outboundQueueBytes.get());
+        snapshot.put("outbound.queue.bytes.max", outboundQueueBytesMax.get());
+        return snapshot;
+    }
+
+    /** Hands a {@link #snapshot()} to the exporter. */
+    public void export(Exporter exporter) {
+        exporter.export(snapshot());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> metric : snapshot().entrySet())
+            builder.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.utils;
+
+import com.matthewmitchell.peercoinj.core.PeerAddress;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Receives measurements of what the peer to peer layer is doing: the bytes sent to and received from each peer,
+ * the messages of each command and how long they took to parse, how long peers take to answer a getdata, how many
+ * bytes are waiting to be written to sockets, and how often connections are opened, lost and backed off.</p>
+ *
+ * <p>The methods are called on network threads, often for every message, so implementations must be thread safe and
+ * cheap. They do nothing by default; override the ones you are interested in, or use {@link MetricsRegistry}, which
+ * aggregates them all. Install an implementation with {@link #set(NetworkMetrics)}. Until one is installed,
+ * {@link #NONE} is used and the timings aren't even taken.</p>
+ */
+public abstract class NetworkMetrics {
+    /** Ignores everything. The default. */
+    public static final NetworkMetrics NONE = new NetworkMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    private static volatile NetworkMetrics metrics = NONE;
+
+    /** Returns the installed metrics, {@link #NONE} unless another was set. */
+    public static NetworkMetrics get() {
+        return metrics;
+    }
+
+    /** Installs the metrics that the network code reports to from now on. */
+    public static void set(NetworkMetrics metrics) {
+        NetworkMetrics.metrics = checkNotNull(metrics);
+    }
+
+    /** Returns false if the measurements are thrown away, so there's no need to take them. */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /** Called when bytes have been read from a peer's socket and parsed. */
+    public void bytesReceived(PeerAddress peer, int bytes) {
+    }
+
+    /** Called when a message to a peer has been queued for writing, with its size including the header. */
+    public void bytesSent(PeerAddress peer, int bytes) {
+    }
+
+    /** Called for each message received, with the size of its payload and how long it took to verify and parse. */
+    public void messageReceived(String command, int bytes, long parseNanos) {
+    }
+
+    /** Called for each message serialized for sending, with the size of its payload. */
+    public void messageSent(String command, int bytes) {
+    }
+
+    /** Called when a peer starts answering a getdata, with how long after it was sent. */
+    public void getDataLatency(PeerAddress peer, long millis) {
+    }
+
+    /**
+     * Called when the number of bytes waiting to be written to sockets changes, summed over all connections: positive
+     * when messages are queued, negative when they are written or thrown away with a closed connection.
+     */
+    public void outboundQueueChanged(long deltaBytes) {
+    }
+
+    /** Called when a connection to a peer is attempted. */
+    public void connectionAttempted(PeerAddress peer) {
+    }
+
+    /** Called when a connection to a peer is closed or fails to open. */
+    public void connectionClosed(PeerAddress peer) {
+    }
+
+    /** Called when reconnecting to a peer is put off after a failure, with how long until it may be tried again. */
+    public void peerBackedOff(PeerAddress peer, long retryMillis) {
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.MemoryBlockStore;
+import com.matthewmitchell.peercoinj.store.ValidHashStore;
+import com.matthewmitchell.peercoinj.utils.BriefLogFormatter;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockChainTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockChain chain;
+    private Address coinbaseTo;
+    private ListeningExecutorService threadPool;
+
+    // Knows the hashes its server has once synchronised, unless the server is broken.
+    private static class FakeValidHashStore extends ValidHashStore {
+        final Set<Sha256Hash> known = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        final Set<Sha256Hash> server = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        volatile boolean broken;
+
+        FakeValidHashStore(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public boolean isKnownValidHash(Sha256Hash hash) {
+            return known.contains(hash);
+        }
+
+        @Override
+        public void synchronise(AbstractBlockChain blockChain, boolean waitForServer) throws IOException {
+            if (broken)
+                throw new IllegalStateException("Server sent rubbish");
+            known.addAll(server);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        coinbaseTo = new ECKey().toAddress(params);
+        // Run hash validation rounds one at a time, so that tests can wait for them.
+        threadPool = Threading.THREAD_POOL;
+        Threading.THREAD_POOL = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    }
+
+    @After
+    public void tearDown() {
+        Threading.THREAD_POOL.shutdownNow();
+        Threading.THREAD_POOL = threadPool;
+    }
+
+    private FakeValidHashStore useValidHashStore() throws Exception {
+        File file = File.createTempFile("validhashes", null);
+        file.deleteOnExit();
+        FakeValidHashStore hashes = new FakeValidHashStore(file);
+        chain = new BlockChain(params, new MemoryBlockStore(params), hashes);
+        return hashes;
+    }
+
+    private void waitForValidation() throws Exception {
+        // A round queues any follow up round before it finishes, so this sees those through too.
+        for (int i = 0; i < 3; i++) {
+            Threading.THREAD_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Keeps validation rounds from starting until the returned latch is released.
+    private CountDownLatch holdValidation() {
+        final CountDownLatch release = new CountDownLatch(1);
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Let the rounds go.
+                }
+            }
+        });
+        return release;
+    }
+
+    private List<Block> createBlocks(int count) {
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void orphansConnectInOrder() throws Exception {
+        List<Block> blocks = createBlocks(5);
+        // Deliver everything but the first block backwards, so each one is an orphan.
+        for (int i = blocks.size() - 1; i > 0; i--) {
+            assertFalse(chain.add(blocks.get(i)));
+            assertTrue(chain.isOrphan(blocks.get(i).getHash()));
+        }
+        assertEquals(4, chain.getOrphanCount());
+        assertTrue(chain.getOrphanBytes() > 0);
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(4).getHash()));
+
+        // Connecting the missing block pulls in all its descendants.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(5, chain.getBestChainHeight());
+        assertEquals(blocks.get(4), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+    }
+
+    @Test
+    public void orphanSiblingConnectsWhenFirstFails() throws Exception {
+        List<Block> blocks = createBlocks(1);
+        final Block bad = blocks.get(0).createNextBlock(new ECKey().toAddress(params));
+        Block good = blocks.get(0).createNextBlock(new ECKey().toAddress(params));
+        Block goodChild = good.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(bad));
+        assertFalse(chain.add(good));
+        assertFalse(chain.add(goodChild));
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                if (block.getHeader().equals(bad))
+                    throw new VerificationException("Bad block");
+            }
+        }, Threading.SAME_THREAD);
+        try {
+            chain.add(blocks.get(0));
+            fail();
+        } catch (VerificationException e) {
+            // The first sibling failed, but the other one and its child still connected.
+        }
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertNotNull(chain.getBlockStore().get(good.getHash()));
+        assertEquals(goodChild, chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void orphanBudget() throws Exception {
+        List<Block> blocks = createBlocks(4);
+        chain.setMaxOrphanBytes(blocks.get(3).getOptimalEncodingMessageSize() * 2);
+        assertFalse(chain.add(blocks.get(1)));
+        assertFalse(chain.add(blocks.get(2)));
+        assertFalse(chain.add(blocks.get(3)));
+        // The oldest orphan was thrown away to make room.
+        assertEquals(2, chain.getOrphanCount());
+        assertFalse(chain.isOrphan(blocks.get(1).getHash()));
+        assertTrue(chain.isOrphan(blocks.get(3).getHash()));
+
+        // So the chain only gets as far as the evicted block.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(1, chain.getBestChainHeight());
+        assertEquals(2, chain.getOrphanCount());
+    }
+
+    @Test
+    public void parkedBlocksConnectOnceValidated() throws Exception {
+        FakeValidHashStore hashes = useValidHashStore();
+        List<Block> blocks = createBlocks(2);
+        hashes.server.add(blocks.get(0).getHash());
+        hashes.server.add(blocks.get(1).getHash());
+        CountDownLatch release = holdValidation();
+        assertTrue(chain.add(blocks.get(0)));
+        assertTrue(chain.add(blocks.get(1)));
+        // Both wait for the hashes to be fetched, the second because it builds on the first.
+        assertEquals(2, chain.getPendingValidationCount());
+        assertEquals(0, chain.getBestChainHeight());
+        release.countDown();
+        waitForValidation();
+        assertEquals(0, chain.getPendingValidationCount());
+        assertEquals(blocks.get(1), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void parkedBlocksRejectedIfUnknown() throws Exception {
+        useValidHashStore();
+        List<Block> blocks = createBlocks(2);
+        CountDownLatch release = holdValidation();
+        assertTrue(chain.add(blocks.get(0)));
+        assertTrue(chain.add(blocks.get(1)));
+        assertEquals(2, chain.getPendingValidationCount());
+        release.countDown();
+        waitForValidation();
+        // The server didn't know the first, so it and the block building on it are thrown away.
+        assertEquals(0, chain.getPendingValidationCount());
+        assertEquals(0, chain.getBestChainHeight());
+        assertEquals(0, chain.getOrphanCount());
+    }
+
+    @Test
+    public void failedValidationRoundDoesNotStall() throws Exception {
+        FakeValidHashStore hashes = useValidHashStore();
+        List<Block> blocks = createBlocks(2);
+        hashes.broken = true;
+        assertTrue(chain.add(blocks.get(0)));
+        waitForValidation();
+        // The round blew up, but the block is still waiting.
+        assertEquals(1, chain.getPendingValidationCount());
+        assertEquals(0, chain.getBestChainHeight());
+
+        // The next block starts another round, which connects both.
+        hashes.broken = false;
+        hashes.server.add(blocks.get(0).getHash());
+        hashes.server.add(blocks.get(1).getHash());
+        assertTrue(chain.add(blocks.get(1)));
+        waitForValidation();
+        assertEquals(0, chain.getPendingValidationCount());
+        assertEquals(blocks.get(1), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void heightFuture() throws Exception {
+        List<Block> blocks = createBlocks(2);
+        // Already reached heights complete immediately.
+        assertTrue(chain.getHeightFuture(0).isDone());
+        ListenableFuture<StoredBlock> future = chain.getHeightFuture(2);
+        chain.add(blocks.get(0));
+        assertFalse(future.isDone());
+        chain.add(blocks.get(1));
+        assertEquals(blocks.get(1), future.get().getHeader());
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.MemoryBlockStore;
+import com.matthewmitchell.peercoinj.utils.BriefLogFormatter;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BlockDownloadSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockChain chain;
+    private Peer peer1, peer2, peer3;
+    private List<Peer> peers;
+    private TestScheduler scheduler;
+
+    // Records requests instead of sending them, so the test decides what arrives when.
+    private class TestScheduler extends BlockDownloadScheduler {
+        final Map<Sha256Hash, SettableFuture<Message>> requested = new HashMap<Sha256Hash, SettableFuture<Message>>();
+        final List<Peer> requestedFrom = new ArrayList<Peer>();
+        final List<Sha256Hash> hashesRequestedAfter = new ArrayList<Sha256Hash>();
+        final List<Block> added = new ArrayList<Block>();
+
+        TestScheduler(int maxPeers) {
+            super(chain, Collections.<Wallet>emptyList(), maxPeers);
+        }
+
+        @Override
+        protected List<Peer> getPeers() {
+            return peers;
+        }
+
+        @Override
+        protected List<ListenableFuture<Message>> requestBlocks(Peer peer, List<Sha256Hash> hashes) {
+            List<ListenableFuture<Message>> futures = new ArrayList<ListenableFuture<Message>>();
+            for (Sha256Hash hash : hashes) {
+                SettableFuture<Message> future = SettableFuture.create();
+                requested.put(hash, future);
+                requestedFrom.add(peer);
+                futures.add(future);
+            }
+            return futures;
+        }
+
+        @Override
+        protected void requestHashes(Peer peer, @Nullable Sha256Hash after) {
+            hashesRequestedAfter.add(after);
+        }
+
+        @Override
+        protected void blockAdded(Peer downloadPeer, Block header) {
+            added.add(header);
+        }
+
+        void deliver(Block block) {
+            requested.remove(block.getHash()).set(block);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Utils.setMockClock();
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        peer1 = createPeer(1);
+        peer2 = createPeer(2);
+        peer3 = createPeer(3);
+        peers = Arrays.asList(peer1, peer2, peer3);
+        scheduler = new TestScheduler(3);
+        scheduler.setDownloadPeer(peer1);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private static Peer createPeer(int port) throws Exception {
+        return new Peer(params, new VersionMessage(params, 0), null, new PeerAddress(InetAddress.getLocalHost(), port));
+    }
+
+    private static List<Block> createBlocks(int count) {
+        Address coinbaseTo = new ECKey().toAddress(params);
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private static List<Sha256Hash> hashes(List<Block> blocks) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Block block : blocks)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    @Test
+    public void fetchesFromSeveralPeersAndAddsInOrder() throws Exception {
+        List<Block> blocks = createBlocks(3 * BlockDownloadScheduler.WINDOW_SIZE);
+        scheduler.addBlockHashes(peer1, hashes(blocks));
+        assertTrue(scheduler.isDownloading());
+        // One window each.
+        assertEquals(blocks.size(), scheduler.requested.size());
+        assertEquals(new HashSet<Peer>(peers), new HashSet<Peer>(scheduler.requestedFrom));
+        // Fewer than a full inv, so we're at the end of the chain.
+        assertTrue(scheduler.hashesRequestedAfter.isEmpty());
+
+        // Arriving backwards, nothing can be added until the first block is in.
+        for (int i = blocks.size() - 1; i > 0; i--)
+            scheduler.deliver(blocks.get(i));
+        assertEquals(0, chain.getBestChainHeight());
+        scheduler.deliver(blocks.get(0));
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+        assertEquals(blocks, scheduler.added);
+        assertFalse(scheduler.isDownloading());
+        assertEquals(0, chain.getOrphanCount());
+    }
+
+    @Test
+    public void announcementsFromOtherPeersAndDuplicatesIgnored() throws Exception {
+        List<Block> blocks = createBlocks(BlockDownloadScheduler.WINDOW_SIZE);
+        scheduler.addBlockHashes(peer2, hashes(blocks));
+        assertFalse(scheduler.isDownloading());
+        scheduler.addBlockHashes(peer1, hashes(blocks));
+        scheduler.addBlockHashes(peer1, hashes(blocks));
+        assertEquals(blocks.size(), scheduler.requestedFrom.size());
+    }
+
+    @Test
+    public void stalledWindowGoesToAnotherPeer() throws Exception {
+        peers = Arrays.asList(peer1, peer2);
+        List<Block> blocks = createBlocks(BlockDownloadScheduler.WINDOW_SIZE);
+        scheduler.addBlockHashes(peer1, hashes(blocks));
+        assertEquals(blocks.size(), scheduler.requestedFrom.size());
+        Peer slow = scheduler.requestedFrom.get(0);
+        // The peer delivers one block, then nothing.
+        scheduler.deliver(blocks.get(0));
+        assertEquals(1, chain.getBestChainHeight());
+
+        scheduler.checkStalls();
+        assertEquals(blocks.size(), scheduler.requestedFrom.size());
+        Utils.rollMockClockMillis(BlockDownloadScheduler.stallTimeoutMillis + 1);
+        scheduler.checkStalls();
+        // Only the missing blocks are asked of the other peer.
+        assertEquals(2 * blocks.size() - 1, scheduler.requestedFrom.size());
+        Peer other = scheduler.requestedFrom.get(scheduler.requestedFrom.size() - 1);
+        assertNotSame(slow, other);
+        for (Block block : blocks.subList(1, blocks.size()))
+            scheduler.deliver(block);
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    public void disconnectedPeersBlocksReassigned() throws Exception {
+        peers = new ArrayList<Peer>(Arrays.asList(peer1, peer2));
+        List<Block> blocks = createBlocks(BlockDownloadScheduler.WINDOW_SIZE);
+        scheduler.addBlockHashes(peer1, hashes(blocks));
+        Peer first = scheduler.requestedFrom.get(0);
+        peers.remove(first);
+        scheduler.peerDisconnected(first);
+        assertEquals(2 * blocks.size(), scheduler.requestedFrom.size());
+        assertNotSame(first, scheduler.requestedFrom.get(blocks.size()));
+        for (Block block : blocks)
+            scheduler.deliver(block);
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    public void asksForMoreHashesWhileDownloading() throws Exception {
+        // A full inv means there are more blocks after it, which are asked for without waiting for the bodies.
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 500; i++)
+            hashes.add(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}));
+        scheduler.addBlockHashes(peer1, hashes);
+        assertEquals(Collections.singletonList(hashes.get(499)), scheduler.hashesRequestedAfter);
+        // Peers have at most two windows each.
+        assertEquals(3 * 2 * BlockDownloadScheduler.WINDOW_SIZE, scheduler.requestedFrom.size());
+    }
+
+    @Test
+    public void headersFirst() throws Exception {
+        scheduler = new TestScheduler(3);
+        scheduler.setDownloadPeer(peer1);
+        List<Block> blocks = createBlocks(2 * BlockDownloadScheduler.WINDOW_SIZE);
+        List<Block> headers = new ArrayList<Block>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        // Headers with a gap are refused.
+        try {
+            scheduler.addBlockHeaders(peer1, Arrays.asList(headers.get(0), headers.get(2)), false);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertFalse(scheduler.isDownloading());
+        // The batch was full, so the next headers are asked for whilst the blocks are downloaded.
+        scheduler.addBlockHeaders(peer1, headers, true);
+        assertEquals(Collections.singletonList(blocks.get(blocks.size() - 1).getHash()), scheduler.hashesRequestedAfter);
+        for (Block block : blocks)
+            scheduler.deliver(block);
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    public void unconnectedBlocksRestartDownload() throws Exception {
+        List<Block> blocks = createBlocks(2);
+        // Skip the first block, so the second doesn't connect.
+        scheduler.addBlockHashes(peer1, hashes(blocks.subList(1, 2)));
+        scheduler.deliver(blocks.get(1));
+        assertFalse(scheduler.isDownloading());
+        assertEquals(Collections.<Sha256Hash>singletonList(null), scheduler.hashesRequestedAfter);
+    }
+}
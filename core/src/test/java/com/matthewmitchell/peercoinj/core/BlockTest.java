@@ -24,6 +24,10 @@ import com.matthewmitchell.peercoinj.core.Transaction;
 import com.matthewmitchell.peercoinj.core.VerificationException;
 import com.matthewmitchell.peercoinj.params.UnitTestParams;
 import com.matthewmitchell.peercoinj.script.ScriptOpCodes;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
@@ -31,7 +35,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 
 import static com.matthewmitchell.peercoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -150,5 +158,78 @@ public class BlockTest {
         assertEquals(block.length, origBlockLen + tx.length);
         assertEquals(tx.length, origTxLength + 41); // - 1 + 40 + 1 + 1
     }
-}
 
+    private static Sha256Hash referenceMerkleRoot(List<Sha256Hash> leaves) {
+        // Builds every level of the tree as a list, the way blocks used to.
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            level.add(Utils.reverseBytes(leaf.getBytes()));
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<byte[]>();
+            for (int left = 0; left < level.size(); left += 2) {
+                byte[] right = level.get(Math.min(left + 1, level.size() - 1));
+                parents.add(Utils.doubleDigestTwoBuffers(level.get(left), 0, 32, right, 0, 32));
+            }
+            level = parents;
+        }
+        return new Sha256Hash(Utils.reverseBytes(level.get(0)));
+    }
+
+    @Test
+    public void merkleRoot() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Block block = params.getGenesisBlock().createNextBlockWithCoinbase(new ECKey().getPubKey());
+        // An odd number of transactions spanning several parallel subtrees, the last one partial.
+        for (int i = 0; i < 1300; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(new TransactionOutput(params, null, Coin.valueOf(i + 1), new byte[] {(byte) ScriptOpCodes.OP_TRUE}));
+            tx.addInput(new TransactionInput(params, null, new byte[] {(byte) ScriptOpCodes.OP_FALSE},
+                    new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] {1}))));
+            block.addTransaction(tx);
+        }
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (Transaction tx : block.getTransactions())
+            leaves.add(tx.getHash());
+        Sha256Hash expected = referenceMerkleRoot(leaves);
+        assertEquals(expected, block.getMerkleRoot());
+
+        try {
+            Block.setParallelMerkleThreshold(1);
+            Block parsed = new Block(params, block.peercoinSerialize());
+            assertEquals(expected, parsed.getMerkleRoot());
+            parsed.verifyTransactions();
+
+            // Hashing still finishes when the pool has no thread free to help, as when it is called from the pool.
+            ListeningExecutorService pool = Threading.THREAD_POOL;
+            ListeningExecutorService busy = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+            final CountDownLatch release = new CountDownLatch(1);
+            busy.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+            });
+            Threading.THREAD_POOL = busy;
+            try {
+                new Block(params, block.peercoinSerialize()).verifyTransactions();
+            } finally {
+                Threading.THREAD_POOL = pool;
+                release.countDown();
+                busy.shutdown();
+            }
+        } finally {
+            Block.setParallelMerkleThreshold(Block.DEFAULT_PARALLEL_MERKLE_THRESHOLD);
+        }
+
+        // Partial merkle trees hash their subtrees the same way.
+        for (int count : new int[] {1, 2, 3, 7, 1301}) {
+            List<Sha256Hash> subset = leaves.subList(0, count);
+            byte[] includeBits = new byte[(count + 7) / 8];
+            Utils.setBitLE(includeBits, count / 2);
+            PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(params, includeBits, subset);
+            List<Sha256Hash> matched = new ArrayList<Sha256Hash>();
+            assertEquals(referenceMerkleRoot(subset), pmt.getTxnHashAndMerkleRoot(matched));
+            assertEquals(Arrays.asList(subset.get(count / 2)), matched);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.BlockStore;
+import com.matthewmitchell.peercoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChainHeightIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockStore store;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(params);
+        chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+    }
+
+    // Extends the chain from the given block, returning the new blocks.
+    private List<StoredBlock> extend(StoredBlock from, int count) throws Exception {
+        Address coinbaseTo = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(coinbaseTo).cloneAsHeader());
+            store.put(next);
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    private int heightOf(Sha256Hash hash) throws Exception {
+        return store.get(hash).getHeight();
+    }
+
+    @Test
+    public void exponentialLocator() throws Exception {
+        chain.addAll(extend(chain.get(0), 3000));
+        ChainHeightIndex index = new ChainHeightIndex(store, chain.get(3000));
+        List<Sha256Hash> locator = index.getLocator(params.getGenesisBlock().getHash());
+        // The top ten are consecutive, then the gaps grow, ending at the genesis block.
+        for (int i = 0; i < 10; i++)
+            assertEquals(chain.get(3000 - i).getHeader().getHash(), locator.get(i));
+        for (int i = 10; i < locator.size(); i++)
+            assertTrue(heightOf(locator.get(i - 1)) - heightOf(locator.get(i)) > 1);
+        assertEquals(params.getGenesisBlock().getHash(), locator.get(locator.size() - 1));
+        assertTrue(locator.size() < 30);
+        // Every hash is on the chain.
+        for (Sha256Hash hash : locator)
+            assertEquals(hash, chain.get(heightOf(hash)).getHeader().getHash());
+    }
+
+    @Test
+    public void followsHeadAndReorgs() throws Exception {
+        chain.addAll(extend(chain.get(0), 1500));
+        ChainHeightIndex index = new ChainHeightIndex(store, chain.get(1500));
+        index.getLocator(params.getGenesisBlock().getHash());
+        for (StoredBlock block : extend(chain.get(1500), 20)) {
+            chain.add(block);
+            index.setHead(block);
+        }
+        assertEquals(chain.get(1520).getHeader().getHash(), index.get(1520));
+        assertEquals(chain.get(1000).getHeader().getHash(), index.get(1000));
+
+        // A fork from deep down takes over.
+        List<StoredBlock> fork = extend(chain.get(700), 900);
+        index.setHead(fork.get(fork.size() - 1));
+        assertNull(index.get(1601));
+        assertEquals(fork.get(fork.size() - 1).getHeader().getHash(), index.get(1600));
+        assertEquals(fork.get(0).getHeader().getHash(), index.get(701));
+        assertEquals(fork.get(99).getHeader().getHash(), index.get(800));
+        assertEquals(chain.get(700).getHeader().getHash(), index.get(700));
+        List<Sha256Hash> locator = index.getLocator(params.getGenesisBlock().getHash());
+        for (Sha256Hash hash : locator) {
+            int height = heightOf(hash);
+            Sha256Hash expected = height > 700 ? fork.get(height - 701).getHeader().getHash() : chain.get(height).getHeader().getHash();
+            assertEquals(expected, hash);
+        }
+    }
+}
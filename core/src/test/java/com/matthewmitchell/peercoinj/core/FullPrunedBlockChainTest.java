@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.BlockStoreException;
+import com.matthewmitchell.peercoinj.store.MemoryFullPrunedBlockStore;
+import com.matthewmitchell.peercoinj.utils.BriefLogFormatter;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FullPrunedBlockChainTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private SlowStore store;
+    private FullPrunedBlockChain chain;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        store = new SlowStore();
+        chain = new FullPrunedBlockChain(params, store, null);
+        // The test blocks carry dummy signatures.
+        chain.setRunScripts(false);
+        chain.setPipelineDepth(8);
+        to = new ECKey().toAddress(params);
+    }
+
+    // Lets the tests give prefetching a head start over connecting.
+    private static class SlowStore extends MemoryFullPrunedBlockStore {
+        volatile long batchDelay;
+
+        SlowStore() {
+            super(params, 10);
+        }
+
+        @Override
+        public void beginDatabaseBatchWrite() throws BlockStoreException {
+            Uninterruptibles.sleepUninterruptibly(batchDelay, TimeUnit.MILLISECONDS);
+            super.beginDatabaseBatchWrite();
+        }
+    }
+
+    // Coinbase only blocks, enough for the first coinbase to mature.
+    private List<Block> createMaturingBlocks() {
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i <= params.getSpendableCoinbaseDepth(); i++) {
+            prev = prev.createNextBlock(null);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private static TransactionOutPoint coinbaseOutput(Block block) {
+        return new TransactionOutPoint(params, 0, block.getTransactions().get(0).getHash());
+    }
+
+    @Test
+    public void addAllConnectsInOrder() throws Exception {
+        List<Block> blocks = createMaturingBlocks();
+        TransactionOutPoint spent = coinbaseOutput(blocks.get(0));
+        Block spend = blocks.get(blocks.size() - 1).createNextBlock(to, spent);
+        blocks.add(spend);
+        Block next = spend.createNextBlock(null);
+        blocks.add(next);
+
+        chain.addAll(blocks);
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+        assertEquals(next, chain.getChainHead().getHeader());
+        assertEquals(next, store.getVerifiedChainHead().getHeader());
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        Sha256Hash created = spend.getTransactions().get(1).getHash();
+        assertNotNull(store.getTransactionOutput(created, 0));
+    }
+
+    @Test
+    public void doubleSpendAcrossPipelinedBlocks() throws Exception {
+        List<Block> maturing = createMaturingBlocks();
+        chain.addAll(maturing);
+        TransactionOutPoint spent = coinbaseOutput(maturing.get(0));
+        List<Block> blocks = new ArrayList<Block>();
+        Block spend = maturing.get(maturing.size() - 1).createNextBlock(to, spent);
+        blocks.add(spend);
+        // The output it spends is read before the block above is committed, while it is still unspent.
+        Block doubleSpend = spend.createNextBlock(new ECKey().toAddress(params), spent);
+        blocks.add(doubleSpend);
+        blocks.add(doubleSpend.createNextBlock(null));
+
+        store.batchDelay = 100;
+        try {
+            chain.addAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // Everything up to the bad block was added, and nothing of it was.
+        assertEquals(spend, chain.getChainHead().getHeader());
+        assertEquals(spend, store.getVerifiedChainHead().getHeader());
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertNull(store.getTransactionOutput(doubleSpend.getTransactions().get(0).getHash(), 0));
+    }
+
+    @Test
+    public void missingOutputIsRejected() throws Exception {
+        List<Block> blocks = createMaturingBlocks();
+        // Spends an output that never existed.
+        Block bad = blocks.get(blocks.size() - 1).createNextBlock(to);
+        blocks.add(bad);
+        blocks.add(bad.createNextBlock(null));
+
+        try {
+            chain.addAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(blocks.get(blocks.size() - 3), chain.getChainHead().getHeader());
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class PeerGroupTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockChain chain;
+    private PeerGroup peerGroup;
+
+    // A connected peer that records what it is sent instead of writing it to a socket.
+    private static class RecordingPeer extends Peer {
+        final List<Message> sent = new CopyOnWriteArrayList<Message>();
+
+        RecordingPeer(AbstractBlockChain chain, int bestHeight) throws Exception {
+            super(params, new VersionMessage(params, 0), chain,
+                    new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), params.getPort()));
+            VersionMessage ver = new VersionMessage(params, bestHeight);
+            ver.localServices = VersionMessage.NODE_NETWORK;
+            processMessage(ver);
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sent.add(message);
+        }
+
+        int downloadRequests() {
+            int requests = 0;
+            for (Message message : sent)
+                if (message instanceof GetBlocksMessage || message instanceof GetHeadersMessage)
+                    requests++;
+            return requests;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        peerGroup = new PeerGroup(params, chain);
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+    }
+
+    @Test
+    public void stalledDownloadPeerIsAskedAgainWhenAlone() throws Exception {
+        RecordingPeer peer = new RecordingPeer(chain, 10);
+        peerGroup.handleNewPeer(peer);
+        assertEquals(peer, peerGroup.getDownloadPeer());
+        assertEquals(1, peer.downloadRequests());
+
+        // The chain doesn't move, and there's nobody else to download from, so the same request goes out again.
+        peerGroup.setDownloadStallTimeout(0);
+        peerGroup.checkDownloadPeer();
+        assertEquals(peer, peerGroup.getDownloadPeer());
+        assertEquals(2, peer.downloadRequests());
+    }
+}
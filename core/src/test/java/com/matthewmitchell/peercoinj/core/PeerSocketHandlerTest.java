@@ -0,0 +1,170 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.net.MessageWriteTarget;
+import com.matthewmitchell.peercoinj.net.ReadPausable;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static class RecordingHandler extends PeerSocketHandler {
+        final List<Long> nonces = new ArrayList<Long>();
+
+        RecordingHandler() {
+            super(params, new InetSocketAddress("127.0.0.1", 2000));
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            nonces.add(((Ping) m).getNonce());
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+
+    // Runs tasks only when asked to.
+    private static class QueuedExecutor implements Executor {
+        final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    }
+
+    // A write target which only takes arrays, recording what it is sent and whether reading is paused.
+    private static class PausableTarget implements MessageWriteTarget, ReadPausable {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean paused;
+
+        @Override
+        public void writeBytes(byte[] message) throws IOException {
+            written.write(message);
+        }
+
+        @Override
+        public void closeConnection() {
+        }
+
+        @Override
+        public void setReadPaused(boolean paused) {
+            this.paused = paused;
+        }
+    }
+
+    private static ByteBuffer pings(long first, int count) throws Exception {
+        PeercoinSerializer serializer = new PeercoinSerializer(params);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++)
+            serializer.serialize(new Ping(first + i), bos);
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    @Test
+    public void messagesProcessedInOrderOnExecutor() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        QueuedExecutor executor = new QueuedExecutor();
+        handler.setMessageExecutor(executor);
+
+        handler.receiveBytes(pings(0, 20));
+        // Nothing runs on the reading thread, and one task drains the lot.
+        assertTrue(handler.nonces.isEmpty());
+        assertEquals(1, executor.tasks.size());
+        handler.receiveBytes(pings(20, 20));
+        assertEquals(1, executor.tasks.size());
+
+        // Other peers get a turn every so often.
+        int turns = 0;
+        Runnable task;
+        while ((task = executor.tasks.poll()) != null) {
+            task.run();
+            turns++;
+        }
+        assertTrue(turns > 1);
+        assertEquals(40, handler.nonces.size());
+        for (int i = 0; i < 40; i++)
+            assertEquals(i, (long) handler.nonces.get(i));
+
+        // Once drained, the next message schedules a task again.
+        handler.receiveBytes(pings(40, 1));
+        assertEquals(1, executor.tasks.size());
+        executor.tasks.poll().run();
+        assertEquals(41, handler.nonces.size());
+    }
+
+    @Test
+    public void messagesProcessedInlineByDefault() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        handler.receiveBytes(pings(0, 3));
+        assertEquals(3, handler.nonces.size());
+    }
+
+    @Test
+    public void messagesSentToPlainWriteTargetAsBytes() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        PausableTarget target = new PausableTarget();
+        handler.setWriteTarget(target);
+        handler.sendMessage(new Ping(1));
+        handler.sendMessage(new Ping(2));
+        ByteBuffer expected = pings(1, 2);
+        assertArrayEquals(expected.array(), target.written.toByteArray());
+    }
+
+    @Test
+    public void readingPausedWhileTooManyMessagesWait() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        QueuedExecutor executor = new QueuedExecutor();
+        handler.setMessageExecutor(executor);
+        PausableTarget target = new PausableTarget();
+        handler.setWriteTarget(target);
+
+        // Far more messages arrive than the executor has got to.
+        handler.receiveBytes(pings(0, 200));
+        assertTrue(target.paused);
+
+        // Reading starts again once the backlog has been worked down, and nothing is lost.
+        while (target.paused)
+            executor.tasks.poll().run();
+        assertTrue(handler.nonces.size() < 200);
+        Runnable task;
+        while ((task = executor.tasks.poll()) != null)
+            task.run();
+        assertEquals(200, handler.nonces.size());
+        assertFalse(target.paused);
+    }
+}
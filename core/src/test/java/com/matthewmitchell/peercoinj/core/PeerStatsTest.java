@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerStatsTest {
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void ratesDecay() {
+        PeerStats stats = new PeerStats();
+        for (int i = 0; i < 30; i++)
+            stats.blockReceived();
+        stats.messageReceived(30 * 1024);
+        assertEquals(1.0, stats.getBlocksPerSecond(), 0.001);
+        assertEquals(1024, stats.getBytesPerSecond(), 0.1);
+        Utils.rollMockClockMillis(PeerStats.DECAY_MILLIS);
+        assertEquals(Math.exp(-1), stats.getBlocksPerSecond(), 0.001);
+    }
+
+    @Test
+    public void scoring() {
+        PeerStats fast = new PeerStats(), slow = new PeerStats();
+        assertEquals(0, fast.getScore(), 0);
+        // Until data arrives, only the ping time counts.
+        fast.pingReceived(50);
+        slow.pingReceived(500);
+        assertTrue(fast.getScore() > slow.getScore());
+        // Then it is the getdata latency and throughput.
+        slow.responseReceived(20);
+        slow.messageReceived(1024 * 1024);
+        assertTrue(slow.getScore() > fast.getScore());
+        assertEquals(20, slow.getLatencyMillis());
+        // Not having what we ask for costs in proportion.
+        double before = slow.getScore();
+        slow.itemsRequested(10);
+        slow.itemsNotFound(5);
+        assertEquals(0.5, slow.getNotFoundRate(), 0.001);
+        assertEquals(before / 2, slow.getScore(), 0.01);
+    }
+
+    @Test
+    public void stallPenalty() {
+        PeerStats stats = new PeerStats();
+        stats.pingReceived(50);
+        stats.stalled(1000);
+        assertTrue(stats.isStalled());
+        assertEquals(0, stats.getScore(), 0);
+        Utils.rollMockClockMillis(1000);
+        assertFalse(stats.isStalled());
+        assertTrue(stats.getScore() > 0);
+    }
+}
@@ -23,6 +23,7 @@ import com.matthewmitchell.peercoinj.core.HeadersMessage;
 import com.matthewmitchell.peercoinj.core.PeerAddress;
 import com.matthewmitchell.peercoinj.core.PeercoinSerializer;
 import com.matthewmitchell.peercoinj.core.Transaction;
+import com.matthewmitchell.peercoinj.net.BufferPool;
 import com.matthewmitchell.peercoinj.params.MainNetParams;
 
 import org.junit.Test;
@@ -166,6 +167,83 @@ public class PeercoinSerializerTest {
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
+    private static byte[] concat(ByteBuffer[] buffers) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            bos.write(bytes, 0, bytes.length);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testSerializeToBuffers() throws Exception {
+        // A message holding on to its bytes is sent from them, and one that isn't is serialized into a pooled buffer.
+        PeercoinSerializer retaining = new PeercoinSerializer(MainNetParams.get(), true, true);
+        Transaction tx = (Transaction) retaining.deserialize(ByteBuffer.wrap(txMessage));
+        ByteBuffer[] buffers = retaining.serializeToBuffers(tx);
+        assertEquals(2, buffers.length);
+        assertArrayEquals(txMessage, concat(buffers));
+
+        PeercoinSerializer bs = new PeercoinSerializer(MainNetParams.get());
+        tx = new Transaction(MainNetParams.get(), tx.peercoinSerialize());
+        buffers = bs.serializeToBuffers(tx);
+        assertEquals(1, buffers.length);
+        assertArrayEquals(txMessage, concat(buffers));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertArrayEquals(bos.toByteArray(), concat(buffers));
+        for (ByteBuffer buffer : buffers)
+            BufferPool.release(buffer);
+
+        // Larger than the pooled buffers.
+        Block block = new Block(MainNetParams.get());
+        block.addCoinbaseTransaction(new ECKey().getPubKey(), Coin.COIN);
+        while (block.getMessageSize() <= BufferPool.MAX_POOLED_SIZE)
+            block.addTransaction(new Transaction(MainNetParams.get(), tx.peercoinSerialize()));
+        buffers = bs.serializeToBuffers(block);
+        bos = new ByteArrayOutputStream();
+        bs.serialize(block, bos);
+        assertArrayEquals(bos.toByteArray(), concat(buffers));
+    }
+
+    @Test
+    public void testDeserializePayload() throws Exception {
+        PeercoinSerializer retaining = new PeercoinSerializer(MainNetParams.get(), true, true);
+        ByteBuffer in = ByteBuffer.wrap(txMessage);
+        retaining.seekPastMagicBytes(in);
+        PeercoinSerializer.PeercoinPacketHeader header = retaining.deserializeHeader(in);
+        byte[] payload = Arrays.copyOfRange(txMessage, in.position(), txMessage.length);
+
+        // A buffer holding exactly the payload is handed to the message as is.
+        Transaction tx = (Transaction) retaining.deserializePayload(header, ByteBuffer.wrap(payload));
+        assertSame(payload, tx.unsafePeercoinSerialize());
+
+        // Otherwise the payload is copied and the buffer advanced past it.
+        ByteBuffer padded = ByteBuffer.allocate(payload.length + 1);
+        padded.put(payload).flip();
+        tx = (Transaction) retaining.deserializePayload(header, padded);
+        assertNotSame(payload, tx.unsafePeercoinSerialize());
+        assertArrayEquals(payload, tx.unsafePeercoinSerialize());
+        assertEquals(payload.length, padded.position());
+
+        try {
+            retaining.deserializePayload(header, ByteBuffer.wrap(payload, 0, payload.length - 1));
+            fail();
+        } catch (BufferUnderflowException e) {
+            // Expected.
+        }
+
+        payload[0]++;
+        try {
+            retaining.deserializePayload(header, ByteBuffer.wrap(payload));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testHeaders1() throws Exception {
         PeercoinSerializer bs = new PeercoinSerializer(MainNetParams.get());
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TransactionRequestSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private Peer peer1, peer2, peer3;
+    private MemoryPool memoryPool;
+    private TestScheduler scheduler;
+
+    // Records requests instead of sending them.
+    private class TestScheduler extends TransactionRequestScheduler {
+        final List<Peer> requestedFrom = new ArrayList<Peer>();
+        final List<List<Sha256Hash>> requests = new ArrayList<List<Sha256Hash>>();
+
+        TestScheduler() {
+            super(params, memoryPool);
+        }
+
+        @Override
+        protected void requestTransactions(Peer peer, List<Sha256Hash> hashes) {
+            requestedFrom.add(peer);
+            requests.add(hashes);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        peer1 = createPeer(1);
+        peer2 = createPeer(2);
+        peer3 = createPeer(3);
+        memoryPool = new MemoryPool();
+        scheduler = new TestScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private static Peer createPeer(int port) throws Exception {
+        return new Peer(params, new VersionMessage(params, 0), null, new PeerAddress(InetAddress.getLocalHost(), port));
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.create(new byte[] {(byte) i});
+    }
+
+    @Test
+    public void askedOfFirstAnnouncerOnly() throws Exception {
+        List<Sha256Hash> hashes = Arrays.asList(hash(1), hash(2));
+        scheduler.announced(peer1, hashes);
+        scheduler.announced(peer2, hashes);
+        scheduler.announced(peer3, Arrays.asList(hash(2), hash(3)));
+        // One getdata each, for what wasn't asked for yet.
+        assertEquals(Arrays.asList(peer1, peer3), scheduler.requestedFrom);
+        assertEquals(hashes, scheduler.requests.get(0));
+        assertEquals(Collections.singletonList(hash(3)), scheduler.requests.get(1));
+        assertEquals(3, scheduler.getInFlightCount());
+        scheduler.received(hash(1));
+        assertEquals(2, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void failsOverToOtherAnnouncers() throws Exception {
+        scheduler.announced(peer1, Arrays.asList(hash(1), hash(2)));
+        scheduler.announced(peer2, Arrays.asList(hash(1), hash(2)));
+        scheduler.announced(peer3, Arrays.asList(hash(1)));
+        // Not found goes straight to the next announcer.
+        scheduler.notFound(peer1, Arrays.asList(hash(1)));
+        assertEquals(peer2, scheduler.requestedFrom.get(1));
+        assertEquals(Collections.singletonList(hash(1)), scheduler.requests.get(1));
+        // Timeouts are batched per peer.
+        scheduler.checkTimeouts();
+        assertEquals(2, scheduler.requestedFrom.size());
+        Utils.rollMockClockMillis(TransactionRequestScheduler.timeoutMillis);
+        scheduler.checkTimeouts();
+        assertEquals(4, scheduler.requestedFrom.size());
+        Map<Peer, List<Sha256Hash>> asked = new HashMap<Peer, List<Sha256Hash>>();
+        for (int i = 2; i < 4; i++)
+            asked.put(scheduler.requestedFrom.get(i), scheduler.requests.get(i));
+        assertEquals(Collections.singletonList(hash(1)), asked.get(peer3));
+        assertEquals(Collections.singletonList(hash(2)), asked.get(peer2));
+        // Then there is nobody left to ask.
+        scheduler.peerDisconnected(peer2);
+        assertEquals(4, scheduler.requestedFrom.size());
+        assertEquals(1, scheduler.getInFlightCount());
+        scheduler.notFound(peer3, Arrays.asList(hash(1)));
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void skipsDownloadedTransactions() throws Exception {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.COIN, new ECKey());
+        memoryPool.seen(tx, peer1.getAddress());
+        scheduler.announced(peer2, Arrays.asList(tx.getHash()));
+        assertTrue(scheduler.requestedFrom.isEmpty());
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void lateAnnouncersIgnored() throws Exception {
+        // Once it has arrived, a transaction isn't downloaded again even if the memory pool doesn't have it.
+        scheduler.announced(peer1, Arrays.asList(hash(1)));
+        assertTrue(scheduler.isInFlight(hash(1)));
+        scheduler.received(hash(1));
+        assertFalse(scheduler.isInFlight(hash(1)));
+        scheduler.announced(peer2, Arrays.asList(hash(1)));
+        assertEquals(1, scheduler.requestedFrom.size());
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+}
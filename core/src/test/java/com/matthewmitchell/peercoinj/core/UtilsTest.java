@@ -17,7 +17,17 @@
 package com.matthewmitchell.peercoinj.core;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
 
 import static org.junit.Assert.*;
 
@@ -52,4 +62,53 @@ public class UtilsTest {
         assertEquals(0x05123456L, Utils.encodeCompactBits(new BigInteger("1234560000", 16)));
         assertEquals(0x0600c0deL, Utils.encodeCompactBits(new BigInteger("c0de000000", 16)));
     }
+
+    @Test
+    public void digests() throws Exception {
+        byte[] hello = "hello".getBytes("UTF-8");
+        assertArrayEquals(Hex.decode("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824"),
+                Utils.singleDigest(hello, 0, hello.length));
+        assertArrayEquals(Hex.decode("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50"),
+                Utils.doubleDigest(hello));
+
+        // Buffers are hashed between their position and limit and are left untouched.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(9);
+        buffer.put((byte) 1).put(hello).put(new byte[3]);
+        buffer.position(1).limit(6);
+        assertArrayEquals(Utils.doubleDigest(hello), Utils.doubleDigest(buffer));
+        assertArrayEquals(Utils.singleDigest(hello, 0, hello.length), Utils.singleDigest(buffer));
+        assertEquals(1, buffer.position());
+        assertEquals(6, buffer.limit());
+        assertArrayEquals(Utils.doubleDigest(hello), Utils.doubleDigest(ByteBuffer.wrap(hello)));
+    }
+
+    @Test
+    public void concurrentDigests() throws Exception {
+        final byte[][] inputs = new byte[64][];
+        final byte[][] expected = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new byte[80 + i];
+            inputs[i][0] = (byte) i;
+            expected[i] = Utils.doubleDigest(inputs[i]);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int n = 0; n < 2000; n++) {
+                        int i = (n + offset) % inputs.length;
+                        if (!Arrays.equals(expected[i], Utils.doubleDigest(inputs[i])))
+                            return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results)
+            assertTrue(result.get());
+        executor.shutdown();
+    }
 }
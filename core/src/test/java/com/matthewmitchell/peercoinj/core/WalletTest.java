@@ -36,6 +36,8 @@ import com.matthewmitchell.peercoinj.utils.Threading;
 import com.matthewmitchell.peercoinj.wallet.*;
 import com.matthewmitchell.peercoinj.wallet.WalletTransaction.Pool;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
@@ -536,6 +538,27 @@ public class WalletTest extends TestWithWallet {
         assertEquals(v4, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
     }
 
+    @Test
+    public void balanceFollowsImportedKeys() throws Exception {
+        // The change output of this tx goes to a key that the wallet doesn't have yet.
+        ECKey key = new ECKey();
+        Transaction tx = createFakeTxWithChangeAddress(params, COIN, myAddress, key.toAddress(params));
+        sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        // Importing the key makes the change ours as well.
+        wallet.importKey(key);
+        assertEquals(COIN.add(valueOf(1, 11)), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(COIN.add(valueOf(1, 11)), wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        // Spending everything empties the candidates again.
+        SendRequest req = SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(req);
+        wallet.commitTx(req.tx);
+        assertEquals(ZERO, wallet.getBalance());
+        assertEquals(0, wallet.calculateAllSpendCandidates(true).size());
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to the official client. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -611,6 +634,54 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void depthEventsPastHorizon() throws Exception {
+        // Past the horizon, blocks only raise depth events for the depths somebody is waiting for.
+        wallet.setDepthEventHorizon(2);
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        ListenableFuture<Transaction> depthFuture = tx1.getConfidence().getDepthFuture(5);
+        Threading.waitForUserCode();
+        confTxns.clear();
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, confTxns.size());
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+        confTxns.clear();
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertTrue(confTxns.isEmpty());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        assertFalse(depthFuture.isDone());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, confTxns.size());
+        assertEquals(tx1, depthFuture.get());
+    }
+
+    @Test
+    public void depthTrackedByFirstWalletOnly() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, tx1.getConfidence().getDepthInBlocks());
+        // Another wallet given the same object, as from a shared memory pool, doesn't take over its depth.
+        Wallet other = new Wallet(params);
+        other.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx1));
+        assertEquals(1, tx1.getConfidence().getDepthInBlocks());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+        // Once the wallet lets go of it, its blocks no longer move the depth.
+        wallet.clearTransactions(0);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void balances() throws Exception {
         Coin nanos = COIN;
@@ -625,6 +696,39 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 11)), send2.getValue(wallet)); // ppcoin: Cent fee
     }
 
+    @Test
+    public void readsDontWaitForLock() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance());
+        // Hold the wallet lock on another thread, as signing or saving would.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Fall through and unlock.
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(Collections.singleton(tx1), wallet.getTransactions(false));
+        assertEquals(Collections.singletonList(tx1), wallet.getRecentTransactions(0, false));
+        // The holder would have timed out had any of those waited for it.
+        assertTrue(holder.isAlive());
+        release.countDown();
+        holder.join();
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -792,6 +896,21 @@ public class WalletTest extends TestWithWallet {
         assertEquals(send3, dead.poll());
     }
 
+    @Test
+    public void doubleSpendOfForeignOutputAgainstPending() throws Exception {
+        // Spending an output that isn't ours is only relevant whilst a pending transaction spends it too.
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        sendMoneyToWallet(t1, null);
+        TransactionOutPoint outpoint = t1.getInput(0).getOutpoint();
+        Transaction t2 = new Transaction(params);
+        t2.addInput(new TransactionInput(params, t2, new byte[] {},
+                new TransactionOutPoint(params, outpoint.getIndex(), outpoint.getHash())));
+        t2.addOutput(COIN, new ECKey().toAddress(params));
+        assertTrue(wallet.isTransactionRelevant(t2));
+        sendMoneyToWallet(t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertFalse(wallet.isTransactionRelevant(t2));
+    }
+
     @Test
     public void doubleSpendFinneyAttack() throws Exception {
         // A Finney attack is where a miner includes a transaction spending coins to themselves but does not
@@ -1052,6 +1171,70 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionsPaging() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> sent = new ArrayList<Transaction>();
+        for (int i = 0; i < 5; i++) {
+            sent.add(0, sendMoneyToWallet(valueOf(0, 1 + i), AbstractBlockChain.NewBlockType.BEST_CHAIN));
+            Utils.rollMockClock(60);
+        }
+        assertEquals(5, wallet.getTransactionCount(false));
+        assertEquals(5, wallet.getTransactions(false).size());
+        // Page through two at a time, newest first.
+        List<Transaction> seen = new ArrayList<Transaction>();
+        List<Transaction> page = wallet.getTransactionsByTime(null, 2, false);
+        while (true) {
+            seen.addAll(page);
+            if (page.size() < 2)
+                break;
+            page = wallet.getTransactionsByTime(page.get(page.size() - 1), 2, false);
+        }
+        assertEquals(sent, seen);
+
+        // A transaction given a new time moves to its new place.
+        Transaction oldest = sent.get(4);
+        oldest.setUpdateTime(Utils.now());
+        assertEquals(oldest, wallet.getTransactionsByTime(null, 1, false).get(0));
+        assertEquals(sent.subList(1, 3), wallet.getTransactionsByTime(sent.get(0), 2, false));
+
+        // Dead transactions are only counted and listed when asked for.
+        Transaction dead = createFakeTx(params, COIN, myAddress);
+        wallet.addWalletTransaction(new WalletTransaction(Pool.DEAD, dead));
+        assertEquals(5, wallet.getTransactionCount(false));
+        assertEquals(6, wallet.getTransactionCount(true));
+        assertFalse(wallet.getTransactions(false).contains(dead));
+        assertTrue(wallet.getTransactions(true).contains(dead));
+        assertFalse(wallet.getRecentTransactions(0, false).contains(dead));
+        assertEquals(6, wallet.getRecentTransactions(0, true).size());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void transactionSetsAreCopiesAndViewsFollow() throws Exception {
+        Transaction first = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Set<Transaction> copy = wallet.getTransactions(true);
+        Set<Transaction> view = wallet.getTransactionsView(true);
+        Collection<WalletTransaction> walletView = wallet.getWalletTransactionsView();
+        Iterable<WalletTransaction> walletCopy = wallet.getWalletTransactions();
+
+        Transaction second = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Collections.singleton(first), copy);
+        assertEquals(1, Iterables.size(walletCopy));
+        assertEquals(ImmutableSet.of(first, second), view);
+        assertEquals(2, walletView.size());
+
+        // The copies belong to the caller, the views are read only.
+        copy.remove(first);
+        assertEquals(2, wallet.getTransactions(true).size());
+        try {
+            view.remove(first);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -1618,7 +1801,7 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO, wallet.getBalance());
 
         // Add coin
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 2);
         Transaction tx4 = createFakeTx(params, Coin.COIN, myAddress);
         wallet.receiveFromBlock(tx4, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
 
@@ -1677,11 +1860,11 @@ public class WalletTest extends TestWithWallet {
 
         // Now test coin selection properly selects coin*depth
         for (int i = 0; i < 50; i++) {
-            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, i + 2);
             wallet.notifyNewBestBlock(block);
         }
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 52);
         Transaction tx6 = createFakeTx(params, COIN, myAddress);
         wallet.receiveFromBlock(tx6, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 50);
@@ -1699,7 +1882,7 @@ public class WalletTest extends TestWithWallet {
         Transaction spend13 = wallet.createSend(notMyAddr, CENT);
         assertTrue(spend13.getOutputs().size() == 1 && spend13.getOutput(0).getValue().equals(CENT));
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 53);
         wallet.notifyNewBestBlock(block);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 52);
         assertTrue(tx6.getOutput(0).isMine(wallet) && tx6.getOutput(0).isAvailableForSpending() && tx6.getConfidence().getDepthInBlocks() == 2);
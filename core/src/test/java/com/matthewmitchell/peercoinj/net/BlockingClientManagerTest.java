@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+public class BlockingClientManagerTest {
+    private ServerSocket server;
+    private BlockingClientManager manager;
+
+    // Reads big endian ints, leaving any partial one in the buffer for next time.
+    private static class IntParser implements StreamParser {
+        final BlockingQueue<Integer> ints = new LinkedBlockingQueue<Integer>();
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            while (buff.remaining() >= 4)
+                ints.add(buff.getInt());
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        manager = new BlockingClientManager(SocketFactory.getDefault(), 1);
+        manager.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stopAsync().awaitTerminated();
+        server.close();
+    }
+
+    @Test
+    public void reassemblesSplitMessages() throws Exception {
+        IntParser parser = new IntParser();
+        manager.openConnection(server.getLocalSocketAddress(), parser);
+        Socket socket = server.accept();
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[] {0, 0});
+        out.flush();
+        assertNull(parser.ints.poll(100, TimeUnit.MILLISECONDS));
+        out.write(new byte[] {1, 2, 0, 0, 0, 3});
+        out.flush();
+        assertEquals(0x0102, (int) parser.ints.poll(5, TimeUnit.SECONDS));
+        assertEquals(3, (int) parser.ints.poll(5, TimeUnit.SECONDS));
+        socket.close();
+        assertTrue(parser.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void boundsThreadsWithoutVirtualThreads() throws Exception {
+        assumeFalse(manager.usesVirtualThreads());
+        IntParser first = new IntParser();
+        manager.openConnection(server.getLocalSocketAddress(), first);
+        Socket socket = server.accept();
+        assertTrue(first.opened.await(5, TimeUnit.SECONDS));
+        try {
+            manager.openConnection(server.getLocalSocketAddress(), new IntParser());
+            fail();
+        } catch (RuntimeException e) {
+            // Only one thread allowed.
+        }
+        socket.close();
+        assertTrue(first.closed.await(5, TimeUnit.SECONDS));
+        // The thread goes back to the pool once the connection is gone.
+        IntParser second = new IntParser();
+        for (int i = 0; i < 50 && second.opened.getCount() > 0; i++) {
+            try {
+                manager.openConnection(server.getLocalSocketAddress(), second);
+                server.accept().close();
+                break;
+            } catch (RuntimeException e) {
+                Thread.sleep(20);
+            }
+        }
+        assertTrue(second.opened.await(5, TimeUnit.SECONDS));
+    }
+}
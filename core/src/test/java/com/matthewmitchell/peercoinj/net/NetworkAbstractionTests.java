@@ -46,26 +46,32 @@ public class NetworkAbstractionTests {
     private AtomicBoolean fail;
     private final int clientType;
     private final ClientConnectionManager channels;
+    private final int serverSelectors;
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
         this.clientType = clientType;
         if (clientType == 0) {
             channels = new NioClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
+        } else if (clientType == 4) {
+            // Several selector threads on both ends
+            channels = new NioClientManager(3);
+            channels.startAsync().awaitRunning();
         } else
             channels = null;
+        serverSelectors = clientType == 4 ? 3 : 1;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser<Protos.TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -123,7 +129,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverSelectors);
         server.startAsync();
         server.awaitRunning();
 
@@ -216,7 +222,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverSelectors);
         server.startAsync();
         server.awaitRunning();
 
@@ -300,7 +306,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 10);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverSelectors);
         server.startAsync();
         server.awaitRunning();
 
@@ -392,7 +398,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverSelectors);
         server.startAsync();
         server.awaitRunning();
 
@@ -556,7 +562,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), serverSelectors);
         server.startAsync();
         server.awaitRunning();
 
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.matthewmitchell.peercoinj.net.discovery;
+
+import com.matthewmitchell.peercoinj.core.NetworkParameters;
+import com.matthewmitchell.peercoinj.core.PeerAddress;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerDBDiscoveryTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("peerdb", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static PeerAddress address(int a, int b) throws Exception {
+        return new PeerAddress(InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, 1, 1}), 9903);
+    }
+
+    @Test
+    public void returnsGoodAddresses() throws Exception {
+        PeerDBDiscovery db = new PeerDBDiscovery(params, file);
+        assertEquals(0, db.getPeers(5, TimeUnit.SECONDS).length);
+        Set<InetSocketAddress> known = new HashSet<InetSocketAddress>();
+        for (int i = 0; i < 100; i++) {
+            PeerAddress address = address(100 + i, i);
+            assertTrue(db.addAddress(address, address(60 + i % 10, 0)) >= 0);
+            known.add(address.toSocketAddress());
+        }
+        // A known address on another port is ignored unless the node says so itself.
+        assertEquals(-1, db.addAddress(new PeerAddress(address(100, 0).getAddr(), 1), address(60, 0)));
+        // Addresses we fail to connect to are dropped.
+        PeerAddress bad = address(100, 0);
+        for (int i = 0; i < 3; i++)
+            db.disconnected(bad);
+        InetSocketAddress[] peers = db.getPeers(5, TimeUnit.SECONDS);
+        assertTrue(peers.length > 0 && peers.length <= db.getNewCount() / 8);
+        assertEquals(peers.length, new HashSet<InetSocketAddress>(Arrays.asList(peers)).size());
+        for (InetSocketAddress peer : peers) {
+            assertTrue(known.contains(peer));
+            assertFalse(peer.equals(bad.toSocketAddress()));
+        }
+    }
+
+    @Test
+    public void connectedMoveToTriedAndPersist() throws Exception {
+        PeerDBDiscovery db = new PeerDBDiscovery(params, file);
+        // Few enough addresses that the source's new buckets won't overflow and evict the ones we connect to.
+        for (int i = 0; i < 20; i++)
+            db.addAddress(address(100 + i, i), address(60, 0));
+        int added = db.getNewCount();
+        db.connected(address(100, 0));
+        db.disconnected(address(100, 0));
+        db.connected(address(101, 1));
+        assertEquals(2, db.getTriedCount());
+        assertEquals(added - 2, db.getNewCount());
+
+        // Everything was written as it happened, without a shutdown.
+        PeerDBDiscovery reopened = new PeerDBDiscovery(params, file);
+        assertEquals(2, reopened.getTriedCount());
+        assertEquals(added - 2, reopened.getNewCount());
+        assertEquals(file.length(), PeerDBDiscovery.FILE_SIZE);
+    }
+}
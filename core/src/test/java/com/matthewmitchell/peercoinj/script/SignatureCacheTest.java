@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.script;
+
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.Transaction;
+import com.matthewmitchell.peercoinj.crypto.TransactionSignature;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final ECKey key = new ECKey();
+
+    private static TransactionSignature sign(Sha256Hash hash) {
+        return new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+    }
+
+    @Test
+    public void remembersValidSignatures() {
+        SignatureCache cache = new SignatureCache(1000);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        TransactionSignature sig = sign(hash);
+        byte[] sigBytes = sig.encodeToPeercoin();
+
+        assertTrue(cache.verify(hash, sigBytes, sig, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // A signature over something else, or for another key, is still checked.
+        Sha256Hash other = Sha256Hash.create(new byte[] {2});
+        assertFalse(cache.verify(other, sigBytes, sig, key.getPubKey()));
+        assertFalse(cache.verify(hash, sigBytes, sig, new ECKey().getPubKey()));
+        assertFalse(cache.verify(other, sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        // Invalid signatures aren't remembered.
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(cache.verify(hash, sigBytes, sig, key.getPubKey()));
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void keyIsUnambiguous() {
+        SignatureCache cache = new SignatureCache(1000);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        TransactionSignature sig = sign(hash);
+        byte[] sigBytes = sig.encodeToPeercoin();
+        byte[] pubKey = key.getPubKey();
+        assertTrue(cache.verify(hash, sigBytes, sig, pubKey));
+
+        // The same bytes split differently between the public key and the signature are not the same signature.
+        byte[] longerPubKey = Arrays.copyOf(pubKey, pubKey.length + 1);
+        longerPubKey[pubKey.length] = sigBytes[0];
+        byte[] shorterSigBytes = Arrays.copyOfRange(sigBytes, 1, sigBytes.length);
+        boolean verified;
+        try {
+            verified = cache.verify(hash, shorterSigBytes, sig, longerPubKey);
+        } catch (RuntimeException e) {
+            verified = false;  // Not a public key at all.
+        }
+        assertFalse(verified);
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void bounded() {
+        SignatureCache cache = new SignatureCache(32);
+        for (int i = 0; i < 200; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            TransactionSignature sig = sign(hash);
+            assertTrue(cache.verify(hash, sig.encodeToPeercoin(), sig, key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 32);
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Coin;
+import com.matthewmitchell.peercoinj.core.NetworkParameters;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredBlock;
+import com.matthewmitchell.peercoinj.core.StoredTransactionOutput;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static class CountingStore extends MemoryFullPrunedBlockStore {
+        int reads, adds, removes, batches;
+
+        CountingStore() {
+            super(params, 10);
+        }
+
+        @Override
+        public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+            reads++;
+            return super.getTransactionOutput(hash, index);
+        }
+
+        @Override
+        public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            adds++;
+            super.addUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            removes++;
+            super.removeUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+            batches++;
+            super.commitDatabaseBatchWrite();
+        }
+    }
+
+    private CountingStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        backing = new CountingStore();
+        store = new CachingFullPrunedBlockStore(backing);
+    }
+
+    private static StoredTransactionOutput output(int tx, int index) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) tx}), index, Coin.valueOf(tx * 100 + index),
+                1, false, new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void shortLivedOutputsNeverReachStore() throws Exception {
+        StoredTransactionOutput a = output(1, 0), b = output(1, 1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertEquals(a.getValue(), store.getTransactionOutput(a.getHash(), 0).getValue());
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        assertEquals(0, backing.reads);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        store.flush();
+        assertEquals(1, backing.adds);
+        assertEquals(0, backing.removes);
+        assertNotNull(backing.getTransactionOutput(b.getHash(), 1));
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+    }
+
+    @Test
+    public void batchesAreIsolatedAndAbortable() throws Exception {
+        final StoredTransactionOutput a = output(2, 0);
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock next = genesis.build(params.getGenesisBlock().createNextBlock(null).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        assertEquals(next, store.getVerifiedChainHead());
+        // Other threads don't see uncommitted changes.
+        final StoredTransactionOutput[] seen = new StoredTransactionOutput[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen[0] = store.getTransactionOutput(a.getHash(), 0);
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertNull(seen[0]);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(genesis, store.getVerifiedChainHead());
+
+        // The verified head is only written to the underlying store along with its outputs.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(next, store.getVerifiedChainHead());
+        assertEquals(next, store.getChainHead());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        int batches = backing.batches;
+        store.flush();
+        assertEquals(batches + 1, backing.batches);
+        assertEquals(next, backing.getVerifiedChainHead());
+        assertNotNull(backing.getTransactionOutput(a.getHash(), 0));
+    }
+
+    @Test
+    public void spendsStoredOutputs() throws Exception {
+        StoredTransactionOutput a = output(3, 0), b = output(3, 1);
+        backing.addUnspentTransactionOutput(a);
+        backing.addUnspentTransactionOutput(b);
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(store.getTransactionOutput(a.getHash(), 0));
+        store.removeUnspentTransactionOutput(store.getTransactionOutput(b.getHash(), 1));
+        store.commitDatabaseBatchWrite();
+        // The store still has both outputs, but the cache knows they're spent.
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 2));
+
+        // Adding an output back (as happens when a block is disconnected) cancels out the pending removal.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 2));
+
+        store.flush();
+        assertEquals(1, backing.removes);
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+        assertNotNull(backing.getTransactionOutput(b.getHash(), 1));
+    }
+
+    @Test
+    public void flushesWhenOverBudget() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 10000);
+        for (int tx = 0; tx < 100; tx++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(tx, 0));
+            store.commitDatabaseBatchWrite();
+            assertTrue(store.getCachedBytes() <= 10000);
+        }
+        assertTrue(backing.adds > 0);
+        store.close();
+        assertEquals(100, backing.adds);
+    }
+
+    @Test
+    public void spendDuringLoadIsNotUndone() throws Exception {
+        final StoredTransactionOutput a = output(4, 0);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        backing = new CountingStore() {
+            boolean blocked;
+
+            @Override
+            public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+                StoredTransactionOutput out = super.getTransactionOutput(hash, index);
+                synchronized (this) {
+                    if (blocked)
+                        return out;
+                    blocked = true;
+                }
+                // Hold the first read up once it has seen the output, as a slow prefetch would.
+                loaded.countDown();
+                try {
+                    proceed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return out;
+            }
+        };
+        backing.addUnspentTransactionOutput(a);
+        store = new CachingFullPrunedBlockStore(backing);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    store.getTransactionOutput(a.getHash(), 0);
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        // Spend it and flush, which drops the spent entry from the cache, whilst the read is still going.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        store.flush();
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+        proceed.countDown();
+        reader.join();
+        // The output the reader saw must not come back as unspent.
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+    }
+}
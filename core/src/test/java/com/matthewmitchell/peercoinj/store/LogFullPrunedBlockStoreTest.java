@@ -0,0 +1,211 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+    private LogFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("logstore", null);
+        assertTrue(directory.delete());
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private LogFullPrunedBlockStore open() throws BlockStoreException {
+        return new LogFullPrunedBlockStore(params, directory, 2, SEGMENT_SIZE);
+    }
+
+    private static StoredTransactionOutput output(int tx, int index) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) tx, (byte) (tx >> 8)}), index,
+                Coin.valueOf(tx * 100 + index), tx, tx % 2 == 0, new byte[] {1, 2, 3, (byte) tx});
+    }
+
+    private static void assertOutput(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.isCoinbase(), actual.isCoinbase());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    private List<StoredBlock> buildChain(int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        for (int i = 0; i < length; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void outputsAndBlocks() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+
+        StoredTransactionOutput a = output(1, 0), b = output(1, 1), c = output(2, 0);
+        StoredBlock block = buildChain(1).get(0);
+        List<StoredTransactionOutput> created = new LinkedList<StoredTransactionOutput>();
+        created.add(c);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        store.removeUnspentTransactionOutput(a);
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(created, new LinkedList<StoredTransactionOutput>())));
+        store.setVerifiedChainHead(block);
+        assertEquals(block, store.getChainHead());
+        store.commitDatabaseBatchWrite();
+
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertOutput(b, store.getTransactionOutput(b.getHash(), 1));
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        // Everything is found again after reopening.
+        store.close();
+        store = open();
+        assertEquals(block, store.getChainHead());
+        assertEquals(block, store.getVerifiedChainHead());
+        assertEquals(block, store.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertOutput(b, store.getTransactionOutput(b.getHash(), 1));
+        assertOutput(c, store.getTransactionOutput(c.getHash(), 0));
+        StoredUndoableBlock undo = store.getUndoBlock(block.getHeader().getHash());
+        assertOutput(c, undo.getTxOutChanges().txOutsCreated.get(0));
+    }
+
+    @Test
+    public void uncommittedBatchesAreDiscarded() throws Exception {
+        StoredTransactionOutput a = output(3, 0), b = output(4, 0);
+        store.addUnspentTransactionOutput(a);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(a);
+        store.abortDatabaseBatchWrite();
+        assertOutput(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+
+        // Simulate a crash in the middle of a batch by opening the log again while the batch is still open.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(a);
+        LogFullPrunedBlockStore recovered = open();
+        assertOutput(a, recovered.getTransactionOutput(a.getHash(), 0));
+        assertNull(recovered.getTransactionOutput(b.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        store.close();
+        recovered.close();
+        store = open();
+        assertOutput(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void prunesUndoBlocks() throws Exception {
+        List<StoredBlock> blocks = buildChain(4);
+        for (StoredBlock block : blocks) {
+            store.beginDatabaseBatchWrite();
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new LinkedList<Transaction>()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        }
+        // Only the undo blocks within two blocks of the verified head are kept.
+        assertNull(store.getUndoBlock(blocks.get(1).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(2).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(3).getHeader().getHash()));
+        assertNotNull(store.get(blocks.get(0).getHeader().getHash()));
+        store.close();
+        store = open();
+        assertNull(store.getUndoBlock(blocks.get(1).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(3).getHeader().getHash()));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // Keep a few outputs around while churning through enough others to fill several segments.
+        List<StoredTransactionOutput> kept = new ArrayList<StoredTransactionOutput>();
+        for (int tx = 0; tx < 2000; tx++) {
+            StoredTransactionOutput out = output(tx, 0);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            if (tx % 100 == 0) {
+                kept.add(out);
+            } else {
+                store.beginDatabaseBatchWrite();
+                store.removeUnspentTransactionOutput(out);
+                store.commitDatabaseBatchWrite();
+            }
+        }
+        File first = new File(directory, "segment-00000000.log");
+        // Compaction may already have run in the background. Run it once more to be sure.
+        while (first.exists())
+            store.compactOldestSegment();
+        for (StoredTransactionOutput out : kept)
+            assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+
+        store.close();
+        store = open();
+        for (StoredTransactionOutput out : kept)
+            assertOutput(out, store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(1, 0).getHash(), 0));
+        assertNotNull(store.getUndoBlock(params.getGenesisBlock().getHash()));
+    }
+}
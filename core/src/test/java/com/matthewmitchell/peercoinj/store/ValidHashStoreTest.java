@@ -0,0 +1,212 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Address;
+import com.matthewmitchell.peercoinj.core.Block;
+import com.matthewmitchell.peercoinj.core.BlockChain;
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.NetworkParameters;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.Utils;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.google.common.primitives.Bytes;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ValidHashStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private HttpServer server;
+    private URL serverUrl;
+    private volatile byte[] response;
+    private final AtomicInteger requests = new AtomicInteger();
+    private File file;
+    private BlockChain chain;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream is = exchange.getRequestBody();
+                while (is.read() != -1) ;
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            }
+        });
+        server.start();
+        serverUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        file = File.createTempFile("validhashes", null);
+        file.deleteOnExit();
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private ValidHashStore openStore() throws IOException {
+        return new ValidHashStore(file, new ValidHashStore.TrustedServersInterface() {
+            @Override
+            public URL getNext(boolean didFail) {
+                return didFail ? null : serverUrl;
+            }
+
+            @Override
+            public boolean invalidated() {
+                return false;
+            }
+
+            @Override
+            public void markSuccess(boolean success) {
+            }
+        });
+    }
+
+    private static Sha256Hash hashWithPrefix(byte[] prefix) {
+        byte[] bytes = new byte[32];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        return new Sha256Hash(Utils.reverseBytes(bytes));
+    }
+
+    @Test
+    public void appendsOnlyNewHashes() throws Exception {
+        byte[] genesis = Hex.decode("e327cd80c8b17efda4ea08c5877e95d8");
+        byte[] a = Hex.decode("000102030405060708090a0b0c0d0e0f");
+        byte[] b = Hex.decode("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+
+        ValidHashStore store = openStore();
+        assertEquals(1, store.getHashCount());
+        // Known hashes are answered without going to the server.
+        assertTrue(store.isValidHash(hashWithPrefix(genesis), chain, false));
+        assertEquals(0, requests.get());
+
+        // The server returns a hash we already have along with two new ones. Only the new ones are appended.
+        response = Bytes.concat(genesis, a, b);
+        assertTrue(store.isValidHash(hashWithPrefix(b), chain, false));
+        assertEquals(1, requests.get());
+        assertEquals(3, store.getHashCount());
+        assertEquals(48, file.length());
+        // Lookups don't depend on the order blocks are checked in.
+        assertTrue(store.isValidHash(hashWithPrefix(a), chain, false));
+        assertTrue(store.isValidHash(hashWithPrefix(genesis), chain, false));
+        assertEquals(1, requests.get());
+
+        // An unknown hash that the server doesn't return either is rejected.
+        response = new byte[0];
+        assertFalse(store.isValidHash(hashWithPrefix(new byte[16]), chain, false));
+        assertEquals(3, store.getHashCount());
+        store.close();
+
+        // Everything is indexed again after reopening.
+        store = openStore();
+        assertEquals(3, store.getHashCount());
+        assertTrue(store.isValidHash(hashWithPrefix(a), chain, false));
+        assertTrue(store.isValidHash(hashWithPrefix(b), chain, false));
+        assertEquals(2, requests.get());
+        store.close();
+    }
+
+    @Test
+    public void manyHashes() throws Exception {
+        // More records than a single response may hold, and enough to force the index to grow.
+        int count = 60000;
+        byte[] data = new byte[count * 16];
+        byte[] counter = new byte[4];
+        for (int i = 0; i < count; i++) {
+            Utils.uint32ToByteArrayBE(i, counter, 0);
+            System.arraycopy(Sha256Hash.create(counter).getBytes(), 0, data, i * 16, 16);
+        }
+        response = data;
+        ValidHashStore store = openStore();
+        // Only the first 50000 hashes of a response are accepted.
+        byte[] last = new byte[16];
+        System.arraycopy(data, 49999 * 16, last, 0, 16);
+        assertTrue(store.isValidHash(hashWithPrefix(last), chain, false));
+        assertEquals(50001, store.getHashCount());
+        for (int i = 0; i < 50000; i += 997) {
+            byte[] prefix = new byte[16];
+            System.arraycopy(data, i * 16, prefix, 0, 16);
+            assertTrue(store.isValidHash(hashWithPrefix(prefix), chain, false));
+        }
+        assertEquals(1, requests.get());
+        store.close();
+    }
+
+    private static byte[] miniHash(Block block) {
+        return Arrays.copyOf(Utils.reverseBytes(block.getHash().getBytes()), 16);
+    }
+
+    private void waitForValidation() throws InterruptedException {
+        for (int i = 0; i < 500 && chain.getPendingValidationCount() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, chain.getPendingValidationCount());
+    }
+
+    @Test
+    public void chainValidatesInBackground() throws Exception {
+        ValidHashStore store = openStore();
+        chain = new BlockChain(params, new MemoryBlockStore(params), store);
+        Address to = new ECKey().toAddress(params);
+        // Old enough for the chain not to wait for the server to catch up. The unit test genesis block is created
+        // with the current time, so backdate the first block by hand.
+        long time = Utils.currentTimeSeconds() - 24 * 60 * 60;
+        Block b1 = params.getGenesisBlock().createNextBlock(to);
+        b1.setTime(time + 600);
+        b1.solve();
+        Block b2 = b1.createNextBlock(to, time + 1200);
+        Block b3 = b2.createNextBlock(to, time + 1800);
+
+        // Blocks with unknown hashes are accepted, but only connected once the server has confirmed them.
+        response = Bytes.concat(miniHash(b1), miniHash(b2));
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        waitForValidation();
+        assertEquals(b2, chain.getChainHead().getHeader());
+        assertEquals(1, requests.get());
+
+        // A block the server doesn't know about is rejected.
+        response = new byte[0];
+        assertTrue(chain.add(b3));
+        waitForValidation();
+        assertEquals(2, chain.getBestChainHeight());
+        assertEquals(2, requests.get());
+        store.close();
+    }
+}
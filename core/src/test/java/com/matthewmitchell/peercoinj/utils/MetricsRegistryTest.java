@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.utils;
+
+import com.matthewmitchell.peercoinj.core.PeerAddress;
+import com.matthewmitchell.peercoinj.core.PeercoinSerializer;
+import com.matthewmitchell.peercoinj.core.Ping;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    private MetricsRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new MetricsRegistry();
+        NetworkMetrics.set(registry);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkMetrics.set(NetworkMetrics.NONE);
+    }
+
+    @Test
+    public void countsMessagesPerCommand() throws Exception {
+        PeercoinSerializer serializer = new PeercoinSerializer(UnitTestParams.get());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), out);
+        serializer.serialize(new Ping(2), out);
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+        serializer.deserialize(in);
+        serializer.deserialize(in);
+
+        SortedMap<String, Long> snapshot = registry.snapshot();
+        assertEquals(2, (long) snapshot.get("messages.out.ping.count"));
+        assertEquals(16, (long) snapshot.get("messages.out.ping.bytes"));
+        assertEquals(2, (long) snapshot.get("messages.in.ping.count"));
+        assertEquals(16, (long) snapshot.get("messages.in.ping.bytes"));
+        assertTrue(snapshot.containsKey("messages.in.ping.parse.nanos"));
+    }
+
+    @Test
+    public void unknownCommandsShareCounters() {
+        registry.messageReceived("ping", 8, 1);
+        registry.messageReceived("junk1", 10, 1);
+        registry.messageReceived("junk2", 20, 1);
+        SortedMap<String, Long> snapshot = registry.snapshot();
+        assertEquals(1, (long) snapshot.get("messages.in.ping.count"));
+        assertEquals(2, (long) snapshot.get("messages.in.unknown.count"));
+        assertEquals(30, (long) snapshot.get("messages.in.unknown.bytes"));
+        assertFalse(snapshot.containsKey("messages.in.junk1.count"));
+    }
+
+    @Test
+    public void peersAndHistogram() throws Exception {
+        PeerAddress peer = new PeerAddress(InetAddress.getByName("127.0.0.1"), 9903);
+        registry.bytesReceived(peer, 100);
+        registry.bytesSent(peer, 40);
+        registry.getDataLatency(peer, 5);
+        registry.getDataLatency(peer, 300);
+        registry.getDataLatency(peer, 60000);
+        registry.outboundQueueChanged(1000);
+        registry.outboundQueueChanged(-600);
+
+        SortedMap<String, Long> snapshot = registry.snapshot();
+        assertEquals(100, (long) snapshot.get("bytes.in"));
+        assertEquals(100, (long) snapshot.get("peer.127.0.0.1:9903.bytes.in"));
+        assertEquals(40, (long) snapshot.get("peer.127.0.0.1:9903.bytes.out"));
+        assertEquals(1, (long) snapshot.get("getdata.latency.ms.le.00010"));
+        assertEquals(1, (long) snapshot.get("getdata.latency.ms.le.00250"));
+        assertEquals(2, (long) snapshot.get("getdata.latency.ms.le.00500"));
+        assertEquals(2, (long) snapshot.get("getdata.latency.ms.le.10000"));
+        assertEquals(3, (long) snapshot.get("getdata.latency.ms.count"));
+        assertEquals(60305, (long) snapshot.get("getdata.latency.ms.sum"));
+        assertEquals(400, (long) snapshot.get("outbound.queue.bytes"));
+        assertEquals(1000, (long) snapshot.get("outbound.queue.bytes.max"));
+
+        // A closed connection keeps its bytes in the totals only.
+        registry.connectionClosed(peer);
+        snapshot = registry.snapshot();
+        assertFalse(snapshot.containsKey("peer.127.0.0.1:9903.bytes.in"));
+        assertEquals(100, (long) snapshot.get("bytes.in"));
+        assertEquals(1, (long) snapshot.get("connections.closed"));
+    }
+}
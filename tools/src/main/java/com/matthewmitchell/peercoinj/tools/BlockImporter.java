@@ -12,11 +12,11 @@ import java.io.IOException;
 /** Very thin wrapper around {@link com.matthewmitchell.peercoinj.utils.BlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException, IOException {
-        System.out.println("USAGE: BlockImporter prod (Mem|SPV) validHashStore [blockStore]");
-        System.out.println("       blockStore is required unless type is Mem or MemFull");
-        System.out.println("       eg BlockImporter prod H2 /home/user/peercoinj.h2store");
+        System.out.println("USAGE: BlockImporter prod (Mem|SPV|Log) validHashStore [blockStore]");
+        System.out.println("       blockStore is required unless type is Mem");
+        System.out.println("       eg BlockImporter prod Log /home/user/peercoinj.validhashes /home/user/peercoinj.logstore");
         System.out.println("       Does full verification if the store supports it");
-        Preconditions.checkArgument(args.length == 2 || args.length == 3);
+        Preconditions.checkArgument(args.length == 3 || args.length == 4);
         
         NetworkParameters params;
         params = MainNetParams.get();
@@ -28,17 +28,28 @@ public class BlockImporter {
         } else if (args[1].equals("SPV")) {
             Preconditions.checkArgument(args.length == 4);
             store = new SPVBlockStore(params, new File(args[3]));
+        } else if (args[1].equals("Log")) {
+            Preconditions.checkArgument(args.length == 4);
+            store = new LogFullPrunedBlockStore(params, new File(args[3]), 1000);
         } else {
             System.err.println("Unknown store " + args[1]);
             return;
         }
         
         ValidHashStore validHashStore = new ValidHashStore(new File(args[2]));
-        AbstractBlockChain chain = new BlockChain(params, store, validHashStore);
+        AbstractBlockChain chain;
+        if (store instanceof FullPrunedBlockStore)
+            chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store, validHashStore);
+        else
+            chain = new BlockChain(params, store, validHashStore);
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        if (chain instanceof FullPrunedBlockChain)
+            ((FullPrunedBlockChain) chain).addAll(loader);
+        else
+            for (Block block : loader)
+                chain.add(block);
+        store.close();
     }
 }
@@ -0,0 +1,74 @@
+package com.matthewmitchell.peercoinj.tools;
+
+import com.matthewmitchell.peercoinj.core.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link Utils#doubleDigest(byte[])} throughput with an increasing number of threads hashing block header
+ * sized inputs. With per-thread digest engines the hashes per second should grow with the number of cores.
+ */
+public class DigestBenchmark {
+    private static final int INPUT_SIZE = 80;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: DigestBenchmark [maxThreads] [secondsPerRun]");
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final long runMillis = (args.length > 1 ? Long.parseLong(args[1]) : 3) * 1000;
+
+        final byte[] input = new byte[INPUT_SIZE];
+        new Random(1).nextBytes(input);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(INPUT_SIZE);
+        direct.put(input);
+        direct.flip();
+
+        long singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            for (final boolean useBuffer : new boolean[] { false, true }) {
+                final AtomicLong hashes = new AtomicLong();
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Thread> workers = new ArrayList<Thread>();
+                for (int i = 0; i < threads; i++) {
+                    Thread worker = new Thread() {
+                        @Override
+                        public void run() {
+                            ByteBuffer buffer = direct.duplicate();
+                            long count = 0;
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            long end = System.currentTimeMillis() + runMillis;
+                            while (System.currentTimeMillis() < end) {
+                                for (int j = 0; j < 1000; j++) {
+                                    if (useBuffer)
+                                        Utils.doubleDigest(buffer);
+                                    else
+                                        Utils.doubleDigest(input);
+                                }
+                                count += 1000;
+                            }
+                            hashes.addAndGet(count);
+                        }
+                    };
+                    worker.start();
+                    workers.add(worker);
+                }
+                start.countDown();
+                for (Thread worker : workers)
+                    worker.join();
+                long perSecond = hashes.get() * 1000 / runMillis;
+                if (threads == 1 && !useBuffer)
+                    singleThreaded = perSecond;
+                System.out.println(String.format("%2d thread(s), %-10s %,12d hashes/sec (%.2fx)", threads,
+                        useBuffer ? "ByteBuffer" : "byte[]", perSecond, (double) perSecond / singleThreaded));
+            }
+        }
+    }
+}